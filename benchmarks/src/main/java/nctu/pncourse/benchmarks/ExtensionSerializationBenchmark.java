@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.benchmarks;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.KryoNamespace;
+import org.onosproject.store.serializers.MacAddressSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import nctu.pncourse.p4extensiontreatment.P4SetMulticastGRP;
+import nctu.pncourse.p4extensiontreatment.P4SetTunnelSmac;
+import nctu.pncourse.p4extensiontreatment.P4SetVxlanEncap;
+
+/**
+ * Compares the fixed-width encoding of the P4 extension treatments with the
+ * former one, where every extension instance built its own Kryo namespace.
+ * The legacy benchmarks rebuild the namespace on each operation because
+ * that is what creating an extension instance used to cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtensionSerializationBenchmark {
+
+    private static final MacAddress MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final short GROUP = 1;
+    private static final Ip4Address SRC_IP = Ip4Address.valueOf("192.168.1.1");
+    private static final Ip4Address DST_IP = Ip4Address.valueOf("192.169.1.2");
+
+    private byte[] legacyMac;
+    private byte[] mac;
+    private byte[] legacyGroup;
+    private byte[] group;
+    private byte[] encap;
+
+    @Setup
+    public void setup() {
+        legacyMac = legacyMacKryo().serialize(MAC);
+        mac = new P4SetTunnelSmac(MAC).serialize();
+        legacyGroup = legacyGroupKryo().serialize(GROUP);
+        group = new P4SetMulticastGRP(GROUP).serialize();
+        encap = new P4SetVxlanEncap(30, MAC, MAC, SRC_IP, DST_IP).serialize();
+    }
+
+    private static KryoNamespace legacyMacKryo() {
+        return new KryoNamespace.Builder()
+                .register(new MacAddressSerializer(), MacAddress.class)
+                .register(byte[].class)
+                .build("P4SetTunnelSmac");
+    }
+
+    private static KryoNamespace legacyGroupKryo() {
+        return new KryoNamespace.Builder()
+                .register(Short.class)
+                .build("P4SetMulticastGRP");
+    }
+
+    @Benchmark
+    public byte[] legacyMacSerialize() {
+        return legacyMacKryo().serialize(MAC);
+    }
+
+    @Benchmark
+    public byte[] macSerialize() {
+        return new P4SetTunnelSmac(MAC).serialize();
+    }
+
+    @Benchmark
+    public MacAddress legacyMacDeserialize() {
+        return legacyMacKryo().deserialize(legacyMac);
+    }
+
+    @Benchmark
+    public MacAddress macDeserialize() {
+        P4SetTunnelSmac extension = new P4SetTunnelSmac();
+        extension.deserialize(mac);
+        return extension.tunnelSmac();
+    }
+
+    @Benchmark
+    public MacAddress macDeserializeLegacyPayload() {
+        P4SetTunnelSmac extension = new P4SetTunnelSmac();
+        extension.deserialize(legacyMac);
+        return extension.tunnelSmac();
+    }
+
+    @Benchmark
+    public byte[] legacyGroupSerialize() {
+        return legacyGroupKryo().serialize(GROUP);
+    }
+
+    @Benchmark
+    public byte[] groupSerialize() {
+        return new P4SetMulticastGRP(GROUP).serialize();
+    }
+
+    @Benchmark
+    public short legacyGroupDeserialize() {
+        return legacyGroupKryo().<Short>deserialize(legacyGroup);
+    }
+
+    @Benchmark
+    public short groupDeserialize() {
+        P4SetMulticastGRP extension = new P4SetMulticastGRP();
+        extension.deserialize(group);
+        return extension.multicastGrp();
+    }
+
+    @Benchmark
+    public byte[] encapSerialize() {
+        return new P4SetVxlanEncap(30, MAC, MAC, SRC_IP, DST_IP).serialize();
+    }
+
+    @Benchmark
+    public P4SetVxlanEncap encapDeserialize() {
+        P4SetVxlanEncap extension = new P4SetVxlanEncap();
+        extension.deserialize(encap);
+        return extension;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.pi.model.PiPacketMetadataId;
+import org.onosproject.net.pi.model.PiPipelineInterpreter.PiInterpreterException;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiPacketMetadata;
+import org.onosproject.net.pi.runtime.PiPacketOperation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import nctu.pncourse.p4extensiontreatment.P4PacketInCookie;
+import nctu.pncourse.p4extensiontreatment.P4SetMulticastGRP;
+import nctu.pncourse.p4extensiontreatment.P4SetTunnelDecap;
+import nctu.pncourse.p4extensiontreatment.P4SetVxlanEncap;
+import nctu.pncourse.pipeconf.PipelineInterpreterImpl;
+
+import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_IN;
+
+/**
+ * Measures the interpreter calls on the flow rule and packet I/O paths:
+ * translating the treatments of the rules the app installs, decoding the
+ * packet-ins of the VTEPs, and encoding the packet-outs of the ARP proxy.
+ * Packet-ins are parsed lazily, {@code parse*PacketIn} also parse them as
+ * the handlers of the app do.
+ * <p>
+ * The fixtures are the ones of a VTEP of the sample topology: VNI 30,
+ * tunnel 192.168.1.1 to 192.169.1.2, uplink on port 3.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineInterpreterBenchmark {
+
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:bmv2:s1");
+    private static final int VNI = 30;
+    private static final MacAddress VTEP_MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final MacAddress NEXT_HOP_MAC = MacAddress.valueOf("00:00:00:00:00:02");
+    private static final Ip4Address VTEP_IP = Ip4Address.valueOf("192.168.1.1");
+    private static final Ip4Address REMOTE_VTEP_IP = Ip4Address.valueOf("192.169.1.2");
+    private static final MacAddress HOST_MAC = MacAddress.valueOf("00:00:00:00:00:0a");
+    private static final Ip4Address HOST_IP = Ip4Address.valueOf("10.0.1.1");
+    private static final Ip4Address TARGET_IP = Ip4Address.valueOf("10.0.1.64");
+    private static final MacAddress TARGET_MAC = MacAddress.valueOf("00:00:00:00:00:0b");
+    private static final PortNumber UPLINK = PortNumber.portNumber(3);
+    private static final short FLOOD_GROUP = 1;
+
+    private static final PiTableId L2_FORWARD = PiTableId.of("MyIngress.l2_forward");
+    private static final PiTableId IPV4_LPM = PiTableId.of("MyIngress.ipv4_lpm");
+    private static final PiTableId DECAP_TABLE = PiTableId.of("MyIngress.decap_table");
+    private static final PiTableId ENCAP_TABLE = PiTableId.of("MyEgress.encap_table");
+
+    private PipelineInterpreterImpl interpreter;
+
+    private TrafficTreatment encap;
+    private TrafficTreatment decap;
+    private TrafficTreatment multicast;
+    private TrafficTreatment nextHop;
+
+    private PiPacketOperation arpPacketIn;
+    private PiPacketOperation learnPacketIn;
+
+    private OutboundPacket arpReplyToTunnel;
+    private OutboundPacket arpRequestFlood;
+    private OutboundPacket arpRequestToPorts;
+
+    @Setup
+    public void setup() {
+        interpreter = new PipelineInterpreterImpl();
+
+        // Treatments as built by the app's treatment cache and ECMP groups.
+        encap = DefaultTrafficTreatment.builder()
+                .extension(new P4SetVxlanEncap(VNI, VTEP_MAC, NEXT_HOP_MAC, VTEP_IP, REMOTE_VTEP_IP), DEVICE_ID)
+                .build();
+        decap = DefaultTrafficTreatment.builder()
+                .extension(new P4SetTunnelDecap(1), DEVICE_ID)
+                .build();
+        multicast = DefaultTrafficTreatment.builder()
+                .extension(new P4SetMulticastGRP(FLOOD_GROUP), DEVICE_ID)
+                .build();
+        nextHop = DefaultTrafficTreatment.builder()
+                .setEthDst(NEXT_HOP_MAC)
+                .setOutput(UPLINK)
+                .build();
+
+        // An ARP request trapped on an access port, and a learn notification
+        // of a host behind the remote VTEP, truncated after the Ethernet header.
+        Ethernet arpRequest = ARP.buildArpRequest(HOST_MAC.toBytes(), HOST_IP.toOctets(),
+                                                  TARGET_IP.toOctets(), Ethernet.VLAN_UNTAGGED);
+        arpPacketIn = packetIn(arpRequest.serialize(), 1, P4PacketInCookie.REASON_PACKET_IN, 0);
+        byte[] header = Arrays.copyOf(arpRequest.serialize(), Ethernet.ETHERNET_HEADER_LENGTH);
+        learnPacketIn = packetIn(header, UPLINK.toLong(), P4PacketInCookie.REASON_LEARN, REMOTE_VTEP_IP.toInt());
+
+        // A proxied ARP reply sent back through the tunnel, and an ARP
+        // request flooded to the VNI.
+        Ethernet arpReply = ARP.buildArpReply(TARGET_IP, TARGET_MAC, arpRequest);
+        arpReplyToTunnel = new DefaultOutboundPacket(
+                DEVICE_ID,
+                DefaultTrafficTreatment.builder().setTunnelId(VNI).setOutput(UPLINK).build(),
+                ByteBuffer.wrap(arpReply.serialize()));
+        arpRequestFlood = new DefaultOutboundPacket(
+                DEVICE_ID,
+                DefaultTrafficTreatment.builder().group(GroupId.valueOf(FLOOD_GROUP)).build(),
+                ByteBuffer.wrap(arpRequest.serialize()));
+        arpRequestToPorts = new DefaultOutboundPacket(
+                DEVICE_ID,
+                DefaultTrafficTreatment.builder()
+                        .setOutput(PortNumber.portNumber(1))
+                        .setOutput(PortNumber.portNumber(2))
+                        .setOutput(UPLINK)
+                        .build(),
+                ByteBuffer.wrap(arpRequest.serialize()));
+    }
+
+    private static PiPacketOperation packetIn(byte[] frame, long port, int reason, int tunnelSrc) {
+        return PiPacketOperation.builder()
+                .withType(PACKET_IN)
+                .withData(ImmutableByteSequence.copyFrom(frame))
+                .withMetadatas(ImmutableList.of(
+                        metadata("ingress_port", ImmutableByteSequence.copyFrom((short) port)),
+                        metadata("reason", ImmutableByteSequence.copyFrom((byte) reason)),
+                        metadata("vni", ImmutableByteSequence.copyFrom(VNI)),
+                        metadata("tunnel_src", ImmutableByteSequence.copyFrom(tunnelSrc))))
+                .build();
+    }
+
+    private static PiPacketMetadata metadata(String id, ImmutableByteSequence value) {
+        return PiPacketMetadata.builder()
+                .withId(PiPacketMetadataId.of(id))
+                .withValue(value)
+                .build();
+    }
+
+    @Benchmark
+    public PiAction mapEncap() throws PiInterpreterException {
+        return interpreter.mapTreatment(encap, ENCAP_TABLE);
+    }
+
+    @Benchmark
+    public PiAction mapDecap() throws PiInterpreterException {
+        return interpreter.mapTreatment(decap, DECAP_TABLE);
+    }
+
+    @Benchmark
+    public PiAction mapMulticast() throws PiInterpreterException {
+        return interpreter.mapTreatment(multicast, L2_FORWARD);
+    }
+
+    @Benchmark
+    public PiAction mapL3Forward() throws PiInterpreterException {
+        return interpreter.mapTreatment(nextHop, IPV4_LPM);
+    }
+
+    @Benchmark
+    public InboundPacket mapArpPacketIn() throws PiInterpreterException {
+        return interpreter.mapInboundPacket(arpPacketIn, DEVICE_ID);
+    }
+
+    @Benchmark
+    public InboundPacket mapLearnPacketIn() throws PiInterpreterException {
+        return interpreter.mapInboundPacket(learnPacketIn, DEVICE_ID);
+    }
+
+    @Benchmark
+    public Ethernet parseArpPacketIn() throws PiInterpreterException {
+        return interpreter.mapInboundPacket(arpPacketIn, DEVICE_ID).parsed();
+    }
+
+    @Benchmark
+    public Ethernet parseLearnPacketIn() throws PiInterpreterException {
+        return interpreter.mapInboundPacket(learnPacketIn, DEVICE_ID).parsed();
+    }
+
+    @Benchmark
+    public Collection<PiPacketOperation> mapPacketOutToTunnel() throws PiInterpreterException {
+        return interpreter.mapOutboundPacket(arpReplyToTunnel);
+    }
+
+    @Benchmark
+    public Collection<PiPacketOperation> mapPacketOutToGroup() throws PiInterpreterException {
+        return interpreter.mapOutboundPacket(arpRequestFlood);
+    }
+
+    @Benchmark
+    public Collection<PiPacketOperation> mapPacketOutToPorts() throws PiInterpreterException {
+        return interpreter.mapOutboundPacket(arpRequestToPorts);
+    }
+}
@@ -1,5 +1,11 @@
 #!/bin/bash
 
+# Compile the P4 program so that the pipeconf ships matching artifacts
+cd p4/vxlan
+make build
+cp build/vxlan.json build/vxlan.p4.p4info.txt ../../pipeconf-p4-final/src/resources/
+cd ../..
+
 cd p4extensiontreatment
 mvn clean install -DskipTests
 mvn install:install-file -Dfile=target/p4extensiontreatment-1.0-SNAPSHOT.jar -DgroupId=nctu.pncourse -DartifactId=p4extensiontreatment -Dversion=1.0-SNAPSHOT -Dpackaging=jar -DgeneratePom=true
@@ -0,0 +1,136 @@
+package nctu.pncourse.p4extensiontreatment;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fixed-width, network byte order encoding shared by the P4 extension
+ * treatments.
+ * <p>
+ * An encoded extension starts with a two-byte header, a marker byte and the
+ * version of the encoding, followed by its fields. Every field is written
+ * with the width of the matching P4 action parameter (MAC 6 bytes, IPv4 4
+ * bytes, multicast group 2 bytes, VNI 3 bytes), so no serializer state is
+ * needed. All methods are stateless and thread-safe.
+ * <p>
+ * Extensions used to be encoded with a per-instance Kryo namespace; those
+ * payloads are still decoded, through a Kryo namespace built once per
+ * extension class, so flow entries already in the store keep loading. Kryo
+ * starts a payload with the registration id of its class plus 2, or 0 for
+ * null, in a single byte: the marker byte 0 followed by more bytes never
+ * starts a Kryo payload, which tells the two encodings apart.
+ */
+final class ExtensionSerializer {
+
+    static final int MAC_WIDTH = MacAddress.MAC_ADDRESS_LENGTH;
+    static final int IP4_WIDTH = Ip4Address.BYTE_LENGTH;
+    static final int SHORT_WIDTH = Short.BYTES;
+    static final int INT_WIDTH = Integer.BYTES;
+    static final int VNI_WIDTH = 3;
+
+    static final byte MARKER = 0;
+    static final byte VERSION = 1;
+    static final int HEADER_WIDTH = 2;
+
+    private ExtensionSerializer() {
+    }
+
+    /**
+     * Tells whether the data was produced by the former Kryo encoding.
+     *
+     * @param data serialized extension
+     * @return true if the data must be decoded as legacy Kryo
+     */
+    static boolean isLegacy(byte[] data) {
+        return data.length < HEADER_WIDTH || data[0] != MARKER;
+    }
+
+    /**
+     * Allocates the data of an encoded extension and writes its header.
+     *
+     * @param width width of the fields of the extension
+     * @return data, with the fields to be written from {@link #HEADER_WIDTH}
+     */
+    static byte[] allocate(int width) {
+        byte[] data = new byte[HEADER_WIDTH + width];
+        data[0] = MARKER;
+        data[1] = VERSION;
+        return data;
+    }
+
+    /**
+     * Checks the header and length of an encoded extension.
+     *
+     * @param data  serialized extension, not a legacy one
+     * @param width width of the fields of the extension
+     * @return offset of the fields
+     * @throws IllegalArgumentException if the version or length is not the
+     *                                  expected one
+     */
+    static int checkHeader(byte[] data, int width) {
+        checkArgument(data[1] == VERSION, "Unsupported extension encoding version: %s", data[1]);
+        checkArgument(data.length == HEADER_WIDTH + width, "Invalid extension length: %s", data.length);
+        return HEADER_WIDTH;
+    }
+
+    static int putMac(byte[] data, int offset, MacAddress mac) {
+        System.arraycopy(mac.toBytes(), 0, data, offset, MAC_WIDTH);
+        return offset + MAC_WIDTH;
+    }
+
+    static MacAddress getMac(byte[] data, int offset) {
+        checkArgument(data.length >= offset + MAC_WIDTH, "Truncated MAC address");
+        long value = 0;
+        for (int i = 0; i < MAC_WIDTH; i++) {
+            value = value << 8 | (data[offset + i] & 0xff);
+        }
+        return MacAddress.valueOf(value);
+    }
+
+    static int putIp4(byte[] data, int offset, Ip4Address ip) {
+        return putInt(data, offset, ip.toInt());
+    }
+
+    static Ip4Address getIp4(byte[] data, int offset) {
+        return Ip4Address.valueOf(getInt(data, offset));
+    }
+
+    static int putShort(byte[] data, int offset, short value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+        return offset + SHORT_WIDTH;
+    }
+
+    static short getShort(byte[] data, int offset) {
+        checkArgument(data.length >= offset + SHORT_WIDTH, "Truncated short");
+        return (short) ((data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff));
+    }
+
+    static int putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+        return offset + INT_WIDTH;
+    }
+
+    static int getInt(byte[] data, int offset) {
+        checkArgument(data.length >= offset + INT_WIDTH, "Truncated int");
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+                (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    static int putVni(byte[] data, int offset, int vni) {
+        data[offset] = (byte) (vni >>> 16);
+        data[offset + 1] = (byte) (vni >>> 8);
+        data[offset + 2] = (byte) vni;
+        return offset + VNI_WIDTH;
+    }
+
+    static int getVni(byte[] data, int offset) {
+        checkArgument(data.length >= offset + VNI_WIDTH, "Truncated VNI");
+        return (data[offset] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff);
+    }
+}
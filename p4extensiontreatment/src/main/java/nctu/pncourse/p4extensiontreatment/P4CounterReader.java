@@ -0,0 +1,24 @@
+package nctu.pncourse.p4extensiontreatment;
+
+import org.onosproject.net.driver.HandlerBehaviour;
+import org.onosproject.net.pi.runtime.PiCounterCell;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Behaviour reading the counters of the vxlan.p4 pipeline of a device, so
+ * that applications can monitor them without depending on P4Runtime.
+ */
+public interface P4CounterReader extends HandlerBehaviour {
+
+    /**
+     * Reads every cell of the indirect counters and of the direct counters
+     * of the tables, with a single wildcard read. Cells of direct counters
+     * are identified by the table entry they belong to.
+     *
+     * @return future completed with the counter cells, or exceptionally if
+     *         the device could not be read
+     */
+    CompletableFuture<Collection<PiCounterCell>> readCounters();
+}
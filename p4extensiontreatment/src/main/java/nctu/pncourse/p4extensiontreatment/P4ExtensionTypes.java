@@ -1,25 +1,66 @@
 package nctu.pncourse.p4extensiontreatment;
 
+import org.onosproject.net.flow.instructions.ExtensionTreatment;
 import org.onosproject.net.flow.instructions.ExtensionTreatmentType;
 
+import java.util.function.Supplier;
+
 public final class P4ExtensionTypes {
     public enum P4ExtensionTreatmentType {
-        P4_SET_TUNNEL_SMAC(0),
-        P4_SET_TUNNEL_DMAC(1),
-        P4_SET_TUNNEL_SIP(2),
-        P4_SET_TUNNEL_DIP(3),
-        P4_SET_MULTICAST_GRP(4),
-        P4_SET_TUNNEL_DECAP(5);
+        P4_SET_TUNNEL_SMAC(0, P4SetTunnelSmac::new),
+        P4_SET_TUNNEL_DMAC(1, P4SetTunnelDmac::new),
+        P4_SET_TUNNEL_SIP(2, P4SetTunnelSIP::new),
+        P4_SET_TUNNEL_DIP(3, P4SetTunnelDIP::new),
+        P4_SET_MULTICAST_GRP(4, P4SetMulticastGRP::new),
+        P4_SET_TUNNEL_DECAP(5, P4SetTunnelDecap::new),
+        P4_SET_VXLAN_ENCAP(6, P4SetVxlanEncap::new);
+
+        // Named types indexed by type code.
+        private static final P4ExtensionTreatmentType[] BY_CODE = byCode();
 
         private ExtensionTreatmentType type;
+        private final Supplier<ExtensionTreatment> factory;
 
         /**
          * Creates a new named extension treatment type.
          *
-         * @param type type code
+         * @param type    type code
+         * @param factory factory of empty extensions of this type
          */
-        P4ExtensionTreatmentType(int type) {
+        P4ExtensionTreatmentType(int type, Supplier<ExtensionTreatment> factory) {
             this.type = new ExtensionTreatmentType(type);
+            this.factory = factory;
+        }
+
+        private static P4ExtensionTreatmentType[] byCode() {
+            int size = 0;
+            for (P4ExtensionTreatmentType named : values()) {
+                size = Math.max(size, named.type.type() + 1);
+            }
+            P4ExtensionTreatmentType[] byCode = new P4ExtensionTreatmentType[size];
+            for (P4ExtensionTreatmentType named : values()) {
+                byCode[named.type.type()] = named;
+            }
+            return byCode;
+        }
+
+        /**
+         * Returns the named type of a type code.
+         *
+         * @param type type code
+         * @return named type, or null if the code is not one of these types
+         */
+        public static P4ExtensionTreatmentType of(int type) {
+            return type >= 0 && type < BY_CODE.length ? BY_CODE[type] : null;
+        }
+
+        /**
+         * Creates an empty extension of this type, to be deserialized.
+         *
+         * @return new extension
+         */
+        public ExtensionTreatment newExtension() {
+            return factory.get();
         }
 
         /**
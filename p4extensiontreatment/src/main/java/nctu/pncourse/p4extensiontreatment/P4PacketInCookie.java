@@ -0,0 +1,70 @@
+package nctu.pncourse.p4extensiontreatment;
+
+import org.onlab.packet.Ip4Address;
+
+/**
+ * Packs the packet-in metadata of vxlan.p4 that has no counterpart in
+ * {@link org.onosproject.net.packet.InboundPacket} into its cookie, so that
+ * the pipeconf can hand it to applications.
+ * <p>
+ * Layout, from the most significant byte: reason (8 bits), VNI (24 bits),
+ * remote VTEP IPv4 address (32 bits, 0 for local hosts).
+ */
+public final class P4PacketInCookie {
+
+    /**
+     * Packet sent to the controller by a send_to_cpu action.
+     */
+    public static final int REASON_PACKET_IN = 0;
+
+    /**
+     * Notification of a source MAC missing from smac_table.
+     */
+    public static final int REASON_LEARN = 1;
+
+    private P4PacketInCookie() {
+    }
+
+    /**
+     * Builds the cookie of a packet-in.
+     *
+     * @param reason    reason the packet was sent to the controller
+     * @param vni       VXLAN network identifier of the packet
+     * @param tunnelSrc remote VTEP address, 0 for local hosts
+     * @return packet-in cookie
+     */
+    public static long cookie(int reason, int vni, int tunnelSrc) {
+        return (long) (reason & 0xff) << 56 | (long) (vni & 0xffffff) << 32 | (tunnelSrc & 0xffffffffL);
+    }
+
+    /**
+     * Returns the reason the packet was sent to the controller.
+     *
+     * @param cookie packet-in cookie
+     * @return reason
+     */
+    public static int reason(long cookie) {
+        return (int) (cookie >>> 56);
+    }
+
+    /**
+     * Returns the VXLAN network identifier of the packet.
+     *
+     * @param cookie packet-in cookie
+     * @return VNI
+     */
+    public static int vni(long cookie) {
+        return (int) (cookie >>> 32) & 0xffffff;
+    }
+
+    /**
+     * Returns the remote VTEP the packet was received from.
+     *
+     * @param cookie packet-in cookie
+     * @return remote VTEP address, or null for local hosts
+     */
+    public static Ip4Address tunnelSrc(long cookie) {
+        int address = (int) cookie;
+        return address == 0 ? null : Ip4Address.valueOf(address);
+    }
+}
@@ -1,5 +1,8 @@
 package nctu.pncourse.p4extensiontreatment;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
 import org.onlab.util.KryoNamespace;
 import org.onosproject.net.flow.AbstractExtension;
 import org.onosproject.net.flow.instructions.ExtensionTreatment;
@@ -8,6 +11,14 @@ import org.onosproject.net.flow.instructions.ExtensionTreatmentType;
 
 import java.util.Objects;
 
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.HEADER_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.SHORT_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.allocate;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.checkHeader;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.getShort;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.isLegacy;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.putShort;
+
 /**
  * Nicira set tunnel destination extension instruction.
  */
@@ -16,9 +27,11 @@ public class P4SetMulticastGRP extends AbstractExtension implements
 
     private short multicastGrp;
 
-    private final KryoNamespace appKryo = new KryoNamespace.Builder()
-            .register(Short.class)
-            .build("P4SetMulticastGRP");
+    // Former per-instance Kryo encoding, only used to read existing payloads.
+    private static final Supplier<KryoNamespace> LEGACY_KRYO = Suppliers.memoize(
+            () -> new KryoNamespace.Builder()
+                    .register(Short.class)
+                    .build("P4SetMulticastGRP"));
 
     /**
      * Creates a new set tunnel destination instruction.
@@ -53,12 +66,18 @@ public class P4SetMulticastGRP extends AbstractExtension implements
 
     @Override
     public void deserialize(byte[] data) {
-        multicastGrp = appKryo.deserialize(data);
+        if (isLegacy(data)) {
+            multicastGrp = LEGACY_KRYO.get().deserialize(data);
+            return;
+        }
+        multicastGrp = getShort(data, checkHeader(data, SHORT_WIDTH));
     }
 
     @Override
     public byte[] serialize() {
-        return appKryo.serialize(multicastGrp);
+        byte[] data = allocate(SHORT_WIDTH);
+        putShort(data, HEADER_WIDTH, multicastGrp);
+        return data;
     }
 
     @Override
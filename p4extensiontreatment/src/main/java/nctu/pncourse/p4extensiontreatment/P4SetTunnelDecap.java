@@ -1,5 +1,8 @@
 package nctu.pncourse.p4extensiontreatment;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
 import org.onlab.util.KryoNamespace;
 import org.onosproject.net.flow.AbstractExtension;
 import org.onosproject.net.flow.instructions.ExtensionTreatment;
@@ -9,6 +12,13 @@ import org.onosproject.net.flow.instructions.ExtensionTreatmentType;
 import java.util.Objects;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.HEADER_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.INT_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.allocate;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.checkHeader;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.getInt;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.isLegacy;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.putInt;
 
 /**
  * Nicira set tunnel destination extension instruction.
@@ -18,9 +28,11 @@ public class P4SetTunnelDecap extends AbstractExtension implements
 
     private int dummyVal;
 
-    private final KryoNamespace appKryo = new KryoNamespace.Builder()
-            .register(Integer.class)
-            .build("P4SetTunnelDecap");
+    // Former per-instance Kryo encoding, only used to read existing payloads.
+    private static final Supplier<KryoNamespace> LEGACY_KRYO = Suppliers.memoize(
+            () -> new KryoNamespace.Builder()
+                    .register(Integer.class)
+                    .build("P4SetTunnelDecap"));
 
     /**
      * Creates a new set tunnel destination instruction.
@@ -56,12 +68,18 @@ public class P4SetTunnelDecap extends AbstractExtension implements
 
     @Override
     public void deserialize(byte[] data) {
-        dummyVal = appKryo.deserialize(data);
+        if (isLegacy(data)) {
+            dummyVal = LEGACY_KRYO.get().deserialize(data);
+            return;
+        }
+        dummyVal = getInt(data, checkHeader(data, INT_WIDTH));
     }
 
     @Override
     public byte[] serialize() {
-        return appKryo.serialize(dummyVal);
+        byte[] data = allocate(INT_WIDTH);
+        putInt(data, HEADER_WIDTH, dummyVal);
+        return data;
     }
 
     @Override
@@ -1,15 +1,21 @@
 package nctu.pncourse.p4extensiontreatment;
 
 import org.onlab.packet.Ip4Address;
-import org.onlab.util.KryoNamespace;
 import org.onosproject.net.flow.AbstractExtension;
 import org.onosproject.net.flow.instructions.ExtensionTreatment;
 import org.onosproject.net.flow.instructions.ExtensionTreatmentType;
-import org.onosproject.store.serializers.MacAddressSerializer;
 
 import java.util.Objects;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.HEADER_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.IP4_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.allocate;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.checkHeader;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.getIp4;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.isLegacy;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.putIp4;
 
 /**
  * Nicira set tunnel destination extension instruction.
@@ -19,11 +25,6 @@ public class P4SetTunnelSIP extends AbstractExtension implements
 
     private Ip4Address tunnelSIP;
 
-    private final KryoNamespace appKryo = new KryoNamespace.Builder()
-            .register(new MacAddressSerializer(), Ip4Address.class)
-            .register(byte[].class)
-            .build("P4SetTunnelSIP");
-
     /**
      * Creates a new set tunnel destination instruction.
      */
@@ -58,12 +59,15 @@ public class P4SetTunnelSIP extends AbstractExtension implements
 
     @Override
     public void deserialize(byte[] data) {
-        tunnelSIP = appKryo.deserialize(data);
+        checkArgument(!isLegacy(data), "Invalid tunnelSIP encoding");
+        tunnelSIP = getIp4(data, checkHeader(data, IP4_WIDTH));
     }
 
     @Override
     public byte[] serialize() {
-        return appKryo.serialize(tunnelSIP);
+        byte[] data = allocate(IP4_WIDTH);
+        putIp4(data, HEADER_WIDTH, tunnelSIP);
+        return data;
     }
 
     @Override
@@ -1,5 +1,8 @@
 package nctu.pncourse.p4extensiontreatment;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
 import org.onlab.packet.MacAddress;
 import org.onlab.util.KryoNamespace;
 import org.onosproject.net.flow.AbstractExtension;
@@ -10,6 +13,13 @@ import org.onosproject.store.serializers.MacAddressSerializer;
 import java.util.Objects;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.HEADER_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.MAC_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.allocate;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.checkHeader;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.getMac;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.isLegacy;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.putMac;
 
 /**
  * Nicira set tunnel destination extension instruction.
@@ -19,10 +29,12 @@ public class P4SetTunnelSmac extends AbstractExtension implements
 
     private MacAddress tunnelSmac;
 
-    private final KryoNamespace appKryo = new KryoNamespace.Builder()
-            .register(new MacAddressSerializer(), MacAddress.class)
-            .register(byte[].class)
-            .build("P4SetTunnelSmac");
+    // Former per-instance Kryo encoding, only used to read existing payloads.
+    private static final Supplier<KryoNamespace> LEGACY_KRYO = Suppliers.memoize(
+            () -> new KryoNamespace.Builder()
+                    .register(new MacAddressSerializer(), MacAddress.class)
+                    .register(byte[].class)
+                    .build("P4SetTunnelSmac"));
 
     /**
      * Creates a new set tunnel destination instruction.
@@ -58,12 +70,18 @@ public class P4SetTunnelSmac extends AbstractExtension implements
 
     @Override
     public void deserialize(byte[] data) {
-        tunnelSmac = appKryo.deserialize(data);
+        if (isLegacy(data)) {
+            tunnelSmac = LEGACY_KRYO.get().deserialize(data);
+            return;
+        }
+        tunnelSmac = getMac(data, checkHeader(data, MAC_WIDTH));
     }
 
     @Override
     public byte[] serialize() {
-        return appKryo.serialize(tunnelSmac);
+        byte[] data = allocate(MAC_WIDTH);
+        putMac(data, HEADER_WIDTH, tunnelSmac);
+        return data;
     }
 
     @Override
@@ -0,0 +1,182 @@
+package nctu.pncourse.p4extensiontreatment;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.flow.AbstractExtension;
+import org.onosproject.net.flow.instructions.ExtensionTreatment;
+import org.onosproject.net.flow.instructions.ExtensionTreatmentType;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.HEADER_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.IP4_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.MAC_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.VNI_WIDTH;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.allocate;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.checkHeader;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.getIp4;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.getMac;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.getVni;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.isLegacy;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.putIp4;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.putMac;
+import static nctu.pncourse.p4extensiontreatment.ExtensionSerializer.putVni;
+
+/**
+ * VXLAN encapsulation extension instruction carrying every parameter of the
+ * vxlan_encap action, i.e. VNI, outer MAC addresses and tunnel endpoints.
+ * <p>
+ * The instruction is serialized as the header of the extension encoding
+ * followed by a fixed 23-byte record (3-byte VNI, 6-byte smac, 6-byte dmac,
+ * 4-byte srcIP, 4-byte dstIP), all in network byte order.
+ */
+public class P4SetVxlanEncap extends AbstractExtension implements
+        ExtensionTreatment {
+
+    public static final int MAX_VNI = (1 << 24) - 1;
+
+    private static final int SERIALIZED_SIZE = VNI_WIDTH + 2 * MAC_WIDTH + 2 * IP4_WIDTH;
+
+    private int vni;
+    private MacAddress tunnelSmac;
+    private MacAddress tunnelDmac;
+    private Ip4Address tunnelSIP;
+    private Ip4Address tunnelDIP;
+
+    /**
+     * Creates a new VXLAN encap instruction.
+     */
+    public P4SetVxlanEncap() {
+        vni = 0;
+        tunnelSmac = null;
+        tunnelDmac = null;
+        tunnelSIP = null;
+        tunnelDIP = null;
+    }
+
+    /**
+     * Creates a new VXLAN encap instruction with the given parameters.
+     *
+     * @param vni        VXLAN network identifier
+     * @param tunnelSmac outer source MAC address
+     * @param tunnelDmac outer destination MAC address
+     * @param tunnelSIP  tunnel source IPv4 address
+     * @param tunnelDIP  tunnel destination IPv4 address
+     */
+    public P4SetVxlanEncap(int vni, MacAddress tunnelSmac, MacAddress tunnelDmac,
+                           Ip4Address tunnelSIP, Ip4Address tunnelDIP) {
+        checkArgument(vni >= 0 && vni <= MAX_VNI, "VNI out of range: %s", vni);
+        this.vni = vni;
+        this.tunnelSmac = checkNotNull(tunnelSmac);
+        this.tunnelDmac = checkNotNull(tunnelDmac);
+        this.tunnelSIP = checkNotNull(tunnelSIP);
+        this.tunnelDIP = checkNotNull(tunnelDIP);
+    }
+
+    /**
+     * Gets the VXLAN network identifier.
+     *
+     * @return VNI
+     */
+    public int vni() {
+        return vni;
+    }
+
+    /**
+     * Gets the outer source MAC address.
+     *
+     * @return tunnel source MAC address
+     */
+    public MacAddress tunnelSmac() {
+        return tunnelSmac;
+    }
+
+    /**
+     * Gets the outer destination MAC address.
+     *
+     * @return tunnel destination MAC address
+     */
+    public MacAddress tunnelDmac() {
+        return tunnelDmac;
+    }
+
+    /**
+     * Gets the tunnel source IPv4 address.
+     *
+     * @return tunnel source IPv4 address
+     */
+    public Ip4Address tunnelSIP() {
+        return tunnelSIP;
+    }
+
+    /**
+     * Gets the tunnel destination IPv4 address.
+     *
+     * @return tunnel destination IPv4 address
+     */
+    public Ip4Address tunnelDIP() {
+        return tunnelDIP;
+    }
+
+    @Override
+    public ExtensionTreatmentType type() {
+        return P4ExtensionTypes.P4ExtensionTreatmentType.P4_SET_VXLAN_ENCAP.type();
+    }
+
+    @Override
+    public void deserialize(byte[] data) {
+        checkArgument(!isLegacy(data), "Invalid VXLAN encap encoding");
+        int offset = checkHeader(data, SERIALIZED_SIZE);
+        vni = getVni(data, offset);
+        tunnelSmac = getMac(data, offset + VNI_WIDTH);
+        tunnelDmac = getMac(data, offset + VNI_WIDTH + MAC_WIDTH);
+        tunnelSIP = getIp4(data, offset + VNI_WIDTH + 2 * MAC_WIDTH);
+        tunnelDIP = getIp4(data, offset + VNI_WIDTH + 2 * MAC_WIDTH + IP4_WIDTH);
+    }
+
+    @Override
+    public byte[] serialize() {
+        byte[] data = allocate(SERIALIZED_SIZE);
+        int offset = putVni(data, HEADER_WIDTH, vni);
+        offset = putMac(data, offset, tunnelSmac);
+        offset = putMac(data, offset, tunnelDmac);
+        offset = putIp4(data, offset, tunnelSIP);
+        putIp4(data, offset, tunnelDIP);
+        return data;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(vni, tunnelSmac, tunnelDmac, tunnelSIP, tunnelDIP);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof P4SetVxlanEncap) {
+            P4SetVxlanEncap that = (P4SetVxlanEncap) obj;
+            return vni == that.vni &&
+                    Objects.equals(tunnelSmac, that.tunnelSmac) &&
+                    Objects.equals(tunnelDmac, that.tunnelDmac) &&
+                    Objects.equals(tunnelSIP, that.tunnelSIP) &&
+                    Objects.equals(tunnelDIP, that.tunnelDIP);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("vni", vni)
+                .add("tunnelSmac", tunnelSmac)
+                .add("tunnelDmac", tunnelDmac)
+                .add("tunnelSIP", tunnelSIP)
+                .add("tunnelDIP", tunnelDIP)
+                .toString();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4extensiontreatment;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.KryoNamespace;
+import org.onosproject.net.flow.instructions.ExtensionTreatment;
+import org.onosproject.store.serializers.MacAddressSerializer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTreatmentType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Tests of the serialization of the P4 extension treatments, in the current
+ * encoding and in the former Kryo one.
+ */
+public class ExtensionSerializerTest {
+
+    private static final MacAddress MAC = MacAddress.valueOf("00:00:00:00:00:0a");
+    private static final Ip4Address SRC_IP = Ip4Address.valueOf("192.168.1.1");
+    private static final Ip4Address DST_IP = Ip4Address.valueOf("192.168.2.1");
+
+    // One extension of every type, with non-default parameters.
+    private static final Map<P4ExtensionTreatmentType, ExtensionTreatment> EXTENSIONS =
+            ImmutableMap.<P4ExtensionTreatmentType, ExtensionTreatment>builder()
+                    .put(P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC, new P4SetTunnelSmac(MAC))
+                    .put(P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC, new P4SetTunnelDmac(MAC))
+                    .put(P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP, new P4SetTunnelSIP(SRC_IP))
+                    .put(P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP, new P4SetTunnelDIP(DST_IP))
+                    .put(P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP, new P4SetMulticastGRP((short) 300))
+                    .put(P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP, new P4SetTunnelDecap(1))
+                    .put(P4ExtensionTreatmentType.P4_SET_VXLAN_ENCAP,
+                         new P4SetVxlanEncap(P4SetVxlanEncap.MAX_VNI, MAC, MAC, SRC_IP, DST_IP))
+                    .build();
+
+    // Decap values of every length of the zigzag varint written by Kryo.
+    private static final List<Integer> DECAP_VALUES = ImmutableList.of(
+            0, 1, -1, 1 << 12, 1 << 13, 100000, (1 << 20) - 1, 1 << 20, Integer.MAX_VALUE, Integer.MIN_VALUE);
+
+    @Test
+    public void everyTypeRoundTrips() {
+        assertEquals("Missing extension types",
+                     P4ExtensionTreatmentType.values().length, EXTENSIONS.size());
+        EXTENSIONS.forEach((named, extension) -> {
+            assertEquals("Wrong type of " + extension, named.type(), extension.type());
+            byte[] data = extension.serialize();
+            assertEquals("Missing marker in " + extension, ExtensionSerializer.MARKER, data[0]);
+            assertEquals("Missing version in " + extension, ExtensionSerializer.VERSION, data[1]);
+
+            ExtensionTreatment decoded = named.newExtension();
+            decoded.deserialize(data);
+            assertEquals(extension, decoded);
+        });
+    }
+
+    @Test
+    public void decapValuesRoundTrip() {
+        for (int value : DECAP_VALUES) {
+            P4SetTunnelDecap decoded = new P4SetTunnelDecap();
+            decoded.deserialize(new P4SetTunnelDecap(value).serialize());
+            assertEquals(value, decoded.dummyVal());
+        }
+    }
+
+    @Test
+    public void legacyMacsDecode() {
+        KryoNamespace kryo = new KryoNamespace.Builder()
+                .register(new MacAddressSerializer(), MacAddress.class)
+                .register(byte[].class)
+                .build("legacy");
+        byte[] data = kryo.serialize(MAC);
+        assertNotEquals(ExtensionSerializer.MARKER, data[0]);
+
+        P4SetTunnelSmac smac = new P4SetTunnelSmac();
+        smac.deserialize(data);
+        assertEquals(MAC, smac.tunnelSmac());
+        P4SetTunnelDmac dmac = new P4SetTunnelDmac();
+        dmac.deserialize(data);
+        assertEquals(MAC, dmac.tunnelDmac());
+    }
+
+    @Test
+    public void legacyMulticastGroupDecodes() {
+        KryoNamespace kryo = new KryoNamespace.Builder().register(Short.class).build("legacy");
+        for (short group : new short[]{0, 1, 300, Short.MAX_VALUE, Short.MIN_VALUE}) {
+            byte[] data = kryo.serialize(group);
+            assertNotEquals(ExtensionSerializer.MARKER, data[0]);
+
+            P4SetMulticastGRP decoded = new P4SetMulticastGRP();
+            decoded.deserialize(data);
+            assertEquals(group, decoded.multicastGrp());
+        }
+    }
+
+    @Test
+    public void legacyDecapDecodes() {
+        KryoNamespace kryo = new KryoNamespace.Builder().register(Integer.class).build("legacy");
+        for (int value : DECAP_VALUES) {
+            byte[] data = kryo.serialize(value);
+            assertNotEquals(ExtensionSerializer.MARKER, data[0]);
+
+            P4SetTunnelDecap decoded = new P4SetTunnelDecap();
+            decoded.deserialize(data);
+            assertEquals(value, decoded.dummyVal());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionIsRejected() {
+        byte[] data = new P4SetMulticastGRP((short) 1).serialize();
+        data[1] = ExtensionSerializer.VERSION + 1;
+        new P4SetMulticastGRP().deserialize(data);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedDataIsRejected() {
+        byte[] data = new P4SetVxlanEncap(1, MAC, MAC, SRC_IP, DST_IP).serialize();
+        new P4SetVxlanEncap().deserialize(Arrays.copyOf(data, data.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unmarkedAddressIsRejected() {
+        // Tunnel IPs never had a working Kryo encoding.
+        new P4SetTunnelSIP().deserialize(SRC_IP.toOctets());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nctu.pncourse.pipeconf;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.packet.InboundPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Inbound packet wrapping the payload of a packet-in without copying it, and
+ * parsing it only when first asked for.
+ * <p>
+ * Packet-ins dropped or rate limited before reaching a handler are never
+ * parsed. Learn notifications are truncated after the Ethernet header and
+ * only that header is parsed.
+ */
+final class LazyInboundPacket implements InboundPacket {
+
+    private static final Logger log = LoggerFactory.getLogger(LazyInboundPacket.class);
+
+    private final ConnectPoint receivedFrom;
+    private final ByteBuffer data;
+    private final Optional<Long> cookie;
+    private final Supplier<Ethernet> parsed;
+
+    /**
+     * Creates a new inbound packet.
+     *
+     * @param receivedFrom connection point the packet was received from
+     * @param data         read-only payload, at least an Ethernet header long
+     * @param cookie       packet-in cookie
+     * @param headerOnly   true to only parse the Ethernet header
+     */
+    LazyInboundPacket(ConnectPoint receivedFrom, ByteBuffer data, long cookie, boolean headerOnly) {
+        this.receivedFrom = receivedFrom;
+        this.data = data;
+        this.cookie = Optional.of(cookie);
+        this.parsed = Suppliers.memoize(headerOnly ? this::parseHeader : this::parse);
+    }
+
+    @Override
+    public ConnectPoint receivedFrom() {
+        return receivedFrom;
+    }
+
+    /**
+     * Returns the parsed packet, parsing it on the first call.
+     *
+     * @return parsed Ethernet frame, or null if it could not be parsed
+     */
+    @Override
+    public Ethernet parsed() {
+        return parsed.get();
+    }
+
+    @Override
+    public ByteBuffer unparsed() {
+        return data.duplicate();
+    }
+
+    @Override
+    public Optional<Long> cookie() {
+        return cookie;
+    }
+
+    // We assume that the packet is ethernet, which is fine since vxlan.p4
+    // can deparse only ethernet packets.
+    private Ethernet parse() {
+        ByteBuffer buffer = data.duplicate();
+        byte[] frame = new byte[buffer.remaining()];
+        buffer.get(frame);
+        try {
+            return Ethernet.deserializer().deserialize(frame, 0, frame.length);
+        } catch (DeserializationException e) {
+            log.debug("Unable to parse packet-in received from {}: {}", receivedFrom, e.getMessage());
+            return null;
+        }
+    }
+
+    private Ethernet parseHeader() {
+        ByteBuffer buffer = data.duplicate();
+        byte[] mac = new byte[MacAddress.MAC_ADDRESS_LENGTH];
+        Ethernet ethPkt = new Ethernet();
+        buffer.get(mac);
+        ethPkt.setDestinationMACAddress(mac);
+        buffer.get(mac);
+        ethPkt.setSourceMACAddress(mac);
+        ethPkt.setEtherType(buffer.getShort());
+        return ethPkt;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("receivedFrom", receivedFrom)
+                .add("length", data.remaining())
+                .add("cookie", cookie.get())
+                .toString();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.Lists;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.driver.AbstractHandlerBehaviour;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.model.PiCounterModel;
+import org.onosproject.net.pi.model.PiPipeconf;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiCounterCell;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.p4runtime.api.P4RuntimeClient;
+import org.onosproject.p4runtime.api.P4RuntimeController;
+import org.onosproject.p4runtime.api.P4RuntimeReadClient.ReadRequest;
+
+import nctu.pncourse.p4extensiontreatment.P4CounterReader;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.onosproject.net.pi.model.PiCounterType.DIRECT;
+
+/**
+ * Implementation of the P4CounterReader behaviour for the vxlan.p4 program,
+ * reading the counters through the P4Runtime client of the device.
+ */
+public final class P4CounterReaderImpl extends AbstractHandlerBehaviour implements P4CounterReader {
+
+    private static final long DEFAULT_P4_DEVICE_ID = 1;
+
+    @Override
+    public CompletableFuture<Collection<PiCounterCell>> readCounters() {
+        DeviceId deviceId = this.data().deviceId();
+        CompletableFuture<Collection<PiCounterCell>> result = new CompletableFuture<>();
+
+        P4RuntimeClient client = handler().get(P4RuntimeController.class).get(deviceId);
+        if (client == null) {
+            result.completeExceptionally(new IllegalStateException("No client for " + deviceId));
+            return result;
+        }
+        Optional<PiPipeconf> pipeconf = handler().get(PiPipeconfService.class).getPipeconf(deviceId);
+        if (!pipeconf.isPresent()) {
+            result.completeExceptionally(new IllegalStateException("No pipeconf for " + deviceId));
+            return result;
+        }
+
+        List<PiCounterId> counterIds = Lists.newArrayList();
+        List<PiTableId> tableIds = Lists.newArrayList();
+        for (PiCounterModel counter : pipeconf.get().pipelineModel().counters()) {
+            if (counter.counterType() == DIRECT) {
+                tableIds.add(counter.table());
+            } else {
+                counterIds.add(counter.id());
+            }
+        }
+        ReadRequest request = client.read(DEFAULT_P4_DEVICE_ID, pipeconf.get());
+        if (!counterIds.isEmpty()) {
+            request.counterCells(counterIds);
+        }
+        if (!tableIds.isEmpty()) {
+            request.directCounterCells(tableIds);
+        }
+        request.submit().whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (!response.isSuccess()) {
+                result.completeExceptionally(new IllegalStateException(response.explanation()));
+            } else {
+                result.complete(response.all(PiCounterCell.class));
+            }
+        });
+        return result;
+    }
+}
@@ -2,6 +2,8 @@ package nctu.pncourse.pipeconf;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
 import org.onosproject.codec.CodecContext;
 import org.onosproject.net.behaviour.ExtensionTreatmentResolver;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
@@ -15,6 +17,10 @@ import nctu.pncourse.p4extensiontreatment.P4SetTunnelDecap;
 import nctu.pncourse.p4extensiontreatment.P4SetTunnelDmac;
 import nctu.pncourse.p4extensiontreatment.P4SetTunnelSIP;
 import nctu.pncourse.p4extensiontreatment.P4SetTunnelSmac;
+import nctu.pncourse.p4extensiontreatment.P4SetVxlanEncap;
+
+import java.util.EnumMap;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.onlab.util.Tools.nullIsIllegal;
@@ -30,62 +36,93 @@ public class P4ExtensionTreatmentInterpreter extends AbstractHandlerBehaviour
     public static final String TUNNEL_DIP = "tunnelDIP";
     public static final String MULTICAST_GRP = "multicastGrp";
     public static final String DUMMY = "dummyVal";
+    public static final String VNI = "vni";
 
     private static final String TYPE = "type";
     private static final String MISSING_MEMBER_MESSAGE = " member is required in NiciraExtensionTreatmentInterpreter";
 
     @Override
     public ExtensionTreatment getExtensionInstruction(ExtensionTreatmentType type) {
-        if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type())) {
-            return new P4SetTunnelSmac();
-        } else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type())) {
-            return new P4SetTunnelDmac();
-        } else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type())) {
-            return new P4SetTunnelSIP();
-        } else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type())) {
-            return new P4SetTunnelDIP();
-        } else if (type.equals(P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP.type())) {
-            return new P4SetMulticastGRP();
-        } else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP.type())) {
-            return new P4SetTunnelDecap();
+        P4ExtensionTreatmentType named = P4ExtensionTreatmentType.of(type.type());
+        if (named != null) {
+            return named.newExtension();
         }
         throw new UnsupportedOperationException("Driver does not support extension type " + type.toString());
     }
 
+    /**
+     * JSON encoding of one extension type.
+     */
+    private interface ExtensionJsonCodec {
+        void encode(ExtensionTreatment extension, ObjectNode root, CodecContext context);
+
+        ExtensionTreatment decode(ObjectNode json, CodecContext context);
+    }
+
+    // Codecs indexed by named extension type.
+    private static final Map<P4ExtensionTreatmentType, ExtensionJsonCodec> CODECS = codecs();
+
+    private static Map<P4ExtensionTreatmentType, ExtensionJsonCodec> codecs() {
+        Map<P4ExtensionTreatmentType, ExtensionJsonCodec> codecs = new EnumMap<>(P4ExtensionTreatmentType.class);
+        codecs.put(P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC, delegate(TUNNEL_SMAC, P4SetTunnelSmac.class));
+        codecs.put(P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC, delegate(TUNNEL_DMAC, P4SetTunnelDmac.class));
+        codecs.put(P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP, delegate(TUNNEL_SIP, P4SetTunnelSIP.class));
+        codecs.put(P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP, delegate(TUNNEL_DIP, P4SetTunnelDIP.class));
+        codecs.put(P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP, delegate(MULTICAST_GRP, P4SetMulticastGRP.class));
+        codecs.put(P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP, delegate(DUMMY, P4SetTunnelDecap.class));
+        codecs.put(P4ExtensionTreatmentType.P4_SET_VXLAN_ENCAP, new ExtensionJsonCodec() {
+            @Override
+            public void encode(ExtensionTreatment extension, ObjectNode root, CodecContext context) {
+                P4SetVxlanEncap vxlanEncap = (P4SetVxlanEncap) extension;
+                root.put(TYPE, vxlanEncap.type().type())
+                        .put(VNI, vxlanEncap.vni())
+                        .put(TUNNEL_SMAC, vxlanEncap.tunnelSmac().toString())
+                        .put(TUNNEL_DMAC, vxlanEncap.tunnelDmac().toString())
+                        .put(TUNNEL_SIP, vxlanEncap.tunnelSIP().toString())
+                        .put(TUNNEL_DIP, vxlanEncap.tunnelDIP().toString());
+            }
+
+            @Override
+            public ExtensionTreatment decode(ObjectNode json, CodecContext context) {
+                return new P4SetVxlanEncap(
+                        nullIsIllegal(json.get(VNI), VNI + MISSING_MEMBER_MESSAGE).asInt(),
+                        MacAddress.valueOf(nullIsIllegal(json.get(TUNNEL_SMAC), TUNNEL_SMAC + MISSING_MEMBER_MESSAGE).asText()),
+                        MacAddress.valueOf(nullIsIllegal(json.get(TUNNEL_DMAC), TUNNEL_DMAC + MISSING_MEMBER_MESSAGE).asText()),
+                        Ip4Address.valueOf(nullIsIllegal(json.get(TUNNEL_SIP), TUNNEL_SIP + MISSING_MEMBER_MESSAGE).asText()),
+                        Ip4Address.valueOf(nullIsIllegal(json.get(TUNNEL_DIP), TUNNEL_DIP + MISSING_MEMBER_MESSAGE).asText()));
+            }
+        });
+        return codecs;
+    }
+
+    // Codec of an extension encoded by the codec registered for its class,
+    // under the given member.
+    private static <T extends ExtensionTreatment> ExtensionJsonCodec delegate(String member, Class<T> clazz) {
+        return new ExtensionJsonCodec() {
+            @Override
+            public void encode(ExtensionTreatment extension, ObjectNode root, CodecContext context) {
+                root.set(member, context.codec(clazz).encode(clazz.cast(extension), context));
+            }
+
+            @Override
+            public ExtensionTreatment decode(ObjectNode json, CodecContext context) {
+                return context.codec(clazz).decode(json, context);
+            }
+        };
+    }
+
     @Override
     public ObjectNode encode(ExtensionTreatment extensionTreatment, CodecContext context) {
         checkNotNull(extensionTreatment, "Extension treatment cannot be null");
-        ExtensionTreatmentType type = extensionTreatment.type();
         ObjectNode root = context.mapper().createObjectNode();
 
-        if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type())) {
-            P4SetTunnelSmac tunnelSmac = (P4SetTunnelSmac) extensionTreatment;
-            root.set(TUNNEL_SMAC, context.codec(P4SetTunnelSmac.class).encode(tunnelSmac, context));
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type())) {
-            P4SetTunnelDmac tunnelDmac = (P4SetTunnelDmac) extensionTreatment;
-            root.set(TUNNEL_DMAC, context.codec(P4SetTunnelDmac.class).encode(tunnelDmac, context));
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type())) {
-            P4SetTunnelSIP tunnelSIP = (P4SetTunnelSIP) extensionTreatment;
-            root.set(TUNNEL_SIP, context.codec(P4SetTunnelSIP.class).encode(tunnelSIP, context));
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type())) {
-            P4SetTunnelDIP tunnelDIP = (P4SetTunnelDIP) extensionTreatment;
-            root.set(TUNNEL_DIP, context.codec(P4SetTunnelDIP.class).encode(tunnelDIP, context));
+        P4ExtensionTreatmentType named = P4ExtensionTreatmentType.of(extensionTreatment.type().type());
+        if (named != null) {
+            CODECS.get(named).encode(extensionTreatment, root, context);
         }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP.type())) {
-            P4SetMulticastGRP multicastGrp = (P4SetMulticastGRP) extensionTreatment;
-            root.set(MULTICAST_GRP, context.codec(P4SetMulticastGRP.class).encode(multicastGrp, context));
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP.type())) {
-            P4SetTunnelDecap tunnelDecap = (P4SetTunnelDecap) extensionTreatment;
-            root.set(DUMMY, context.codec(P4SetTunnelDecap.class).encode(tunnelDecap, context));
-        }
-        
         return root;
     }
-    
+
     @Override
     public ExtensionTreatment decode(ObjectNode json, CodecContext context) {
         if (json == null || !json.isObject()) {
@@ -94,57 +131,12 @@ public class P4ExtensionTreatmentInterpreter extends AbstractHandlerBehaviour
 
         // parse extension type
         int typeInt = nullIsIllegal(json.get(TYPE), TYPE + MISSING_MEMBER_MESSAGE).asInt();
-        ExtensionTreatmentType type = new ExtensionTreatmentType(typeInt);
-
-        if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type())) {
-            return context.codec(P4SetTunnelSmac.class).decode(json, context);
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type())) {
-            return context.codec(P4SetTunnelDmac.class).decode(json, context);
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type())) {
-            return context.codec(P4SetTunnelSIP.class).decode(json, context);
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type())) {
-            return context.codec(P4SetTunnelDIP.class).decode(json, context);
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP.type())) {
-            return context.codec(P4SetMulticastGRP.class).decode(json, context);
-        }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP.type())) {
-            return context.codec(P4SetTunnelDecap.class).decode(json, context);
+        P4ExtensionTreatmentType named = P4ExtensionTreatmentType.of(typeInt);
+        if (named != null) {
+            return CODECS.get(named).decode(json, context);
         }
 
         throw new UnsupportedOperationException(
-                "Driver does not support extension type " + type.toString());
+                "Driver does not support extension type " + new ExtensionTreatmentType(typeInt).toString());
     }
-
-    // public enum P4ExtensionTreatmentType {
-    //     P4_SET_TUNNEL_SMAC(0),
-    //     P4_SET_TUNNEL_DMAC(1),
-    //     P4_SET_TUNNEL_SIP(2),
-    //     P4_SET_TUNNEL_DIP(3),
-    //     P4_SET_MULTICAST_GRP(4),
-    //     P4_SET_TUNNEL_DECAP(5);
-
-    //     private ExtensionTreatmentType type;
-
-    //     /**
-    //      * Creates a new named extension treatment type.
-    //      *
-    //      * @param type type code
-    //      */
-    //     P4ExtensionTreatmentType(int type) {
-    //         this.type = new ExtensionTreatmentType(type);
-    //     }
-
-    //     /**
-    //      * Gets the extension type object for this named type code.
-    //      *
-    //      * @return extension type object
-    //      */
-    //     public ExtensionTreatmentType type() {
-    //         return type;
-    //     }
-    // }
 }
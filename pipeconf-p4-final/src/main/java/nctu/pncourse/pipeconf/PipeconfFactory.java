@@ -16,9 +16,13 @@
 
 package nctu.pncourse.pipeconf;
 
+import org.onosproject.core.CoreService;
 import org.onosproject.driver.pipeline.DefaultSingleTablePipeline;
 import org.onosproject.net.behaviour.ExtensionTreatmentResolver;
 import org.onosproject.net.behaviour.Pipeliner;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.device.PortStatisticsDiscovery;
 import org.onosproject.net.flow.ExtensionTreatmentCodec;
 import org.onosproject.net.pi.model.DefaultPiPipeconf;
@@ -27,7 +31,6 @@ import org.onosproject.net.pi.model.PiPipeconfId;
 import org.onosproject.net.pi.model.PiPipelineInterpreter;
 import org.onosproject.net.pi.model.PiPipelineModel;
 import org.onosproject.net.pi.service.PiPipeconfService;
-import org.onosproject.p4runtime.model.P4InfoParser;
 import org.onosproject.p4runtime.model.P4InfoParserException;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -37,13 +40,22 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nctu.pncourse.p4extensiontreatment.P4CounterReader;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.BMV2_JSON;
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.P4_INFO_TEXT;
 
 /**
- * Component that produces and registers a pipeconf when loaded.
+ * Component that produces and registers a pipeconf when loaded. The pipeline
+ * model is parsed from the p4info on the first activation only, and then
+ * loaded from its cache in the Karaf data directory.
  */
 @Component(immediate = true)
 public final class PipeconfFactory {
@@ -53,15 +65,32 @@ public final class PipeconfFactory {
     public static final PiPipeconfId PIPECONF_ID = new PiPipeconfId("nctu.pncourse.pipeconf");
     private URL P4INFO_URL = PipeconfFactory.class.getResource("/vxlan.p4.p4info.txt");
     private URL BMV2_JSON_URL = PipeconfFactory.class.getResource("/vxlan.json");
+    private static final String CACHE_DIR = "vxlan-pipeconf";
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private PiPipeconfService piPipeconfService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private CoreService coreService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+
     @Activate
     public void activate() {
         // Registers the pipeconf at component activation.
+        long start = System.nanoTime();
+        deviceService.addListener(deviceListener);
+        if (firstChar(P4INFO_URL) == -1 || firstChar(BMV2_JSON_URL) != '{') {
+            log.error("Fail to register {} - Missing or invalid p4info or BMv2 JSON", PIPECONF_ID);
+            return;
+        }
         try {
             piPipeconfService.register(buildPipeconf());
+            log.info("Registered {} in {} ms", PIPECONF_ID,
+                     TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         } catch (P4InfoParserException e) {
             log.error("Fail to register {} - Exception: {} - Cause: {}",
                     PIPECONF_ID, e.getMessage(), e.getCause().getMessage());
@@ -70,17 +99,40 @@ public final class PipeconfFactory {
 
     @Deactivate
     public void deactivate() {
+        deviceService.removeListener(deviceListener);
         // Unregisters the pipeconf at component deactivation.
         try {
             piPipeconfService.unregister(PIPECONF_ID);
         } catch (IllegalStateException e) {
             log.warn("{} haven't been registered", PIPECONF_ID);
         }
+        log.info("Treatment translation cache: {} entries, {}",
+                 PipelineInterpreterImpl.translationCacheSize(), PipelineInterpreterImpl.translationCacheStats());
+    }
+
+    // First non-blank character of a resource, -1 if it is missing, empty
+    // or unreadable.
+    private int firstChar(URL url) {
+        if (url == null) {
+            return -1;
+        }
+        try (InputStream in = url.openStream()) {
+            int c = in.read();
+            while (c != -1 && Character.isWhitespace(c)) {
+                c = in.read();
+            }
+            return c;
+        } catch (IOException e) {
+            log.error("Unable to read {}: {}", url, e.getMessage());
+            return -1;
+        }
     }
 
     private PiPipeconf buildPipeconf() throws P4InfoParserException {
 
-        final PiPipelineModel pipelineModel = P4InfoParser.parse(P4INFO_URL);
+        Path cacheDir = Paths.get(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), CACHE_DIR);
+        final PiPipelineModel pipelineModel = new PipelineModelCache(cacheDir, coreService.version().toString())
+                .load(P4INFO_URL);
 
         return DefaultPiPipeconf.builder()
                 .withId(PIPECONF_ID)
@@ -89,9 +141,24 @@ public final class PipeconfFactory {
                 .addBehaviour(ExtensionTreatmentResolver.class, P4ExtensionTreatmentInterpreter.class)
                 .addBehaviour(ExtensionTreatmentCodec.class, P4ExtensionTreatmentInterpreter.class)
                 .addBehaviour(PortStatisticsDiscovery.class, PortStatisticsDiscoveryImpl.class)
+                .addBehaviour(P4CounterReader.class, P4CounterReaderImpl.class)
                 .addBehaviour(Pipeliner.class, DefaultSingleTablePipeline.class)
                 .addExtension(P4_INFO_TEXT, P4INFO_URL)
                 .addExtension(BMV2_JSON, BMV2_JSON_URL)
                 .build();
     }
+
+    // Drops the state the behaviours keep for the devices removed.
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_REMOVED;
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            PortStatisticsDiscoveryImpl.forget(event.subject().id());
+        }
+    }
 }
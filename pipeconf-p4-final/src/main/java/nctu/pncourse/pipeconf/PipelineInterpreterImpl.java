@@ -16,28 +16,32 @@
 
 package nctu.pncourse.pipeconf;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import org.onlab.packet.DeserializationException;
 import org.onlab.packet.Ethernet;
 import org.onlab.packet.Ip4Address;
 import org.onlab.packet.MacAddress;
 import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
-import org.onosproject.net.flow.instructions.ExtensionPropertyException;
 import org.onosproject.net.flow.instructions.ExtensionTreatment;
 import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flow.instructions.Instructions.ExtensionInstructionWrapper;
+import org.onosproject.net.flow.instructions.Instructions.GroupInstruction;
 import org.onosproject.net.flow.instructions.Instructions.OutputInstruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction.L2SubType;
 import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModEtherInstruction;
 import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModTunnelIdInstruction;
-import org.onosproject.net.packet.DefaultInboundPacket;
 import org.onosproject.net.packet.InboundPacket;
 import org.onosproject.net.packet.OutboundPacket;
 import org.onosproject.net.pi.model.PiActionId;
@@ -51,16 +55,20 @@ import org.onosproject.net.pi.runtime.PiActionParam;
 import org.onosproject.net.pi.runtime.PiPacketMetadata;
 import org.onosproject.net.pi.runtime.PiPacketOperation;
 
+import nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTreatmentType;
+import nctu.pncourse.p4extensiontreatment.P4PacketInCookie;
 import nctu.pncourse.p4extensiontreatment.P4SetMulticastGRP;
 import nctu.pncourse.p4extensiontreatment.P4SetTunnelDIP;
 import nctu.pncourse.p4extensiontreatment.P4SetTunnelDmac;
 import nctu.pncourse.p4extensiontreatment.P4SetTunnelSIP;
 import nctu.pncourse.p4extensiontreatment.P4SetTunnelSmac;
+import nctu.pncourse.p4extensiontreatment.P4SetVxlanEncap;
 
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 
 import static java.lang.String.format;
@@ -69,6 +77,7 @@ import static org.onosproject.net.PortNumber.CONTROLLER;
 import static org.onosproject.net.PortNumber.FLOOD;
 import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
 import static org.onosproject.net.flow.instructions.Instruction.Type.EXTENSION;
+import static org.onosproject.net.flow.instructions.Instruction.Type.GROUP;
 import static org.onosproject.net.flow.instructions.Instruction.Type.L2MODIFICATION;
 import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_OUT;
 
@@ -78,9 +87,22 @@ import static nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTre
 import static nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP;
 import static nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP;
 import static nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP;
+import static nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTreatmentType.P4_SET_VXLAN_ENCAP;
 
 /**
  * Implementation of a pipeline interpreter for the mytunnel.p4 program.
+ * <p>
+ * The actions translated from the treatments of the flow rules are cached.
+ * ONOS creates an interpreter for every call, so the cache is static and
+ * shared by all the devices and interpreters of the process. It is keyed by
+ * treatment and table, compared by value, and keeps at most 65536 entries,
+ * the least recently used ones being evicted first. As a consequence the
+ * cache survives the pipeconf being unregistered and registered again; this
+ * is harmless as long as the table and action names of the translated
+ * actions do not change, i.e. within one build of the pipeconf bundle, which
+ * is reloaded, along with its classes, when vxlan.p4 changes. Its hit and
+ * miss counts are returned by {@link #translationCacheStats()} and logged
+ * when the pipeconf is unregistered.
  */
 public final class PipelineInterpreterImpl
         extends AbstractHandlerBehaviour
@@ -94,25 +116,37 @@ public final class PipelineInterpreterImpl
     private static final String T_DECAP = "decap_table";
     private static final String T_ENCAP = "encap_table";
 	private static final String T_IPV4_FWD = "ipv4_lpm";
+    private static final String T_PORT_VNI = "port_vni";
+    private static final String T_SMAC = "smac_table";
+    private static final String T_FLOOD_ENCAP = "flood_encap";
+    private static final String T_HOST_TUNNEL = "host_tunnel";
+    private static final String T_VNI_STATS = "vni_stats";
     private static final String EGRESS_PORT = "egress_port";
+    private static final String MCAST_GRP = "mcast_grp";
     private static final String INGRESS_PORT = "ingress_port";
+    private static final String REASON = "reason";
+    private static final String VNI = "vni";
+    private static final String TUNNEL_SRC = "tunnel_src";
 	private static final String ETHERNET = "ethernet";
 	private static final String IPV4 = "ipv4";
-	private static final String ARP = "arp";
-    private static final String STANDARD_METADATA = "standard_metadata";
     private static final int PORT_FIELD_BITWIDTH = 9;
+    private static final int MCAST_GRP_FIELD_BITWIDTH = 16;
+    private static final int VNI_FIELD_BITWIDTH = 24;
 
     
-    private static final PiMatchFieldId EGRESS_PORT_ID =
-            PiMatchFieldId.of(STANDARD_METADATA + DOT + "egress_port");
+    private static final PiPacketMetadataId INGRESS_PORT_ID = PiPacketMetadataId.of(INGRESS_PORT);
+    private static final PiPacketMetadataId REASON_ID = PiPacketMetadataId.of(REASON);
+    private static final PiPacketMetadataId VNI_ID = PiPacketMetadataId.of(VNI);
+    private static final PiPacketMetadataId TUNNEL_SRC_ID = PiPacketMetadataId.of(TUNNEL_SRC);
+    private static final PiPacketMetadataId EGRESS_PORT_ID = PiPacketMetadataId.of(EGRESS_PORT);
+    private static final PiPacketMetadataId MCAST_GRP_ID = PiPacketMetadataId.of(MCAST_GRP);
+
     private static final PiMatchFieldId ETH_DST_ID =
             PiMatchFieldId.of(HDR + DOT + ETHERNET + DOT + "dstAddr");
     private static final PiMatchFieldId ETH_TYPE_ID =
             PiMatchFieldId.of(HDR + DOT + ETHERNET + DOT + "etherType");
     private static final PiMatchFieldId IPV4_DST_ID =
             PiMatchFieldId.of(HDR + DOT + IPV4 + DOT + "dstAddr");
-	private static final PiMatchFieldId ARP_PROTO_DST_ID =
-            PiMatchFieldId.of(HDR + DOT + ARP + DOT + "dstProtoAddr");
             
     private static final PiTableId TABLE_L2_FWD_ID =
             PiTableId.of(MY_INGRESS + DOT + T_L2_FWD);
@@ -122,6 +156,16 @@ public final class PipelineInterpreterImpl
 			PiTableId.of(MY_INGRESS + DOT + T_DECAP);
 	private static final PiTableId TABLE_IPV4_FWD_ID =
 			PiTableId.of(MY_INGRESS + DOT + T_IPV4_FWD);
+    private static final PiTableId TABLE_PORT_VNI_ID =
+            PiTableId.of(MY_INGRESS + DOT + T_PORT_VNI);
+    private static final PiTableId TABLE_SMAC_ID =
+            PiTableId.of(MY_INGRESS + DOT + T_SMAC);
+    private static final PiTableId TABLE_FLOOD_ENCAP_ID =
+            PiTableId.of(MY_EGRESS + DOT + T_FLOOD_ENCAP);
+    private static final PiTableId TABLE_HOST_TUNNEL_ID =
+            PiTableId.of(MY_EGRESS + DOT + T_HOST_TUNNEL);
+    private static final PiTableId TABLE_VNI_STATS_ID =
+            PiTableId.of(MY_INGRESS + DOT + T_VNI_STATS);
 
     private static final PiActionId ACT_ID_NOP =
 			PiActionId.of("NoAction");
@@ -159,15 +203,26 @@ public final class PipelineInterpreterImpl
 					.put(1, TABLE_IPV4_FWD_ID)
 					.put(2, TABLE_VXLAN_DECAP_ID)
 					.put(3, TABLE_VXLAN_ENCAP_ID)
+                    .put(4, TABLE_PORT_VNI_ID)
+                    .put(5, TABLE_SMAC_ID)
+                    .put(6, TABLE_FLOOD_ENCAP_ID)
+                    .put(7, TABLE_HOST_TUNNEL_ID)
+                    .put(8, TABLE_VNI_STATS_ID)
                     .build();
 
+    // Translated actions, by treatment and table (see the class javadoc).
+    // ONOS translates a rule on every install and store update.
+    private static final int TRANSLATION_CACHE_SIZE = 65536;
+    private static final Cache<TranslationKey, PiAction> TRANSLATION_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(TRANSLATION_CACHE_SIZE)
+            .recordStats()
+            .build();
+
     private static final Map<Criterion.Type, PiMatchFieldId> CRITERION_MAP =
             ImmutableMap.<Criterion.Type, PiMatchFieldId>builder()
-                    .put(Criterion.Type.IN_PORT, EGRESS_PORT_ID)
                     .put(Criterion.Type.ETH_DST, ETH_DST_ID)
                     .put(Criterion.Type.ETH_TYPE, ETH_TYPE_ID)
 					.put(Criterion.Type.IPV4_DST, IPV4_DST_ID)
-					.put(Criterion.Type.ARP_TPA, ARP_PROTO_DST_ID)
                     .build();
 
     @Override
@@ -180,60 +235,99 @@ public final class PipelineInterpreterImpl
         return Optional.ofNullable(TABLE_MAP.get(flowRuleTableId));
     }
 
-    private PiAction.Builder createExtensionPiAction(PiAction.Builder builder, Instruction instr, PiTableId piTableId) 
-        throws ExtensionPropertyException {
-        ExtensionInstructionWrapper exInstruction = (ExtensionInstructionWrapper) instr;
-        ExtensionTreatment exTreatment = exInstruction.extensionInstruction();
+    /**
+     * Maps an extension instruction to the parameters of the action, and to
+     * the action itself for the extensions selecting one.
+     */
+    private interface ExtensionMapper {
+        void map(ExtensionTreatment extension, PiAction.Builder builder);
+    }
 
-        if(exTreatment.type().equals(P4_SET_TUNNEL_SMAC.type())) {
-            exTreatment = (P4SetTunnelSmac) exTreatment;
-            MacAddress value = (MacAddress) exTreatment.getPropertyValue(P4ExtensionTreatmentInterpreter.TUNNEL_SMAC);
+    // Mappers indexed by extension type code, reading the extension fields
+    // directly rather than through the reflective property accessors.
+    private static final ExtensionMapper[] EXTENSION_MAPPERS = extensionMappers();
 
-            
-            builder.withParameter(new PiActionParam(
-                ACT_PARAM_ID_SMAC, copyFrom(value.toBytes())
-            ));
-        } else if(exTreatment.type().equals(P4_SET_TUNNEL_DMAC.type())) {
-            exTreatment = (P4SetTunnelDmac) exTreatment;
-            MacAddress value = (MacAddress) exTreatment.getPropertyValue(P4ExtensionTreatmentInterpreter.TUNNEL_DMAC);
-            
-            builder.withParameter(new PiActionParam(
-                ACT_PARAM_ID_DMAC, copyFrom(value.toBytes())
-            ));
-        } else if(exTreatment.type().equals(P4_SET_TUNNEL_SIP.type())) {
-            exTreatment = (P4SetTunnelSIP) exTreatment;
-            Ip4Address value = (Ip4Address) exTreatment.getPropertyValue(P4ExtensionTreatmentInterpreter.TUNNEL_SIP);
-            
-            builder.withParameter(new PiActionParam(
-                ACT_PARAM_ID_SIP, copyFrom(value.toOctets())
-            ));
-        } else if(exTreatment.type().equals(P4_SET_TUNNEL_DIP.type())) {
-            exTreatment = (P4SetTunnelDIP) exTreatment;
-            Ip4Address value = (Ip4Address) exTreatment.getPropertyValue(P4ExtensionTreatmentInterpreter.TUNNEL_DIP);
-            
-            
-            builder.withParameter(new PiActionParam(
-                ACT_PARAM_ID_DIP, copyFrom(value.toOctets())
-            ));
-        } else if(exTreatment.type().equals(P4_SET_MULTICAST_GRP.type())) {
-            exTreatment = (P4SetMulticastGRP) exTreatment;
-            short value = (short) exTreatment.getPropertyValue(P4ExtensionTreatmentInterpreter.MULTICAST_GRP);
-            
-            builder.withId(ACT_ID_L2_MULTICAST);
+    private static ExtensionMapper[] extensionMappers() {
+        int size = 0;
+        for (P4ExtensionTreatmentType named : P4ExtensionTreatmentType.values()) {
+            size = Math.max(size, named.type().type() + 1);
+        }
+        ExtensionMapper[] mappers = new ExtensionMapper[size];
+        mappers[P4_SET_TUNNEL_SMAC.type().type()] = (extension, builder) ->
+                builder.withParameter(new PiActionParam(
+                        ACT_PARAM_ID_SMAC, copyFrom(((P4SetTunnelSmac) extension).tunnelSmac().toBytes())));
+        mappers[P4_SET_TUNNEL_DMAC.type().type()] = (extension, builder) ->
+                builder.withParameter(new PiActionParam(
+                        ACT_PARAM_ID_DMAC, copyFrom(((P4SetTunnelDmac) extension).tunnelDmac().toBytes())));
+        mappers[P4_SET_TUNNEL_SIP.type().type()] = (extension, builder) ->
+                builder.withParameter(new PiActionParam(
+                        ACT_PARAM_ID_SIP, copyFrom(((P4SetTunnelSIP) extension).tunnelSIP().toOctets())));
+        mappers[P4_SET_TUNNEL_DIP.type().type()] = (extension, builder) ->
+                builder.withParameter(new PiActionParam(
+                        ACT_PARAM_ID_DIP, copyFrom(((P4SetTunnelDIP) extension).tunnelDIP().toOctets())));
+        mappers[P4_SET_MULTICAST_GRP.type().type()] = (extension, builder) ->
+                builder.withId(ACT_ID_L2_MULTICAST)
+                        .withParameter(new PiActionParam(
+                                ACT_PARAM_ID_GRP, copyFrom(((P4SetMulticastGRP) extension).multicastGrp())));
+        mappers[P4_SET_TUNNEL_DECAP.type().type()] = (extension, builder) ->
+                builder.withId(ACT_ID_VXLAN_DECAP);
+        mappers[P4_SET_VXLAN_ENCAP.type().type()] = (extension, builder) -> {
+            // All the vxlan_encap parameters come with a single instruction.
+            P4SetVxlanEncap encap = (P4SetVxlanEncap) extension;
+            builder.withId(ACT_ID_VXLAN_ENCAP)
+                    .withParameter(new PiActionParam(ACT_PARAM_ID_VNI, copyFrom(encap.vni())))
+                    .withParameter(new PiActionParam(ACT_PARAM_ID_SMAC, copyFrom(encap.tunnelSmac().toBytes())))
+                    .withParameter(new PiActionParam(ACT_PARAM_ID_DMAC, copyFrom(encap.tunnelDmac().toBytes())))
+                    .withParameter(new PiActionParam(ACT_PARAM_ID_SIP, copyFrom(encap.tunnelSIP().toOctets())))
+                    .withParameter(new PiActionParam(ACT_PARAM_ID_DIP, copyFrom(encap.tunnelDIP().toOctets())));
+        };
+        return mappers;
+    }
 
-            builder.withParameter(new PiActionParam(
-                ACT_PARAM_ID_GRP, copyFrom(value)
-            ));
-        } else if (exTreatment.type().equals(P4_SET_TUNNEL_DECAP.type())) {
-            builder.withId(ACT_ID_VXLAN_DECAP);
+    private void mapExtension(PiAction.Builder builder, Instruction instr) throws PiInterpreterException {
+        ExtensionTreatment extension = ((ExtensionInstructionWrapper) instr).extensionInstruction();
+        int type = extension.type().type();
+        ExtensionMapper mapper = type >= 0 && type < EXTENSION_MAPPERS.length ? EXTENSION_MAPPERS[type] : null;
+        if (mapper == null) {
+            throw new PiInterpreterException(format("Extension '%s' not supported", extension.type()));
         }
-        return builder;
+        mapper.map(extension, builder);
     }
 
     @Override
     public PiAction mapTreatment(TrafficTreatment treatment, PiTableId piTableId)
             throws PiInterpreterException {
-        
+        TranslationKey key = new TranslationKey(treatment, piTableId);
+        PiAction action = TRANSLATION_CACHE.getIfPresent(key);
+        if (action == null) {
+            // Failed translations are not cached, they are rare and throw.
+            action = translateTreatment(treatment, piTableId);
+            TRANSLATION_CACHE.put(key, action);
+        }
+        return action;
+    }
+
+    /**
+     * Returns the hit and miss counts of the translation cache shared by the
+     * interpreters.
+     *
+     * @return cache statistics
+     */
+    public static CacheStats translationCacheStats() {
+        return TRANSLATION_CACHE.stats();
+    }
+
+    /**
+     * Returns the number of translated actions in the cache.
+     *
+     * @return number of cached actions
+     */
+    public static long translationCacheSize() {
+        return TRANSLATION_CACHE.size();
+    }
+
+    private PiAction translateTreatment(TrafficTreatment treatment, PiTableId piTableId)
+            throws PiInterpreterException {
         int instructionSize = treatment.allInstructions().size();
         PiAction.Builder piAction = PiAction.builder();
 
@@ -241,21 +335,18 @@ public final class PipelineInterpreterImpl
             // 0 instructions means "NoAction"
             return PiAction.builder().withId(ACT_ID_NOP).build();
         }
+        if (piTableId.equals(TABLE_IPV4_FWD_ID)) {
+            return mapNextHop(treatment);
+        }
 
         for (Instruction instr : treatment.allInstructions()) {
             if (instr.type() == EXTENSION) {
-                try {
-                    piAction = createExtensionPiAction(piAction, instr, piTableId);
-                } catch (ExtensionPropertyException e) {
-                    e.printStackTrace();
-                }
+                mapExtension(piAction, instr);
             } else if (instr.type() == OUTPUT) {
                 OutputInstruction outInstruction = (OutputInstruction) instr;
                 PortNumber port = outInstruction.port();
                 if (!port.isLogical()) {
-                    if(!piTableId.equals(TABLE_IPV4_FWD_ID))
-                        piAction.withId(ACT_ID_SET_OUTPORT);
-                        
+                    piAction.withId(ACT_ID_SET_OUTPORT);
                     piAction.withParameter(new PiActionParam(ACT_PARAM_ID_PORT, copyFrom(port.toLong())));
                 } else if (port.equals(CONTROLLER)) {
                     piAction.withId(ACT_ID_SEND_TO_CPU);
@@ -283,82 +374,172 @@ public final class PipelineInterpreterImpl
         return piAction.build();
     }
 
+    /**
+     * Maps the treatment of a route, or of a bucket of the select group it
+     * points to, to l3_forward. ipv4_lpm is implemented by the ECMP action
+     * selector: ONOS select groups keyed by the selector become action
+     * profile groups and their buckets the members, each of them one next
+     * hop of the route.
+     */
+    private PiAction mapNextHop(TrafficTreatment treatment) throws PiInterpreterException {
+        MacAddress dmac = null;
+        PortNumber port = null;
+        for (Instruction instr : treatment.allInstructions()) {
+            if (instr instanceof ModEtherInstruction &&
+                    ((ModEtherInstruction) instr).subtype() == L2SubType.ETH_DST) {
+                dmac = ((ModEtherInstruction) instr).mac();
+            } else if (instr.type() == OUTPUT) {
+                port = ((OutputInstruction) instr).port();
+            } else {
+                throw new PiInterpreterException(format(
+                        "Instruction '%s' not supported on table '%s'", instr, TABLE_IPV4_FWD_ID));
+            }
+        }
+        if (dmac == null || port == null || port.isLogical()) {
+            throw new PiInterpreterException(format(
+                    "Next hop needs a destination MAC and a physical port: %s", treatment));
+        }
+        return PiAction.builder()
+                .withId(ACT_ID_L3_FWD)
+                .withParameter(new PiActionParam(ACT_PARAM_ID_DMAC, copyFrom(dmac.toBytes())))
+                .withParameter(new PiActionParam(ACT_PARAM_ID_PORT, copyFrom(port.toLong())))
+                .build();
+    }
+
     @Override
     public Collection<PiPacketOperation> mapOutboundPacket(OutboundPacket packet)
             throws PiInterpreterException {
 
         TrafficTreatment treatment = packet.treatment();
 
-        // We support only packet-out with OUTPUT instructions.
-        if (treatment.allInstructions().size() != 1 &&
-                treatment.allInstructions().get(0).type() != OUTPUT) {
+        // We support packet-outs with one or more OUTPUT instructions, or a
+        // single GROUP one, optionally along with the VNI of the packet.
+        List<PortNumber> ports = Lists.newArrayList();
+        GroupInstruction group = null;
+        long vni = 0;
+        for (Instruction instr : treatment.allInstructions()) {
+            if (instr instanceof ModTunnelIdInstruction) {
+                vni = ((ModTunnelIdInstruction) instr).tunnelId();
+            } else if (instr.type() == OUTPUT) {
+                ports.add(((OutputInstruction) instr).port());
+            } else if (instr.type() == GROUP && group == null) {
+                group = (GroupInstruction) instr;
+            } else {
+                ports.clear();
+                group = null;
+                break;
+            }
+        }
+        if (ports.isEmpty() == (group == null)) {
             throw new PiInterpreterException(
                     "Treatment not supported: " + treatment.toString());
         }
 
-        Instruction instruction = treatment.allInstructions().get(0);
-        PortNumber port = ((OutputInstruction) instruction).port();
-        List<PiPacketOperation> piPacketOps = Lists.newArrayList();
-
-        if (!port.isLogical()) {
-            piPacketOps.add(createPiPacketOp(packet.data(), port.toLong()));
-        } else if (port.equals(FLOOD)) {
-            // Since mytunnel.p4 does not support flooding, we create a packet
-            // operation for each switch port.
-            // DeviceService deviceService = handler().get(DeviceService.class);
-            // DeviceId deviceId = packet.sendThrough();
-            // for (Port p : deviceService.getPorts(deviceId)) {
-            //     piPacketOps.add(createPiPacketOp(packet.data(), p.number().toLong()));
-            // }
-            long P4FloodPort = 500;
-            piPacketOps.add(createPiPacketOp(packet.data(), P4FloodPort));
-        } else {
-            throw new PiInterpreterException(format(
-                    "Output on logical port '%s' not supported", port));
+        // The payload is shared by the packet operations of every port.
+        ImmutableByteSequence data = copyFrom(packet.data());
+        PiPacketMetadata vniMetadata = createVniMetadata(vni);
+        if (group != null) {
+            // The multicast group replicates the packet, e.g. the flood
+            // group of a VNI.
+            return ImmutableList.of(createPiPacketOp(
+                    data, createPacketMetadata(0), createGroupMetadata(group.groupId().id()), vniMetadata));
+        }
+
+        PiPacketMetadata noGroup = createGroupMetadata(0);
+        ImmutableList.Builder<PiPacketOperation> piPacketOps = ImmutableList.builder();
+        for (PortNumber port : ports) {
+            if (!port.isLogical()) {
+                // The VNI lets the egress pipeline encapsulate packets sent
+                // to a remote host through the uplink.
+                piPacketOps.add(createPiPacketOp(data, createPacketMetadata(port.toLong()), noGroup, vniMetadata));
+            } else if (port.equals(FLOOD)) {
+                if (vni != 0) {
+                    // Flooding every port would leak the packet to the
+                    // other VNIs.
+                    throw new PiInterpreterException(format(
+                            "Flooding VNI %d requires its flood group", vni));
+                }
+                for (PortNumber floodPort : floodPorts(packet.sendThrough())) {
+                    piPacketOps.add(createPiPacketOp(data, createPacketMetadata(floodPort.toLong()),
+                                                     noGroup, vniMetadata));
+                }
+            } else {
+                throw new PiInterpreterException(format(
+                        "Output on logical port '%s' not supported", port));
+            }
         }
+        return piPacketOps.build();
+    }
 
-        return piPacketOps;
+    // vxlan.p4 does not flood packet-outs itself, we send a copy to every
+    // enabled port of the device.
+    private List<PortNumber> floodPorts(DeviceId deviceId) throws PiInterpreterException {
+        if (handler() == null) {
+            throw new PiInterpreterException("Unable to flood without the ports of the device");
+        }
+        List<PortNumber> ports = Lists.newArrayList();
+        for (Port port : handler().get(DeviceService.class).getPorts(deviceId)) {
+            if (port.isEnabled() && !port.number().isLogical()) {
+                ports.add(port.number());
+            }
+        }
+        return ports;
     }
 
     @Override
     public InboundPacket mapInboundPacket(PiPacketOperation packetIn, DeviceId deviceId)
             throws PiInterpreterException {
-        // We assume that the packet is ethernet, which is fine since mytunnel.p4
-        // can deparse only ethernet packets.
-        Ethernet ethPkt;
-
-        try {
-            ethPkt = Ethernet.deserializer().deserialize(
-                    packetIn.data().asArray(), 0, packetIn.data().size());
-        } catch (DeserializationException dex) {
-            throw new PiInterpreterException(dex.getMessage());
+        ImmutableByteSequence ingressPort = null;
+        int reason = 0;
+        int vni = 0;
+        int tunnelSrc = 0;
+        for (PiPacketMetadata metadata : packetIn.metadatas()) {
+            PiPacketMetadataId id = metadata.id();
+            if (id.equals(INGRESS_PORT_ID)) {
+                ingressPort = metadata.value();
+            } else if (id.equals(REASON_ID)) {
+                reason = toInt(metadata.value());
+            } else if (id.equals(VNI_ID)) {
+                vni = toInt(metadata.value());
+            } else if (id.equals(TUNNEL_SRC_ID)) {
+                tunnelSrc = toInt(metadata.value());
+            }
         }
-
-        // Returns the ingress port packet metadata.
-        Optional<PiPacketMetadata> packetMetadata = packetIn.metadatas().stream()
-                .filter(metadata -> metadata.id().toString().equals(INGRESS_PORT))
-                .findFirst();
-
-        if (packetMetadata.isPresent()) {
-            short s = packetMetadata.get().value().asReadOnlyBuffer().getShort();
-            ConnectPoint receivedFrom = new ConnectPoint(
-                    deviceId, PortNumber.portNumber(s));
-            return new DefaultInboundPacket(
-                    receivedFrom, ethPkt, packetIn.data().asReadOnlyBuffer());
-        } else {
+        if (ingressPort == null) {
             throw new PiInterpreterException(format(
                     "Missing metadata '%s' in packet-in received from '%s': %s",
                     INGRESS_PORT, deviceId, packetIn));
         }
+        ByteBuffer data = packetIn.data().asReadOnlyBuffer();
+        if (data.remaining() < Ethernet.ETHERNET_HEADER_LENGTH) {
+            throw new PiInterpreterException(format(
+                    "Truncated packet-in received from '%s': %s", deviceId, packetIn));
+        }
+
+        // The payload is parsed by the handlers needing it. Learn
+        // notifications are truncated after the Ethernet header, which is
+        // all we decode of them.
+        ConnectPoint receivedFrom = new ConnectPoint(
+                deviceId, PortNumber.portNumber(toInt(ingressPort)));
+        return new LazyInboundPacket(receivedFrom, data, P4PacketInCookie.cookie(reason, vni, tunnelSrc),
+                                     reason == P4PacketInCookie.REASON_LEARN);
     }
 
-    private PiPacketOperation createPiPacketOp(ByteBuffer data, long portNumber)
-            throws PiInterpreterException {
-        PiPacketMetadata metadata = createPacketMetadata(portNumber);
+    private static int toInt(ImmutableByteSequence value) {
+        ByteBuffer buffer = value.asReadOnlyBuffer();
+        int result = 0;
+        while (buffer.hasRemaining()) {
+            result = result << 8 | (buffer.get() & 0xff);
+        }
+        return result;
+    }
+
+    private PiPacketOperation createPiPacketOp(ImmutableByteSequence data, PiPacketMetadata port,
+                                               PiPacketMetadata group, PiPacketMetadata vni) {
         return PiPacketOperation.builder()
                 .withType(PACKET_OUT)
-                .withData(copyFrom(data))
-                .withMetadatas(ImmutableList.of(metadata))
+                .withData(data)
+                .withMetadatas(ImmutableList.of(port, group, vni))
                 .build();
     }
 
@@ -366,7 +547,7 @@ public final class PipelineInterpreterImpl
             throws PiInterpreterException {
         try {
             return PiPacketMetadata.builder()
-                    .withId(PiPacketMetadataId.of(EGRESS_PORT))
+                    .withId(EGRESS_PORT_ID)
                     .withValue(copyFrom(portNumber).fit(PORT_FIELD_BITWIDTH))
                     .build();
         } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
@@ -374,4 +555,57 @@ public final class PipelineInterpreterImpl
                     "Port number %d too big, %s", portNumber, e.getMessage()));
         }
     }
+
+    private PiPacketMetadata createVniMetadata(long vni)
+            throws PiInterpreterException {
+        try {
+            return PiPacketMetadata.builder()
+                    .withId(VNI_ID)
+                    .withValue(copyFrom(vni).fit(VNI_FIELD_BITWIDTH))
+                    .build();
+        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+            throw new PiInterpreterException(format(
+                    "VNI %d too big, %s", vni, e.getMessage()));
+        }
+    }
+
+    private PiPacketMetadata createGroupMetadata(int groupId)
+            throws PiInterpreterException {
+        try {
+            return PiPacketMetadata.builder()
+                    .withId(MCAST_GRP_ID)
+                    .withValue(copyFrom(groupId).fit(MCAST_GRP_FIELD_BITWIDTH))
+                    .build();
+        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+            throw new PiInterpreterException(format(
+                    "Multicast group %d too big, %s", groupId, e.getMessage()));
+        }
+    }
+
+    private static final class TranslationKey {
+        private final TrafficTreatment treatment;
+        private final PiTableId tableId;
+
+        private TranslationKey(TrafficTreatment treatment, PiTableId tableId) {
+            this.treatment = treatment;
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TranslationKey)) {
+                return false;
+            }
+            TranslationKey that = (TranslationKey) obj;
+            return treatment.equals(that.treatment) && tableId.equals(that.tableId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(treatment, tableId);
+        }
+    }
 }
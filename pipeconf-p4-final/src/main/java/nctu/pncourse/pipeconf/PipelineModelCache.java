@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nctu.pncourse.pipeconf;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+
+import org.onlab.util.KryoNamespace;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.model.PiCounterModel;
+import org.onosproject.net.pi.model.PiCounterType;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.model.PiMatchType;
+import org.onosproject.net.pi.model.PiMeterId;
+import org.onosproject.net.pi.model.PiMeterModel;
+import org.onosproject.net.pi.model.PiMeterType;
+import org.onosproject.net.pi.model.PiPacketMetadataId;
+import org.onosproject.net.pi.model.PiPacketOperationType;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.net.pi.model.PiRegisterId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.model.PiTableType;
+import org.onosproject.p4runtime.model.P4InfoParser;
+import org.onosproject.p4runtime.model.P4InfoParserException;
+import org.onosproject.store.serializers.ImmutableListSerializer;
+import org.onosproject.store.serializers.ImmutableMapSerializer;
+import org.onosproject.store.serializers.ImmutableSetSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Pipeline model of a p4info, kept in a cache file once parsed.
+ * <p>
+ * Parsing the p4info text format takes most of the time of the pipeconf
+ * registration, the first time mostly loading the protobuf classes. The
+ * parsed model is serialized with Kryo, in a file named after the hash of
+ * the p4info, of the ONOS version and of the cache format, so that a file
+ * is never read for another p4info or by another version of the model
+ * classes. A cache file that cannot be read is ignored and the p4info
+ * parsed again.
+ */
+final class PipelineModelCache {
+
+    // Bump when the classes registered below change.
+    private static final int FORMAT_VERSION = 1;
+    private static final String PREFIX = "vxlan-pipeline-";
+    private static final String SUFFIX = ".kryo";
+    // Implementations of the model built by P4InfoParser.
+    private static final String[] MODEL_CLASSES = {
+            "P4PipelineModel", "P4TableModel", "P4ActionModel", "P4ActionParamModel",
+            "P4ActionProfileModel", "P4CounterModel", "P4MeterModel", "P4RegisterModel",
+            "P4MatchFieldModel", "P4PacketOperationModel", "P4PacketMetadataModel",
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(PipelineModelCache.class);
+
+    private static final Supplier<KryoNamespace> KRYO = Suppliers.memoize(PipelineModelCache::namespace);
+
+    private final Path directory;
+    private final String version;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory directory of the cache files
+     * @param version   version of ONOS the model classes belong to
+     */
+    PipelineModelCache(Path directory, String version) {
+        this.directory = directory;
+        this.version = version;
+    }
+
+    /**
+     * Returns the pipeline model of a p4info, from the cache if it holds
+     * it, parsing it and caching the result otherwise.
+     *
+     * @param p4InfoUrl p4info in text format
+     * @return pipeline model
+     * @throws P4InfoParserException if the p4info cannot be read or parsed
+     */
+    PiPipelineModel load(URL p4InfoUrl) throws P4InfoParserException {
+        byte[] p4Info;
+        try {
+            p4Info = Resources.toByteArray(p4InfoUrl);
+        } catch (IOException e) {
+            // Let the parser report the error.
+            return P4InfoParser.parse(p4InfoUrl);
+        }
+        Path file = directory.resolve(PREFIX + key(p4Info) + SUFFIX);
+
+        if (Files.isRegularFile(file)) {
+            try {
+                PiPipelineModel model = KRYO.get().deserialize(Files.readAllBytes(file));
+                log.debug("Loaded pipeline model from {}", file);
+                return model;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Ignoring unreadable pipeline model cache {}: {}", file, e.getMessage());
+            }
+        }
+
+        PiPipelineModel model = P4InfoParser.parse(p4InfoUrl);
+        store(file, model);
+        return model;
+    }
+
+    private String key(byte[] p4Info) {
+        return Hashing.sha256().newHasher()
+                .putBytes(p4Info)
+                .putString(version, UTF_8)
+                .putInt(FORMAT_VERSION)
+                .hash().toString();
+    }
+
+    // Writes through a temporary file so that concurrent readers never see
+    // a partial file, and removes the files of the former p4infos.
+    private void store(Path file, PiPipelineModel model) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+                for (Path path : stale) {
+                    Files.deleteIfExists(path);
+                }
+            }
+            tmp = Files.createTempFile(directory, PREFIX, ".tmp");
+            Files.write(tmp, KRYO.get().serialize(model));
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Cached pipeline model in {}", file);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to cache the pipeline model in {}: {}", file, e.getMessage());
+        } finally {
+            deleteQuietly(tmp);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.debug("Unable to delete {}: {}", path, e.getMessage());
+        }
+    }
+
+    private static KryoNamespace namespace() {
+        KryoNamespace.Builder builder = KryoNamespace.newBuilder()
+                .register(new ImmutableMapSerializer(), ImmutableMap.class, ImmutableMap.of().getClass(),
+                          ImmutableMap.of(1, 1).getClass(), ImmutableMap.of(1, 1, 2, 2).getClass())
+                .register(new ImmutableListSerializer(), ImmutableList.class, ImmutableList.of().getClass(),
+                          ImmutableList.of(1).getClass(), ImmutableList.of(1, 2).getClass())
+                .register(new ImmutableSetSerializer(), ImmutableSet.class, ImmutableSet.of().getClass(),
+                          ImmutableSet.of(1).getClass(), ImmutableSet.of(1, 2).getClass())
+                .register(PiTableId.class, PiActionId.class, PiActionParamId.class,
+                          PiActionProfileId.class, PiCounterId.class, PiMeterId.class,
+                          PiRegisterId.class, PiMatchFieldId.class, PiPacketMetadataId.class,
+                          PiTableType.class, PiCounterType.class, PiCounterModel.Unit.class,
+                          PiMeterType.class, PiMeterModel.Unit.class, PiMatchType.class,
+                          PiPacketOperationType.class);
+        for (String name : MODEL_CLASSES) {
+            try {
+                builder.register(Class.forName(P4InfoParser.class.getPackage().getName() + "." + name));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown pipeline model class " + name, e);
+            }
+        }
+        return builder.build("PipelineModelCache");
+    }
+}
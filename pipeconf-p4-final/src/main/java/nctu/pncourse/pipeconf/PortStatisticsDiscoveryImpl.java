@@ -16,9 +16,12 @@
 
 package nctu.pncourse.pipeconf;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
 import org.onosproject.net.device.DefaultPortStatistics;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.device.PortStatistics;
@@ -27,19 +30,19 @@ import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.pi.model.PiCounterId;
 import org.onosproject.net.pi.model.PiPipeconf;
 import org.onosproject.net.pi.runtime.PiCounterCell;
-import org.onosproject.net.pi.runtime.PiCounterCellHandle;
-import org.onosproject.net.pi.runtime.PiCounterCellId;
 import org.onosproject.net.pi.service.PiPipeconfService;
 import org.onosproject.p4runtime.api.P4RuntimeClient;
 import org.onosproject.p4runtime.api.P4RuntimeController;
+import org.onosproject.p4runtime.api.P4RuntimeReadClient.ReadResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.onosproject.net.pi.model.PiCounterType.INDIRECT;
 
@@ -47,6 +50,15 @@ import static org.onosproject.net.pi.model.PiCounterType.INDIRECT;
  * Implementation of the PortStatisticsDiscovery behaviour for the mytunnel.p4
  * program. This behaviour works by using a P4Runtime client to read the values
  * of the ingress/egress port counters defined in the P4 program.
+ * <p>
+ * Both counters are fetched with a single wildcard read, submitted without
+ * waiting for the response, so that polling many devices does not hold the
+ * threads of the caller. The statistics returned by a poll are hence the
+ * ones of the previous read, i.e. lag one polling interval behind the
+ * device, and the first poll of a device returns no statistics. No poll
+ * waits for the device, even one not answering. The ports of every device
+ * are cached until ports are added or removed, and the state of a device is
+ * dropped once it is removed (see {@link #forget(DeviceId)}).
  */
 public final class PortStatisticsDiscoveryImpl extends AbstractHandlerBehaviour implements PortStatisticsDiscovery {
 
@@ -55,6 +67,20 @@ public final class PortStatisticsDiscoveryImpl extends AbstractHandlerBehaviour
     private static final long DEFAULT_P4_DEVICE_ID = 1;
     private static final PiCounterId INGRESS_COUNTER_ID = PiCounterId.of("rx_port_counter");
     private static final PiCounterId EGRESS_COUNTER_ID = PiCounterId.of("tx_port_counter");
+    private static final List<PiCounterId> COUNTER_IDS = ImmutableList.of(INGRESS_COUNTER_ID, EGRESS_COUNTER_ID);
+
+    // Behaviour instances are created per call, the state of the devices
+    // is kept across polls here.
+    private static final Map<DeviceId, DeviceCounters> DEVICES = Maps.newConcurrentMap();
+
+    /**
+     * Drops the counters kept for a device, e.g. because it was removed.
+     *
+     * @param deviceId device identifier
+     */
+    static void forget(DeviceId deviceId) {
+        DEVICES.remove(deviceId);
+    }
 
     @Override
     public Collection<PortStatistics> discoverPortStatistics() {
@@ -67,69 +93,118 @@ public final class PortStatisticsDiscoveryImpl extends AbstractHandlerBehaviour
         P4RuntimeClient client = controller.get(deviceId);
         if (client == null) {
             log.warn("Unable to find client for {}, aborting operation", deviceId);
+            DEVICES.remove(deviceId);
             return Collections.emptyList();
         }
 
         // Get the pipeconf of this device.
         PiPipeconfService piPipeconfService = handler().get(PiPipeconfService.class);
-        if (!piPipeconfService.getPipeconf(deviceId).isPresent()) {
+        Optional<PiPipeconf> pipeconf = piPipeconfService.getPipeconf(deviceId);
+        if (!pipeconf.isPresent()) {
             log.warn("Unable to get the pipeconf of {}, aborting operation", deviceId);
+            DEVICES.remove(deviceId);
             return Collections.emptyList();
         }
-        PiPipeconf pipeconf = piPipeconfService.getPipeconf(deviceId).get();
-
-        // Prepare PortStatistics objects to return, one per port of this device.
-        Map<Long, DefaultPortStatistics.Builder> portStatBuilders = Maps.newHashMap();
-        deviceService
-                .getPorts(deviceId)
-                .forEach(p -> portStatBuilders.put(p.number().toLong(),
-                                                   DefaultPortStatistics.builder()
-                                                           .setPort(p.number())
-                                                           .setDeviceId(deviceId)));
-
-        // Generate the counter cell IDs.
-        Set<PiCounterCellId> counterCellIds = Sets.newHashSet();
-        portStatBuilders.keySet().forEach(p -> {
-            // Counter cell/index = port number.
-            counterCellIds.add(PiCounterCellId.ofIndirect(INGRESS_COUNTER_ID, p));
-            counterCellIds.add(PiCounterCellId.ofIndirect(EGRESS_COUNTER_ID, p));
-        });
-        Set<PiCounterCellHandle> counterCellHandles = counterCellIds.stream()
-                .map(id -> PiCounterCellHandle.of(deviceId, id))
-                .collect(Collectors.toSet());
-
-        // Query the device.
-        Collection<PiCounterCell> counterEntryResponse = client.read(
-                DEFAULT_P4_DEVICE_ID, pipeconf)
-                .handles(counterCellHandles).submitSync()
-                .all(PiCounterCell.class);
-
-        // Process response.
-        counterEntryResponse.forEach(counterCell -> {
-            if (counterCell.cellId().counterType() != INDIRECT) {
-                log.warn("Invalid counter data type {}, skipping", counterCell.cellId().counterType());
+
+        DeviceCounters counters = DEVICES.computeIfAbsent(deviceId, DeviceCounters::new);
+        counters.updatePorts(deviceService.getPorts(deviceId));
+
+        // Query the device, unless the previous read is still pending, and
+        // return the statistics of the last completed read.
+        counters.read(client, pipeconf.get());
+        return counters.statistics;
+    }
+
+    /**
+     * Port counters of a device, as of the last read.
+     */
+    private static final class DeviceCounters {
+
+        private final DeviceId deviceId;
+        private final AtomicBoolean reading = new AtomicBoolean();
+
+        // Ports by counter index, i.e. port number.
+        private volatile Map<Long, PortNumber> ports = ImmutableMap.of();
+        private volatile Collection<PortStatistics> statistics = ImmutableList.of();
+
+        private DeviceCounters(DeviceId deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        // Submits a read unless one is pending.
+        private void read(P4RuntimeClient client, PiPipeconf pipeconf) {
+            if (!reading.compareAndSet(false, true)) {
                 return;
             }
-            if (!portStatBuilders.containsKey(counterCell.cellId().index())) {
-                log.warn("Unrecognized counter index {}, skipping", counterCell);
+            try {
+                client.read(DEFAULT_P4_DEVICE_ID, pipeconf)
+                        .counterCells(COUNTER_IDS)
+                        .submit()
+                        .whenComplete((response, error) -> {
+                            try {
+                                update(response, error);
+                            } finally {
+                                reading.set(false);
+                            }
+                        });
+            } catch (RuntimeException e) {
+                reading.set(false);
+                log.warn("Unable to read the port counters of {}: {}", deviceId, e.getMessage());
+            }
+        }
+
+        private void updatePorts(List<Port> devicePorts) {
+            Map<Long, PortNumber> current = ports;
+            boolean changed = devicePorts.size() != current.size();
+            for (int i = 0; !changed && i < devicePorts.size(); i++) {
+                changed = !current.containsKey(devicePorts.get(i).number().toLong());
+            }
+            if (changed) {
+                ImmutableMap.Builder<Long, PortNumber> builder = ImmutableMap.builder();
+                devicePorts.forEach(p -> builder.put(p.number().toLong(), p.number()));
+                ports = builder.build();
+            }
+        }
+
+        private void update(ReadResponse response, Throwable error) {
+            if (error != null || !response.isSuccess()) {
+                log.warn("Unable to read the port counters of {}: {}", deviceId,
+                         error != null ? error.getMessage() : response.explanation());
                 return;
             }
-            DefaultPortStatistics.Builder statsBuilder = portStatBuilders.get(counterCell.cellId().index());
-            if (counterCell.cellId().counterId().equals(INGRESS_COUNTER_ID)) {
-                statsBuilder.setPacketsReceived(counterCell.data().packets());
-                statsBuilder.setBytesReceived(counterCell.data().bytes());
-            } else if (counterCell.cellId().counterId().equals(EGRESS_COUNTER_ID)) {
-                statsBuilder.setPacketsSent(counterCell.data().packets());
-                statsBuilder.setBytesSent(counterCell.data().bytes());
-            } else {
-                log.warn("Unrecognized counter ID {}, skipping", counterCell);
+
+            // Prepare PortStatistics objects to return, one per port of this device.
+            Map<Long, PortNumber> indexes = ports;
+            Map<Long, DefaultPortStatistics.Builder> portStatBuilders = Maps.newHashMapWithExpectedSize(indexes.size());
+            indexes.forEach((index, port) -> portStatBuilders.put(index, DefaultPortStatistics.builder()
+                    .setPort(port)
+                    .setDeviceId(deviceId)));
+
+            // Process response. Cells of indexes that are not ports of the
+            // device are expected from the wildcard read and skipped.
+            for (PiCounterCell counterCell : response.all(PiCounterCell.class)) {
+                if (counterCell.cellId().counterType() != INDIRECT) {
+                    log.warn("Invalid counter data type {}, skipping", counterCell.cellId().counterType());
+                    continue;
+                }
+                DefaultPortStatistics.Builder statsBuilder = portStatBuilders.get(counterCell.cellId().index());
+                if (statsBuilder == null) {
+                    continue;
+                }
+                if (counterCell.cellId().counterId().equals(INGRESS_COUNTER_ID)) {
+                    statsBuilder.setPacketsReceived(counterCell.data().packets());
+                    statsBuilder.setBytesReceived(counterCell.data().bytes());
+                } else if (counterCell.cellId().counterId().equals(EGRESS_COUNTER_ID)) {
+                    statsBuilder.setPacketsSent(counterCell.data().packets());
+                    statsBuilder.setBytesSent(counterCell.data().bytes());
+                } else {
+                    log.warn("Unrecognized counter ID {}, skipping", counterCell);
+                }
             }
-        });
 
-        return portStatBuilders
-                .values()
-                .stream()
-                .map(DefaultPortStatistics.Builder::build)
-                .collect(Collectors.toList());
+            ImmutableList.Builder<PortStatistics> result = ImmutableList.builder();
+            portStatBuilders.values().forEach(b -> result.add(b.build()));
+            statistics = result.build();
+        }
     }
 }
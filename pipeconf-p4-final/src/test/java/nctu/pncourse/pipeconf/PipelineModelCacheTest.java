@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.p4runtime.model.P4InfoParser;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Tests of the cache of the pipeline model.
+ */
+public class PipelineModelCacheTest {
+
+    private static final URL P4INFO_URL = PipelineModelCacheTest.class.getResource("/vxlan.p4.p4info.txt");
+    private static final String VERSION = "2.2.0";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("cache");
+        PiPipelineModel parsed = new PipelineModelCache(directory, VERSION).load(P4INFO_URL);
+        assertNotNull(cacheFile(directory));
+
+        // A new cache, as after a restart, reads the file.
+        PiPipelineModel cached = new PipelineModelCache(directory, VERSION).load(P4INFO_URL);
+        assertNotSame(parsed, cached);
+        assertEquals(parsed, cached);
+        assertEquals(P4InfoParser.parse(P4INFO_URL), cached);
+    }
+
+    @Test
+    public void unreadableFile() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PiPipelineModel parsed = new PipelineModelCache(directory, VERSION).load(P4INFO_URL);
+        Files.write(cacheFile(directory).toPath(), new byte[]{1, 2, 3});
+
+        // Parsed again, and cached again.
+        assertEquals(parsed, new PipelineModelCache(directory, VERSION).load(P4INFO_URL));
+        assertEquals(parsed, new PipelineModelCache(directory, VERSION).load(P4INFO_URL));
+    }
+
+    private static File cacheFile(Path directory) {
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(".kryo"));
+        return files != null && files.length == 1 ? files[0] : null;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.Resources;
+import com.google.protobuf.TextFormat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import p4.config.v1.P4InfoOuterClass.Action;
+import p4.config.v1.P4InfoOuterClass.ActionProfile;
+import p4.config.v1.P4InfoOuterClass.ActionRef;
+import p4.config.v1.P4InfoOuterClass.Counter;
+import p4.config.v1.P4InfoOuterClass.DirectCounter;
+import p4.config.v1.P4InfoOuterClass.MatchField;
+import p4.config.v1.P4InfoOuterClass.P4Info;
+import p4.config.v1.P4InfoOuterClass.Preamble;
+import p4.config.v1.P4InfoOuterClass.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the p4info and the BMv2 JSON of the pipeconf describe the
+ * same program, and that the p4info ids are the ones p4c assigns.
+ */
+public class PipelineResourcesTest {
+
+    private static P4Info p4Info;
+    private static Map<String, JsonNode> jsonTables = new HashMap<>();
+    private static Map<String, List<JsonNode>> jsonActions = new HashMap<>();
+    private static Map<String, JsonNode> jsonCounters = new HashMap<>();
+    private static Set<String> jsonActionProfiles = new HashSet<>();
+
+    @BeforeClass
+    public static void load() throws IOException {
+        P4Info.Builder builder = P4Info.newBuilder();
+        TextFormat.getParser().merge(Resources.toString(
+                PipelineResourcesTest.class.getResource("/vxlan.p4.p4info.txt"), UTF_8), builder);
+        p4Info = builder.build();
+
+        JsonNode json = new ObjectMapper().readTree(PipelineResourcesTest.class.getResource("/vxlan.json"));
+        for (JsonNode pipeline : json.path("pipelines")) {
+            pipeline.path("tables").forEach(table -> jsonTables.put(table.path("name").asText(), table));
+            pipeline.path("action_profiles").forEach(
+                    profile -> jsonActionProfiles.add(profile.path("name").asText()));
+        }
+        json.path("actions").forEach(action -> jsonActions.computeIfAbsent(
+                action.path("name").asText(), name -> new ArrayList<>()).add(action));
+        json.path("counter_arrays").forEach(counter -> jsonCounters.put(counter.path("name").asText(), counter));
+    }
+
+    // p4c derives an id from the resource type and the low 16 bits of the
+    // Jenkins one-at-a-time hash of the fully qualified name.
+    private static long p4cId(int prefix, String name) {
+        int hash = 0;
+        for (byte b : name.getBytes(UTF_8)) {
+            hash += b & 0xff;
+            hash += hash << 10;
+            hash ^= hash >>> 6;
+        }
+        hash += hash << 3;
+        hash ^= hash >>> 11;
+        hash += hash << 15;
+        return ((long) prefix << 24) | (hash & 0xffff);
+    }
+
+    private static void assertP4cId(Preamble preamble) {
+        assertEquals("id of " + preamble.getName(),
+                     p4cId(preamble.getId() >>> 24, preamble.getName()), preamble.getId());
+    }
+
+    private static String name(int id) {
+        for (Action action : p4Info.getActionsList()) {
+            if (action.getPreamble().getId() == id) {
+                return action.getPreamble().getName();
+            }
+        }
+        for (Table table : p4Info.getTablesList()) {
+            if (table.getPreamble().getId() == id) {
+                return table.getPreamble().getName();
+            }
+        }
+        throw new AssertionError("Unknown p4info id " + id);
+    }
+
+    @Test
+    public void tables() {
+        for (Table table : p4Info.getTablesList()) {
+            String name = table.getPreamble().getName();
+            assertP4cId(table.getPreamble());
+            JsonNode jsonTable = jsonTables.get(name);
+            assertNotNull("No table " + name + " in the BMv2 JSON", jsonTable);
+            assertEquals("size of " + name, table.getSize(), jsonTable.path("max_size").asLong());
+
+            List<String> keys = new ArrayList<>();
+            jsonTable.path("key").forEach(key -> keys.add(
+                    key.path("name").asText() + "/" + key.path("match_type").asText()));
+            List<String> matchFields = new ArrayList<>();
+            for (MatchField field : table.getMatchFieldsList()) {
+                matchFields.add(field.getName() + "/" + field.getMatchType().name().toLowerCase());
+            }
+            assertEquals("keys of " + name, matchFields, keys);
+
+            Set<String> actions = new HashSet<>();
+            jsonTable.path("actions").forEach(action -> actions.add(action.asText()));
+            Set<String> actionRefs = new HashSet<>();
+            for (ActionRef ref : table.getActionRefsList()) {
+                actionRefs.add(name(ref.getId()));
+            }
+            assertEquals("actions of " + name, actionRefs, actions);
+            assertEquals("counters of " + name, table.getDirectResourceIdsCount() > 0,
+                         jsonTable.path("with_counters").asBoolean());
+        }
+    }
+
+    @Test
+    public void actions() {
+        for (Action action : p4Info.getActionsList()) {
+            String name = action.getPreamble().getName();
+            assertP4cId(action.getPreamble());
+            List<JsonNode> instances = jsonActions.get(name);
+            assertNotNull("No action " + name + " in the BMv2 JSON", instances);
+
+            List<String> params = new ArrayList<>();
+            action.getParamsList().forEach(param -> params.add(param.getName() + "/" + param.getBitwidth()));
+            for (JsonNode instance : instances) {
+                List<String> runtimeData = new ArrayList<>();
+                instance.path("runtime_data").forEach(data -> runtimeData.add(
+                        data.path("name").asText() + "/" + data.path("bitwidth").asInt()));
+                assertEquals("parameters of " + name, params, runtimeData);
+            }
+        }
+    }
+
+    @Test
+    public void counters() {
+        for (Counter counter : p4Info.getCountersList()) {
+            String name = counter.getPreamble().getName();
+            assertP4cId(counter.getPreamble());
+            JsonNode jsonCounter = jsonCounters.get(name);
+            assertNotNull("No counter " + name + " in the BMv2 JSON", jsonCounter);
+            assertTrue(name + " is direct in the BMv2 JSON", !jsonCounter.path("is_direct").asBoolean());
+            assertEquals("size of " + name, counter.getSize(), jsonCounter.path("size").asLong());
+        }
+        for (DirectCounter counter : p4Info.getDirectCountersList()) {
+            String name = counter.getPreamble().getName();
+            assertP4cId(counter.getPreamble());
+            JsonNode jsonCounter = jsonCounters.get(name);
+            assertNotNull("No counter " + name + " in the BMv2 JSON", jsonCounter);
+            assertEquals("table of " + name, name(counter.getDirectTableId()),
+                         jsonCounter.path("binding").asText());
+        }
+    }
+
+    @Test
+    public void actionProfiles() {
+        for (ActionProfile profile : p4Info.getActionProfilesList()) {
+            String name = profile.getPreamble().getName();
+            assertP4cId(profile.getPreamble());
+            assertTrue("No action profile " + name + " in the BMv2 JSON", jsonActionProfiles.contains(name));
+            for (int tableId : profile.getTableIdsList()) {
+                assertEquals("action profile of " + name(tableId), name,
+                             jsonTables.get(name(tableId)).path("action_profile").asText());
+            }
+        }
+    }
+}
@@ -16,9 +16,11 @@
 package nctu.pncourse.vxlan;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
+import org.onlab.packet.Ethernet;
 import org.onlab.packet.Ip4Address;
-import org.onlab.packet.IpAddress;
 import org.onlab.packet.IpPrefix;
 import org.onlab.packet.MacAddress;
 import org.onosproject.cfg.ComponentConfigService;
@@ -26,19 +28,24 @@ import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
-import org.onosproject.net.behaviour.ExtensionTreatmentResolver;
-import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.config.ConfigFactory;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigRegistry;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.DriverService;
-import org.onosproject.net.flow.DefaultFlowRule;
-import org.onosproject.net.flow.DefaultTrafficSelector;
-import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleService;
-import org.onosproject.net.flow.TrafficSelector;
-import org.onosproject.net.flow.TrafficTreatment;
-import org.onosproject.net.flow.instructions.ExtensionPropertyException;
-import org.onosproject.net.flow.instructions.ExtensionTreatment;
-import org.onosproject.net.flow.instructions.ExtensionTreatmentType;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkListener;
+import org.onosproject.net.link.LinkService;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketService;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogService;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -49,29 +56,69 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import nctu.pncourse.p4extensiontreatment.P4PacketInCookie;
+
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_BURST;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_BURST_DEFAULT;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_QUEUE_SIZE;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_QUEUE_SIZE_DEFAULT;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_RATE;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_RATE_DEFAULT;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_WORKERS;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.PACKET_IN_WORKERS_DEFAULT;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.COUNTER_POLL_INTERVAL;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.COUNTER_POLL_INTERVAL_DEFAULT;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.RECONCILE_INTERVAL;
+import static nctu.pncourse.vxlan.OsgiPropertyConstants.RECONCILE_INTERVAL_DEFAULT;
 import static org.onlab.util.Tools.get;
-
-import nctu.pncourse.p4extensiontreatment.P4ExtensionTypes.P4ExtensionTreatmentType;
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onosproject.net.config.basics.SubjectFactories.APP_SUBJECT_FACTORY;
 
 /**
- * Skeletal ONOS application component.
+ * VXLAN overlay application. Flow rules are derived from the "vxlan" network
+ * configuration and only the difference with the rules already installed is
+ * pushed to the devices, as one staged batch per device, whenever the
+ * configuration changes. Hosts missing from the configuration are learned
+ * from the notifications of the VTEPs, which are processed by a pool of
+ * workers with per-device rate limiting. ARP requests are trapped and
+ * answered by the controller instead of being flooded across the overlay.
+ * Underlay routes towards the VTEPs are computed from the topology and only
+ * the ones affected by a link event are recomputed. Devices are programmed
+ * in parallel, each as soon as it is available with its pipeline deployed,
+ * whether it connects before or after the app starts. The forwarding tables
+ * of the devices are audited periodically and repaired when they drift from
+ * the rules pushed, and their counters are polled to track the rates of the
+ * ports and of the forwarding entries, and the traffic of every tenant and
+ * tunnel.
  */
 @Component(immediate = true,
-           service = {SomeInterface.class},
+           service = {SomeInterface.class, VxlanTrafficService.class},
            property = {
                "someProperty=Some Default String Value",
+               PACKET_IN_WORKERS + ":Integer=" + PACKET_IN_WORKERS_DEFAULT,
+               PACKET_IN_QUEUE_SIZE + ":Integer=" + PACKET_IN_QUEUE_SIZE_DEFAULT,
+               PACKET_IN_RATE + ":Integer=" + PACKET_IN_RATE_DEFAULT,
+               PACKET_IN_BURST + ":Integer=" + PACKET_IN_BURST_DEFAULT,
+               RECONCILE_INTERVAL + ":Integer=" + RECONCILE_INTERVAL_DEFAULT,
+               COUNTER_POLL_INTERVAL + ":Integer=" + COUNTER_POLL_INTERVAL_DEFAULT,
            })
-public class AppComponent implements SomeInterface {
+public class AppComponent implements SomeInterface, VxlanTrafficService {
 
-    public static final String TUNNEL_SMAC = "tunnelSmac";
-    public static final String TUNNEL_DMAC = "tunnelDmac";
-    public static final String TUNNEL_SIP = "tunnelSIP";
-    public static final String TUNNEL_DIP = "tunnelDIP";
-    public static final String MULTICAST_GRP = "multicastGrp";
-    public static final String DUMMY = "dummyVal";
+    // Number of devices programmed at once.
+    private static final int DEVICE_WORKERS = 8;
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -80,6 +127,24 @@ public class AppComponent implements SomeInterface {
     /** Some configurable property. */
     private String someProperty;
 
+    /** Number of threads processing the packet-ins. */
+    private int packetInWorkers = PACKET_IN_WORKERS_DEFAULT;
+
+    /** Number of packet-ins that can wait for a worker. */
+    private int packetInQueueSize = PACKET_IN_QUEUE_SIZE_DEFAULT;
+
+    /** Packet-ins admitted per second from each device. */
+    private int packetInRate = PACKET_IN_RATE_DEFAULT;
+
+    /** Packet-ins a device may send at once above its rate. */
+    private int packetInBurst = PACKET_IN_BURST_DEFAULT;
+
+    /** Average number of seconds between two audits of the devices. */
+    private int reconcileInterval = RECONCILE_INTERVAL_DEFAULT;
+
+    /** Number of seconds between two counter reads of an idle device. */
+    private int counterPollInterval = COUNTER_POLL_INTERVAL_DEFAULT;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected ComponentConfigService cfgService;
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
@@ -88,22 +153,120 @@ public class AppComponent implements SomeInterface {
     protected DriverService driverService;
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected FlowRuleService flowRuleService;
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected NetworkConfigRegistry networkConfigRegistry;
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected GroupService groupService;
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected PacketService packetService;
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected LinkService linkService;
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected DeviceService deviceService;
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected PiPipeconfWatchdogService watchdogService;
+
+    private final ConfigFactory<ApplicationId, VxlanConfig> vxlanConfigFactory =
+            new ConfigFactory<ApplicationId, VxlanConfig>(
+                    APP_SUBJECT_FACTORY, VxlanConfig.class, VxlanConfig.CONFIG_KEY) {
+                @Override
+                public VxlanConfig createConfig() {
+                    return new VxlanConfig();
+                }
+            };
+
+    private final NetworkConfigListener configListener = new InternalConfigListener();
+    private final LinkListener linkListener = new InternalLinkListener();
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final PacketInPipeline.Handler learnHandler = new LearnHandler();
+
+    // Rules pushed by this app, used as the baseline of the next diff.
+    private final Map<DeviceId, Set<FlowRule>> installedRules = Maps.newConcurrentMap();
+    // Rules derived from the configuration, regenerated on config events only.
+    private volatile Map<DeviceId, Set<FlowRule>> configRules = Collections.emptyMap();
+
+    private TreatmentCache treatmentCache;
+    private VxlanRuleGenerator ruleGenerator;
+    private FlowRuleInstaller flowRuleInstaller;
+    private MacLearner macLearner;
+    private ArpProxy arpProxy;
+    private FloodGroupManager floodGroupManager;
+    private UnderlayRouter underlayRouter;
+    private EcmpGroupManager ecmpGroupManager;
+    private TunnelManager tunnelManager;
+    // Configured routes, by device.
+    private volatile Map<DeviceId, Set<UnderlayRoute>> configRoutes = Collections.emptyMap();
+    private ExecutorService eventExecutor;
+    private ScheduledExecutorService learnExecutor;
+    private ScheduledExecutorService reconcileExecutor;
+    private FlowRuleReconciler flowRuleReconciler;
+    private ScheduledExecutorService counterExecutor;
+    private volatile CounterMonitor counterMonitor;
+    private TrafficAccounting trafficAccounting;
+    private DeviceProgrammer deviceProgrammer;
+    private PacketInPipeline packetInPipeline;
 
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         cfgService.registerProperties(getClass());
         appId = coreService.registerApplication("nctu.pncourse.vxlan");
+        treatmentCache = new TreatmentCache();
+        tunnelManager = new TunnelManager();
+        ruleGenerator = new VxlanRuleGenerator(appId, treatmentCache, tunnelManager);
+        trafficAccounting = new TrafficAccounting(tunnelManager, () -> counterMonitor);
+        flowRuleInstaller = new FlowRuleInstaller(flowRuleService);
+        eventExecutor = Executors.newSingleThreadExecutor(groupedThreads("onos/vxlan", "event-%d", log));
+        learnExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("onos/vxlan", "learn-%d", log));
+        macLearner = new MacLearner(appId, ruleGenerator, flowRuleInstaller, groupService, learnExecutor);
+        macLearner.start();
+        arpProxy = new ArpProxy(packetService, this::reachesRemoteHost);
+        floodGroupManager = new FloodGroupManager(appId, groupService);
+        underlayRouter = new UnderlayRouter();
+        ecmpGroupManager = new EcmpGroupManager(appId, groupService);
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor(
+                groupedThreads("onos/vxlan", "reconcile-%d", log));
+        counterExecutor = Executors.newSingleThreadScheduledExecutor(
+                groupedThreads("onos/vxlan", "counters-%d", log));
+        deviceProgrammer = new DeviceProgrammer(deviceService, watchdogService, this::programDevice, DEVICE_WORKERS);
+        deviceProgrammer.start();
+        modified(context);
+        startPacketInPipeline();
+        startReconciler();
+        startCounterMonitor();
+
+        networkConfigRegistry.registerConfigFactory(vxlanConfigFactory);
+        networkConfigRegistry.addListener(configListener);
+        linkService.addListener(linkListener);
+        deviceService.addListener(deviceListener);
+        eventExecutor.execute(this::updateTopology);
+        eventExecutor.execute(this::updateOverlay);
         log.info("Started");
-        flowRuleForS1();
-        flowRuleForS2();
-        flowRuleForS3();
     }
 
     @Deactivate
     protected void deactivate() {
         cfgService.unregisterProperties(getClass(), false);
-        log.info("Stopped");
+        stopPacketInPipeline();
+        stopReconciler();
+        stopCounterMonitor();
+        deviceService.removeListener(deviceListener);
+        linkService.removeListener(linkListener);
+        networkConfigRegistry.removeListener(configListener);
+        networkConfigRegistry.unregisterConfigFactory(vxlanConfigFactory);
+        eventExecutor.shutdownNow();
+        deviceProgrammer.stop();
+        learnExecutor.shutdownNow();
+        reconcileExecutor.shutdownNow();
+        counterExecutor.shutdownNow();
+        macLearner.stop();
+        floodGroupManager.clear();
+        arpProxy.clear();
         flowRuleService.removeFlowRulesById(appId);
+        ecmpGroupManager.clear();
+        tunnelManager.clear();
+        installedRules.clear();
+        treatmentCache.clear();
+        log.info("Stopped");
     }
 
     @Modified
@@ -112,389 +275,343 @@ public class AppComponent implements SomeInterface {
         if (context != null) {
             someProperty = get(properties, "someProperty");
         }
+        int workers = positive(properties, PACKET_IN_WORKERS, packetInWorkers);
+        int queueSize = positive(properties, PACKET_IN_QUEUE_SIZE, packetInQueueSize);
+        int rate = positive(properties, PACKET_IN_RATE, packetInRate);
+        int burst = positive(properties, PACKET_IN_BURST, packetInBurst);
+        if (workers != packetInWorkers || queueSize != packetInQueueSize ||
+                rate != packetInRate || burst != packetInBurst) {
+            packetInWorkers = workers;
+            packetInQueueSize = queueSize;
+            packetInRate = rate;
+            packetInBurst = burst;
+            synchronized (this) {
+                if (packetInPipeline != null) {
+                    stopPacketInPipeline();
+                    startPacketInPipeline();
+                }
+            }
+        }
+        int interval = positive(properties, RECONCILE_INTERVAL, reconcileInterval);
+        if (interval != reconcileInterval) {
+            reconcileInterval = interval;
+            synchronized (this) {
+                if (flowRuleReconciler != null) {
+                    stopReconciler();
+                    startReconciler();
+                }
+            }
+        }
+        int pollInterval = positive(properties, COUNTER_POLL_INTERVAL, counterPollInterval);
+        if (pollInterval != counterPollInterval) {
+            counterPollInterval = pollInterval;
+            synchronized (this) {
+                if (counterMonitor != null) {
+                    stopCounterMonitor();
+                    startCounterMonitor();
+                }
+            }
+        }
         log.info("Reconfigured");
     }
 
+    private int positive(Dictionary<?, ?> properties, String name, int current) {
+        int value = getIntegerProperty(properties, name, current);
+        if (value <= 0) {
+            log.warn("Ignoring invalid {}: {}", name, value);
+            return current;
+        }
+        return value;
+    }
+
+    private void startPacketInPipeline() {
+        packetInPipeline = new PacketInPipeline(packetInWorkers, packetInQueueSize,
+                                                packetInRate, packetInBurst);
+        packetInPipeline.addHandler(learnHandler);
+        packetInPipeline.addHandler(arpProxy);
+        packetInPipeline.start();
+        packetService.addProcessor(packetInPipeline, PacketProcessor.director(2));
+    }
+
+    private void stopPacketInPipeline() {
+        packetService.removeProcessor(packetInPipeline);
+        packetInPipeline.stop();
+        log.info("Packet-in stats: {}, dropped per device: {}",
+                 packetInPipeline, packetInPipeline.droppedCounts());
+    }
+
+    private void startReconciler() {
+        flowRuleReconciler = new FlowRuleReconciler(appId, driverService, flowRuleInstaller,
+                                                     this::desiredRules, reconcileExecutor,
+                                                     TimeUnit.SECONDS.toMillis(reconcileInterval));
+        flowRuleReconciler.start();
+    }
+
+    private void stopReconciler() {
+        flowRuleReconciler.stop();
+        log.info("Flow rule audit stats: {}", flowRuleReconciler);
+    }
+
+    private void startCounterMonitor() {
+        counterMonitor = new CounterMonitor(driverService, () -> ImmutableSet.copyOf(installedRules.keySet()),
+                                            counterExecutor, TimeUnit.SECONDS.toMillis(counterPollInterval));
+        counterMonitor.start();
+    }
+
+    private void stopCounterMonitor() {
+        counterMonitor.stop();
+        log.info("Counter polling stats: {}", counterMonitor);
+    }
+
+    // Rules pushed from the configuration and the topology, and the ones of
+    // the learned hosts.
+    private Map<DeviceId, Set<FlowRule>> desiredRules() {
+        Map<DeviceId, Set<FlowRule>> rules = Maps.newHashMap();
+        installedRules.forEach((deviceId, deviceRules) -> rules.put(deviceId, Sets.newHashSet(deviceRules)));
+        macLearner.learnedRules().forEach((deviceId, deviceRules) -> rules
+                .computeIfAbsent(deviceId, d -> Sets.newHashSet()).addAll(deviceRules));
+        return rules;
+    }
+
+    // Whether the rules sending the traffic of a remote host through the
+    // tunnel it was seen coming from have been pushed to its VTEP.
+    private boolean reachesRemoteHost(Vtep vtep, long vni, MacAddress mac, Ip4Address remoteIp) {
+        Set<FlowRule> rules = ruleGenerator.remoteHostRules(vtep, mac, vni, remoteIp);
+        if (rules.isEmpty()) {
+            return false;
+        }
+        DeviceId deviceId = vtep.deviceId();
+        return Sets.union(installedRules.getOrDefault(deviceId, ImmutableSet.of()),
+                          macLearner.learnedRules().getOrDefault(deviceId, ImmutableSet.of()))
+                .containsAll(rules);
+    }
+
     @Override
     public void someMethod() {
         log.info("Invoked");
     }
 
-    private void flowRuleForS1() {
-        TrafficSelector.Builder selector;
-        TrafficTreatment.Builder treatment;
-        FlowRule.Builder rule;
-        DeviceId deviceId;
-        long tunnelId = 30;
-        int priority = 40005;
-        
-        int table_l2_fwd = 0;
-        int table_ipv4_fwd = 1;
-        int table_vxlan_decap = 2;
-        int table_vxlan_encap = 3;
-
-        // Switch 1
-        deviceId = DeviceId.deviceId("device:bmv2:s1");
-        // VXLAN ENCAP
-        selector = DefaultTrafficSelector.builder()
-                                    .matchIPDst(IpPrefix.valueOf("10.0.1.64/26"))
-                                    .matchInPort(PortNumber.fromString("3"));
-        treatment = DefaultTrafficTreatment.builder();
-
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type(), TUNNEL_SMAC, MacAddress.valueOf("00:00:00:00:00:01"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type(), TUNNEL_DMAC, MacAddress.valueOf("00:00:00:00:00:02"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type(), TUNNEL_SIP, Ip4Address.valueOf("192.168.1.1"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type(), TUNNEL_DIP, Ip4Address.valueOf("192.169.1.2"));
-        treatment.setTunnelId(tunnelId);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_vxlan_encap)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // VXLAN ENCAP
-        selector = DefaultTrafficSelector.builder()
-                        .matchArpTpa(Ip4Address.valueOf("10.0.1.64"))
-                        .matchInPort(PortNumber.fromString("3"));
-        treatment = DefaultTrafficTreatment.builder();
-
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type(), TUNNEL_SMAC, MacAddress.valueOf("00:00:00:00:00:01"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type(), TUNNEL_DMAC, MacAddress.valueOf("00:00:00:00:00:02"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type(), TUNNEL_SIP, Ip4Address.valueOf("192.168.1.1"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type(), TUNNEL_DIP, Ip4Address.valueOf("192.169.1.2"));
-        treatment.setTunnelId(tunnelId);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_vxlan_encap)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // VXLAN DECAP
-        selector = DefaultTrafficSelector.builder().matchIPDst(IpPrefix.valueOf("192.168.1.1/32"));
-        treatment = DefaultTrafficTreatment.builder();
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP.type(), DUMMY, 1);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_vxlan_decap)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // L2 Multicast
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("ff:ff:ff:ff:ff:ff"));
-        treatment = DefaultTrafficTreatment.builder();
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP.type(), MULTICAST_GRP, (short) 1);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // Send to Host 1
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("00:00:00:00:00:01"));
-        treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.fromString("1"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // Send to Host 2
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("00:00:00:00:00:02"));
-        treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.fromString("2"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // Send to Host 3
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("00:00:00:00:00:03"));
-        treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.fromString("3"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
+    @Override
+    public Map<Long, TrafficStats> vniTraffic() {
+        return trafficAccounting.vniTraffic();
+    }
+
+    @Override
+    public Map<Long, TrafficStats> vniTraffic(DeviceId deviceId) {
+        return trafficAccounting.vniTraffic(deviceId);
+    }
+
+    @Override
+    public Map<DeviceId, Map<Ip4Address, TrafficStats>> tunnelTraffic() {
+        return trafficAccounting.tunnelTraffic();
+    }
+
+    @Override
+    public Map<Ip4Address, TrafficStats> tunnelTraffic(DeviceId deviceId) {
+        return trafficAccounting.tunnelTraffic(deviceId);
+    }
+
+    /**
+     * Brings the devices in line with the current overlay configuration,
+     * touching only the flow rules that differ from the installed ones.
+     */
+    private synchronized void updateOverlay() {
+        VxlanConfig config = networkConfigRegistry.getConfig(appId, VxlanConfig.class);
+        Map<DeviceId, Map<Long, List<PortNumber>>> floodLists = config == null ?
+                Collections.emptyMap() : ruleGenerator.floodLists(config);
+        Set<Long> vnis = Sets.newHashSet();
+        floodLists.values().forEach(lists -> vnis.addAll(lists.keySet()));
+        Map<Long, Integer> floodGroups = floodGroupManager.allocate(vnis);
+        Set<Vtep> vteps = config == null ? ImmutableSet.of() : config.vteps();
+        tunnelManager.update(config == null ? Collections.emptyMap() : ruleGenerator.tunnels(config),
+                             Maps.transformValues(floodLists, Map::keySet));
+        configRules = config == null ?
+                Collections.emptyMap() : ruleGenerator.generate(config, floodGroups);
+        Map<DeviceId, Set<UnderlayRoute>> routes = Maps.newHashMap();
+        if (config != null) {
+            config.routes().forEach(route -> routes.computeIfAbsent(
+                    route.deviceId(), d -> Sets.newHashSet()).add(route));
+        }
+        Set<DeviceId> devices = Sets.newHashSet(Sets.union(routes.keySet(), configRoutes.keySet()));
+        configRoutes = routes;
+        macLearner.updateVteps(vteps);
+        arpProxy.update(vteps, config == null ? ImmutableSet.of() : config.hosts(), floodGroups, floodLists);
+        floodGroupManager.update(floodLists);
+        devices.addAll(underlayRouter.setVteps(vteps));
+        devices.addAll(configRules.keySet());
+        devices.addAll(installedRules.keySet());
+        applyRules(devices);
+        log.debug("Packet-in stats: {}, ARP proxy stats: {}", packetInPipeline, arpProxy);
+    }
+
+    /**
+     * Recomputes the underlay routes from the whole topology.
+     */
+    private synchronized void updateTopology() {
+        applyRules(underlayRouter.setLinks(linkService.getActiveLinks()));
+    }
+
+    /**
+     * Reacts to a link event, recomputing and pushing only the underlay
+     * routes of the destinations it affects.
+     *
+     * @param event link event
+     */
+    private synchronized void updateLink(LinkEvent event) {
+        Set<DeviceId> devices;
+        switch (event.type()) {
+            case LINK_ADDED:
+                devices = underlayRouter.linkAdded(event.subject());
+                break;
+            case LINK_REMOVED:
+                devices = underlayRouter.linkRemoved(event.subject());
+                break;
+            default:
+                return;
+        }
+        log.debug("{} affects the routes of {}, {} path trees computed so far",
+                  event.subject(), devices, underlayRouter.recomputations());
+        applyRules(devices);
+    }
+
+    /**
+     * Queues the update of the given devices on their workers.
+     *
+     * @param devices devices to update
+     */
+    private void applyRules(Set<DeviceId> devices) {
+        if (!devices.isEmpty()) {
+            deviceProgrammer.submit(devices);
+        }
+    }
+
+    /**
+     * Pushes the difference between the desired and the installed rules of a
+     * device. Configured routes take precedence over the computed ones with
+     * the same prefix; routes with several next hops are spread over them by
+     * the ECMP selector. Runs on the worker of the device.
+     *
+     * @param deviceId device to update
+     * @param full     true to push all the rules of the device again
+     */
+    private void programDevice(DeviceId deviceId, boolean full) {
+        if (full) {
+            // The device may have restarted, nothing is known to be installed.
+            installedRules.remove(deviceId);
+            macLearner.reinstall(deviceId);
+        }
+        Set<FlowRule> desired = Sets.newHashSet(configRules.getOrDefault(deviceId, ImmutableSet.of()));
+        ecmpGroupManager.update(deviceId, routes(deviceId)).forEach(
+                (prefix, groupId) -> desired.add(ruleGenerator.routeRule(deviceId, prefix, groupId)));
+        FlowRuleDiff diff = FlowRuleDiff.compute(
+                installedRules.getOrDefault(deviceId, ImmutableSet.of()), desired);
+        if (diff.isEmpty()) {
+            ecmpGroupManager.prune(deviceId);
+            return;
+        }
+        log.info("Updating {}: {}", deviceId, diff);
+
+        // Record the rules optimistically so that the next diff builds on
+        // them; roll back if the batch fails so the next update retries it.
+        Set<FlowRule> previous = installedRules.getOrDefault(deviceId, ImmutableSet.of());
+        Set<FlowRule> submitted = ImmutableSet.copyOf(desired);
+        record(deviceId, previous, submitted);
+        flowRuleInstaller.install(deviceId, diff).thenAccept(success -> {
+            if (success) {
+                // Groups are removed once no route points to them.
+                ecmpGroupManager.prune(deviceId);
+            } else {
+                record(deviceId, submitted, previous);
+            }
+        });
+        log.debug("Flow rule install stats: {}, device programming stats: {}",
+                  flowRuleInstaller, deviceProgrammer);
     }
 
-    private void flowRuleForS2() {
-        TrafficSelector.Builder selector;
-        TrafficTreatment.Builder treatment;
-        FlowRule.Builder rule;
-        DeviceId deviceId = DeviceId.deviceId("device:bmv2:s2");
-        int priority = 40005;
-        int table_ipv4_fwd = 1;
-
-        // L3 Forward to S3
-        selector = DefaultTrafficSelector.builder().matchIPDst(IpPrefix.valueOf("192.169.1.2/32"));
-        treatment = DefaultTrafficTreatment.builder()
-                                           .setEthDst(MacAddress.valueOf("00:00:00:00:00:03"))
-                                           .setOutput(PortNumber.fromString("2"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_ipv4_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // L3 Forward to S1
-        selector = DefaultTrafficSelector.builder().matchIPDst(IpPrefix.valueOf("192.168.1.1/32"));
-        treatment = DefaultTrafficTreatment.builder()
-                                           .setEthDst(MacAddress.valueOf("00:00:00:00:00:01"))
-                                           .setOutput(PortNumber.fromString("1"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_ipv4_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
+    // Configured routes of a device, and the computed ones to other prefixes.
+    private Set<UnderlayRoute> routes(DeviceId deviceId) {
+        Set<UnderlayRoute> routes = Sets.newHashSet(configRoutes.getOrDefault(deviceId, ImmutableSet.of()));
+        Set<IpPrefix> configured = routes.stream().map(UnderlayRoute::prefix).collect(Collectors.toSet());
+        underlayRouter.routes(deviceId).stream()
+                .filter(route -> !configured.contains(route.prefix()))
+                .forEach(routes::add);
+        return routes;
     }
 
-    private void flowRuleForS3() {
-        TrafficSelector.Builder selector;
-        TrafficTreatment.Builder treatment;
-        FlowRule.Builder rule;
-        DeviceId deviceId;
-        long tunnelId = 30;
-        int priority = 40005;
-        
-        int table_l2_fwd = 0;
-        int table_ipv4_fwd = 1;
-        int table_vxlan_decap = 2;
-        int table_vxlan_encap = 3;
-
-        // Switch 1
-        deviceId = DeviceId.deviceId("device:bmv2:s3");
-        // VXLAN ENCAP
-        selector = DefaultTrafficSelector.builder()
-                                    .matchIPDst(IpPrefix.valueOf("10.0.1.0/26"))
-                                    .matchInPort(PortNumber.fromString("2"));
-        treatment = DefaultTrafficTreatment.builder();
-
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type(), TUNNEL_SMAC, MacAddress.valueOf("00:00:00:00:00:03"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type(), TUNNEL_DMAC, MacAddress.valueOf("00:00:00:00:00:02"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type(), TUNNEL_SIP, Ip4Address.valueOf("192.169.1.2"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type(), TUNNEL_DIP, Ip4Address.valueOf("192.168.1.1"));
-        treatment.setTunnelId(tunnelId);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_vxlan_encap)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // ARP VXLAN ENCAP (To Host1)
-        selector = DefaultTrafficSelector.builder()
-                        .matchArpTpa(Ip4Address.valueOf("10.0.1.1"))
-                        .matchInPort(PortNumber.fromString("2"));
-        treatment = DefaultTrafficTreatment.builder();
-
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type(), TUNNEL_SMAC, MacAddress.valueOf("00:00:00:00:00:03"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type(), TUNNEL_DMAC, MacAddress.valueOf("00:00:00:00:00:02"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type(), TUNNEL_SIP, Ip4Address.valueOf("192.169.1.2"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type(), TUNNEL_DIP, Ip4Address.valueOf("192.168.1.1"));
-        treatment.setTunnelId(tunnelId);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_vxlan_encap)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // ARP VXLAN ENCAP (To Host2)
-        selector = DefaultTrafficSelector.builder()
-                        .matchArpTpa(Ip4Address.valueOf("10.0.1.2"))
-                        .matchInPort(PortNumber.fromString("2"));
-        treatment = DefaultTrafficTreatment.builder();
-
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type(), TUNNEL_SMAC, MacAddress.valueOf("00:00:00:00:00:03"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type(), TUNNEL_DMAC, MacAddress.valueOf("00:00:00:00:00:02"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_SIP.type(), TUNNEL_SIP, Ip4Address.valueOf("192.169.1.2"));
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DIP.type(), TUNNEL_DIP, Ip4Address.valueOf("192.168.1.1"));
-        treatment.setTunnelId(tunnelId);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_vxlan_encap)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // VXLAN DECAP
-        selector = DefaultTrafficSelector.builder().matchIPDst(IpPrefix.valueOf("192.169.1.2/32"));
-        treatment = DefaultTrafficTreatment.builder();
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP.type(), DUMMY, 1);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_vxlan_decap)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // L2 Multicast
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("ff:ff:ff:ff:ff:ff"));
-        treatment = DefaultTrafficTreatment.builder();
-        addExTreatment(treatment, deviceId, P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP.type(), MULTICAST_GRP, (short) 1);
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // Send to Host 1
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("00:00:00:00:00:01"));
-        treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.fromString("2"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // Send to Host 2
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("00:00:00:00:00:02"));
-        treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.fromString("2"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
-
-        // Send to Host 3
-        selector = DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf("00:00:00:00:00:03"));
-        treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.fromString("1"));
-
-        rule = DefaultFlowRule.builder()
-                              .forDevice(deviceId)
-                              .forTable(table_l2_fwd)
-                              .withSelector(selector.build())
-                              .withTreatment(treatment.build())
-                              .withPriority(priority)
-                              .fromApp(appId)
-                              .makePermanent();
-
-        flowRuleService.applyFlowRules(rule.build());
+    // Replaces the installed rules of a device unless they changed meanwhile.
+    private void record(DeviceId deviceId, Set<FlowRule> expected, Set<FlowRule> rules) {
+        installedRules.compute(deviceId, (id, current) -> {
+            Set<FlowRule> actual = current == null ? ImmutableSet.of() : current;
+            if (!actual.equals(expected)) {
+                return current;
+            }
+            return rules.isEmpty() ? null : rules;
+        });
     }
 
-    private TrafficTreatment.Builder addExTreatment(TrafficTreatment.Builder selector, DeviceId deviceId, ExtensionTreatmentType type, String propertyName, Object value) {
-        DriverHandler handler = driverService.createHandler(deviceId);
-        ExtensionTreatmentResolver resolver =  handler.behaviour(ExtensionTreatmentResolver.class);
+    private class LearnHandler implements PacketInPipeline.Handler {
+
+        @Override
+        public boolean handle(InboundPacket pkt) {
+            long cookie = pkt.cookie().get();
+            // A header that cannot be parsed is left to the unhandled count.
+            Ethernet eth = pkt.parsed();
+            if (P4PacketInCookie.reason(cookie) != P4PacketInCookie.REASON_LEARN || eth == null) {
+                return false;
+            }
+            macLearner.learn(pkt.receivedFrom().deviceId(), pkt.receivedFrom().port(),
+                             eth.getSourceMAC(), P4PacketInCookie.vni(cookie),
+                             P4PacketInCookie.tunnelSrc(cookie));
+            return true;
+        }
+    }
 
-        // Get an instance of the NICIRA_SET_TUNNEL_DST ExtensionInstruction from the driver
-        ExtensionTreatment extension = resolver.getExtensionInstruction(type);
+    private class InternalLinkListener implements LinkListener {
 
-        if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type()) ||
-            type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type())
-        ) {
-            value = (MacAddress) value;
+        @Override
+        public void event(LinkEvent event) {
+            eventExecutor.execute(() -> updateLink(event));
         }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_SMAC.type()) ||
-                 type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DMAC.type())) {
-            value = (Ip4Address) value;
+    }
+
+    // Drops the per-device state of the devices removed from the core.
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_REMOVED;
         }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_MULTICAST_GRP.type())) {
-            value = (short) value;
+
+        @Override
+        public void event(DeviceEvent event) {
+            DeviceId deviceId = event.subject().id();
+            treatmentCache.invalidate(deviceId);
+            synchronized (AppComponent.this) {
+                if (packetInPipeline != null) {
+                    packetInPipeline.forget(deviceId);
+                }
+            }
         }
-        else if (type.equals(P4ExtensionTreatmentType.P4_SET_TUNNEL_DECAP.type())) {
-            value = (int) value;
+    }
+
+    private class InternalConfigListener implements NetworkConfigListener {
+
+        @Override
+        public boolean isRelevant(NetworkConfigEvent event) {
+            return event.configClass().equals(VxlanConfig.class);
         }
 
-        // Set the tunnelDst property of the extension instruction.
-        try {
-            extension.setPropertyValue(propertyName, value);
-        } catch (ExtensionPropertyException e) {
-            log.error("Error setting extension property", e);
+        @Override
+        public void event(NetworkConfigEvent event) {
+            switch (event.type()) {
+                case CONFIG_ADDED:
+                case CONFIG_UPDATED:
+                case CONFIG_REMOVED:
+                    eventExecutor.execute(AppComponent.this::updateOverlay);
+                    break;
+                default:
+                    break;
+            }
         }
-        
-        // Build a treatment that includes the extension (of course we could add other instructions to this treatment as well)
-        return selector.extension(extension, deviceId);
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.PacketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nctu.pncourse.p4extensiontreatment.P4PacketInCookie;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Answers the ARP requests trapped by the VTEPs on behalf of the overlay
+ * hosts, so that they do not have to be flooded to every VTEP.
+ * <p>
+ * Addresses are looked up by VNI and IP address in an index built from the
+ * configured hosts and from the senders of the requests seen so far. Requests
+ * for unknown targets are flooded within their VNI: through the flood group of
+ * the VNI when they come from an access port, and to the local members of the
+ * VNI only when they come from a tunnel, as the remote VTEP already flooded
+ * them.
+ * <p>
+ * Replies to remote hosts are only sent through the tunnel when host_tunnel
+ * already encapsulates the traffic to the requester; until then the request
+ * is flooded to the local members of the VNI, which answer it themselves.
+ */
+public class ArpProxy implements PacketInPipeline.Handler {
+
+    // Upper bound of the addresses learned from ARP senders.
+    private static final int MAX_GLEANED = 65536;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final PacketService packetService;
+    private final TunnelLookup tunnelLookup;
+
+    // Addresses of the configured hosts, by VNI and IP.
+    private volatile Map<List<Object>, MacAddress> configured = ImmutableMap.of();
+    // Addresses of the ARP senders, by VNI and IP.
+    private final Map<List<Object>, MacAddress> gleaned = Maps.newConcurrentMap();
+    private volatile Map<DeviceId, Vtep> vteps = ImmutableMap.of();
+    private volatile Map<Long, Integer> floodGroups = ImmutableMap.of();
+    private volatile Map<DeviceId, Map<Long, List<PortNumber>>> floodLists = ImmutableMap.of();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong floods = new AtomicLong();
+
+    /**
+     * Creates a new ARP proxy.
+     *
+     * @param packetService packet service used to send the replies
+     * @param tunnelLookup  tells whether a requester is reachable through its tunnel
+     */
+    public ArpProxy(PacketService packetService, TunnelLookup tunnelLookup) {
+        this.packetService = packetService;
+        this.tunnelLookup = tunnelLookup;
+    }
+
+    /**
+     * Updates the VTEPs, the configured hosts answered for and the flood
+     * groups of the VNIs.
+     *
+     * @param vteps       current VTEPs
+     * @param hosts       configured hosts
+     * @param floodGroups flood group identifier of each VNI
+     * @param floodLists  output ports of the flood groups, by device and VNI
+     */
+    public void update(Set<Vtep> vteps, Set<OverlayHost> hosts, Map<Long, Integer> floodGroups,
+                       Map<DeviceId, Map<Long, List<PortNumber>>> floodLists) {
+        ImmutableMap.Builder<DeviceId, Vtep> vtepBuilder = ImmutableMap.builder();
+        vteps.forEach(vtep -> vtepBuilder.put(vtep.deviceId(), vtep));
+        Map<List<Object>, MacAddress> addresses = Maps.newHashMap();
+        hosts.forEach(host -> addresses.put(key(host.vni(), host.ip()), host.mac()));
+        this.vteps = vtepBuilder.build();
+        this.configured = ImmutableMap.copyOf(addresses);
+        this.floodGroups = ImmutableMap.copyOf(floodGroups);
+        this.floodLists = ImmutableMap.copyOf(floodLists);
+    }
+
+    /**
+     * Forgets the addresses learned from ARP senders.
+     */
+    public void clear() {
+        gleaned.clear();
+    }
+
+    @Override
+    public boolean handle(InboundPacket pkt) {
+        long cookie = pkt.cookie().get();
+        Ethernet eth = pkt.parsed();
+        if (P4PacketInCookie.reason(cookie) != P4PacketInCookie.REASON_PACKET_IN ||
+                eth == null || !(eth.getPayload() instanceof ARP)) {
+            return false;
+        }
+        ARP arp = (ARP) eth.getPayload();
+        if (arp.getOpCode() != ARP.OP_REQUEST) {
+            return false;
+        }
+        requests.incrementAndGet();
+        long vni = P4PacketInCookie.vni(cookie);
+        ConnectPoint cp = pkt.receivedFrom();
+        Ip4Address senderIp = Ip4Address.valueOf(arp.getSenderProtocolAddress());
+        Ip4Address targetIp = Ip4Address.valueOf(arp.getTargetProtocolAddress());
+        glean(vni, senderIp, eth.getSourceMAC());
+
+        Vtep vtep = vteps.get(cp.deviceId());
+        if (vtep == null) {
+            return true;
+        }
+        Ip4Address tunnelSrc = P4PacketInCookie.tunnelSrc(cookie);
+        boolean fromTunnel = tunnelSrc != null;
+        MacAddress targetMac = senderIp.equals(targetIp) ? null : lookup(vni, targetIp);
+        if (targetMac != null && fromTunnel &&
+                !tunnelLookup.reaches(vtep, vni, eth.getSourceMAC(), tunnelSrc)) {
+            // A reply would leave the uplink unencapsulated.
+            log.trace("No tunnel towards {} on {} yet", eth.getSourceMAC(), cp);
+            targetMac = null;
+        }
+        if (targetMac == null) {
+            floods.incrementAndGet();
+            flood(vtep, vni, fromTunnel, eth);
+            return true;
+        }
+
+        // Replies to remote hosts go back through the tunnel they came from,
+        // which host_tunnel looks up by VNI and requester address.
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder();
+        if (fromTunnel) {
+            treatment.setTunnelId(vni).setOutput(vtep.uplinkPort());
+        } else {
+            treatment.setOutput(cp.port());
+        }
+        replies.incrementAndGet();
+        log.trace("Answering {} is-at {} on {}", targetIp, targetMac, cp);
+        emit(cp.deviceId(), treatment.build(), ARP.buildArpReply(targetIp, targetMac, eth));
+        return true;
+    }
+
+    private void flood(Vtep vtep, long vni, boolean fromTunnel, Ethernet eth) {
+        Integer group = floodGroups.get(vni);
+        if (!fromTunnel && group != null) {
+            emit(vtep.deviceId(), DefaultTrafficTreatment.builder().group(GroupId.valueOf(group)).build(), eth);
+            return;
+        }
+        List<PortNumber> ports = floodLists.getOrDefault(vtep.deviceId(), ImmutableMap.of()).get(vni);
+        if (ports == null) {
+            return;
+        }
+        ports.stream()
+                .filter(port -> !port.equals(vtep.uplinkPort()))
+                .forEach(port -> emit(vtep.deviceId(),
+                                      DefaultTrafficTreatment.builder().setOutput(port).build(), eth));
+    }
+
+    private void glean(long vni, Ip4Address ip, MacAddress mac) {
+        List<Object> key = key(vni, ip);
+        if (configured.containsKey(key) || mac.equals(gleaned.get(key))) {
+            return;
+        }
+        if (gleaned.size() < MAX_GLEANED || gleaned.containsKey(key)) {
+            gleaned.put(key, mac);
+        }
+    }
+
+    private MacAddress lookup(long vni, Ip4Address ip) {
+        List<Object> key = key(vni, ip);
+        MacAddress mac = configured.get(key);
+        return mac != null ? mac : gleaned.get(key);
+    }
+
+    private void emit(DeviceId deviceId, TrafficTreatment treatment, Ethernet eth) {
+        packetService.emit(new DefaultOutboundPacket(deviceId, treatment, ByteBuffer.wrap(eth.serialize())));
+    }
+
+    private static List<Object> key(long vni, Ip4Address ip) {
+        return ImmutableList.of(vni, ip);
+    }
+
+    /**
+     * Tells whether a VTEP encapsulates the traffic to a remote host.
+     */
+    public interface TunnelLookup {
+
+        /**
+         * Returns whether the traffic to a remote host leaves the VTEP
+         * through the tunnel towards the given remote VTEP.
+         *
+         * @param vtep     local VTEP
+         * @param vni      VNI of the host
+         * @param mac      MAC address of the host
+         * @param remoteIp IP address of the remote VTEP
+         * @return true if host_tunnel sends the traffic through the tunnel
+         */
+        boolean reaches(Vtep vtep, long vni, MacAddress mac, Ip4Address remoteIp);
+    }
+
+    /**
+     * Returns the number of ARP requests received.
+     *
+     * @return number of requests
+     */
+    public long requestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of ARP requests answered by the proxy.
+     *
+     * @return number of replies
+     */
+    public long replyCount() {
+        return replies.get();
+    }
+
+    /**
+     * Returns the number of ARP requests flooded for lack of an answer.
+     *
+     * @return number of flooded requests
+     */
+    public long floodCount() {
+        return floods.get();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("requests", requestCount())
+                .add("replies", replyCount())
+                .add("floods", floodCount())
+                .add("gleaned", gleaned.size())
+                .toString();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Last samples of a counter cell, kept in a ring buffer of primitive arrays,
+ * from which the deltas and rates of the cell are derived.
+ * <p>
+ * Rates are averaged over the whole window, whatever the interval between
+ * the samples. A sample lower than the previous one means the counter was
+ * reset, e.g. because its entry was reinstalled or the device restarted,
+ * and restarts the window.
+ */
+public final class CounterHistory {
+
+    private final long[] nanos;
+    private final long[] packets;
+    private final long[] bytes;
+    // Index of the next sample and number of samples held.
+    private int next;
+    private int size;
+
+    /**
+     * Creates a new history.
+     *
+     * @param capacity number of samples kept
+     */
+    public CounterHistory(int capacity) {
+        nanos = new long[capacity];
+        packets = new long[capacity];
+        bytes = new long[capacity];
+    }
+
+    /**
+     * Records a sample of the cell.
+     *
+     * @param timeNanos   time of the sample, from {@link System#nanoTime()}
+     * @param packetCount packet count of the cell
+     * @param byteCount   byte count of the cell
+     */
+    public synchronized void record(long timeNanos, long packetCount, long byteCount) {
+        if (size > 0) {
+            int last = index(0);
+            if (packetCount < packets[last] || byteCount < bytes[last]) {
+                size = 0;
+            }
+        }
+        nanos[next] = timeNanos;
+        packets[next] = packetCount;
+        bytes[next] = byteCount;
+        next = (next + 1) % nanos.length;
+        size = Math.min(size + 1, nanos.length);
+    }
+
+    // Index of the sample recorded age samples before the last one.
+    private int index(int age) {
+        return (next - 1 - age + 2 * nanos.length) % nanos.length;
+    }
+
+    /**
+     * Returns the last packet count of the cell.
+     *
+     * @return packet count
+     */
+    public synchronized long packets() {
+        return size == 0 ? 0 : packets[index(0)];
+    }
+
+    /**
+     * Returns the last byte count of the cell.
+     *
+     * @return byte count
+     */
+    public synchronized long bytes() {
+        return size == 0 ? 0 : bytes[index(0)];
+    }
+
+    /**
+     * Returns the packets counted between the last two samples.
+     *
+     * @return packet delta, 0 with less than two samples
+     */
+    public synchronized long packetsDelta() {
+        return size < 2 ? 0 : packets[index(0)] - packets[index(1)];
+    }
+
+    /**
+     * Returns the bytes counted between the last two samples.
+     *
+     * @return byte delta, 0 with less than two samples
+     */
+    public synchronized long bytesDelta() {
+        return size < 2 ? 0 : bytes[index(0)] - bytes[index(1)];
+    }
+
+    /**
+     * Returns the packet rate over the samples held.
+     *
+     * @return packets per second, 0 with less than two samples
+     */
+    public synchronized double packetsPerSecond() {
+        return rate(packets, 1);
+    }
+
+    /**
+     * Returns the bit rate over the samples held.
+     *
+     * @return bits per second, 0 with less than two samples
+     */
+    public synchronized double bitsPerSecond() {
+        return rate(bytes, Byte.SIZE);
+    }
+
+    private double rate(long[] values, int scale) {
+        if (size < 2) {
+            return 0;
+        }
+        int last = index(0);
+        int first = index(size - 1);
+        long elapsed = nanos[last] - nanos[first];
+        return elapsed <= 0 ? 0 : (values[last] - values[first]) * scale * 1e9 / elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return toStringHelper(this)
+                .add("packets", packets())
+                .add("bytes", bytes())
+                .add("pps", packetsPerSecond())
+                .add("bps", bitsPerSecond())
+                .toString();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.driver.DriverService;
+import org.onosproject.net.pi.runtime.PiCounterCell;
+import org.onosproject.net.pi.runtime.PiCounterCellId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import nctu.pncourse.p4extensiontreatment.P4CounterReader;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Polls the counters of the devices and keeps the deltas and rates of every
+ * counter cell: the port counters as well as the direct counters of the
+ * forwarding tables.
+ * <p>
+ * All the counters of a device are fetched with a single wildcard read
+ * through its {@link P4CounterReader} behaviour. Each device is polled on
+ * its own schedule, starting at a random phase and jittered every round, so
+ * that the reads of many devices do not line up. Devices that forwarded
+ * traffic since the previous poll are polled up to four times more often,
+ * idle ones fall back to the configured interval.
+ */
+public class CounterMonitor {
+
+    // Polls are spread over +/- 20% of their interval.
+    private static final double JITTER = 0.2;
+    // Busy devices are polled up to 4 times per interval.
+    private static final int MAX_SPEEDUP = 4;
+    // Samples kept per counter cell.
+    private static final int HISTORY_SIZE = 8;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final DriverService driverService;
+    private final Supplier<Set<DeviceId>> devices;
+    private final ScheduledExecutorService executor;
+    private final long intervalMillis;
+
+    private final Map<DeviceId, DeviceCounters> deviceCounters = Maps.newConcurrentMap();
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong failedPolls = new AtomicLong();
+
+    private volatile boolean running;
+
+    /**
+     * Creates a new counter monitor.
+     *
+     * @param driverService  driver service giving access to the devices
+     * @param devices        supplier of the devices to poll
+     * @param executor       executor scheduling the polls
+     * @param intervalMillis interval between two polls of an idle device
+     */
+    public CounterMonitor(DriverService driverService, Supplier<Set<DeviceId>> devices,
+                          ScheduledExecutorService executor, long intervalMillis) {
+        this.driverService = driverService;
+        this.devices = devices;
+        this.executor = executor;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts polling the devices.
+     */
+    public void start() {
+        running = true;
+        executor.execute(this::updateDevices);
+    }
+
+    /**
+     * Stops polling the devices and forgets their counters. Reads in
+     * progress complete.
+     */
+    public void stop() {
+        running = false;
+        deviceCounters.clear();
+    }
+
+    // Picks up the devices added or removed, once per interval.
+    private void updateDevices() {
+        if (!running) {
+            return;
+        }
+        try {
+            Set<DeviceId> current = devices.get();
+            deviceCounters.keySet().retainAll(current);
+            for (DeviceId deviceId : current) {
+                if (!deviceCounters.containsKey(deviceId)) {
+                    DeviceCounters counters = new DeviceCounters(deviceId, intervalMillis);
+                    deviceCounters.put(deviceId, counters);
+                    long phase = ThreadLocalRandom.current().nextLong(intervalMillis);
+                    executor.schedule(() -> poll(counters), phase, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to update the monitored devices", e);
+        } finally {
+            if (running) {
+                executor.schedule(this::updateDevices, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void poll(DeviceCounters counters) {
+        // Devices removed in the meantime are not polled anymore.
+        if (!running || deviceCounters.get(counters.deviceId) != counters) {
+            return;
+        }
+        polls.incrementAndGet();
+        try {
+            DriverHandler handler = driverService.createHandler(counters.deviceId);
+            if (!handler.hasBehaviour(P4CounterReader.class)) {
+                scheduleNext(counters);
+                return;
+            }
+            handler.behaviour(P4CounterReader.class).readCounters().whenComplete((cells, error) -> {
+                if (error != null) {
+                    failed(counters, error);
+                } else {
+                    record(counters, cells, System.nanoTime());
+                }
+                scheduleNext(counters);
+            });
+        } catch (RuntimeException e) {
+            failed(counters, e);
+            scheduleNext(counters);
+        }
+    }
+
+    private void failed(DeviceCounters counters, Throwable error) {
+        failedPolls.incrementAndGet();
+        counters.pollIntervalMillis = intervalMillis;
+        log.debug("Unable to read the counters of {}: {}", counters.deviceId, error.getMessage());
+    }
+
+    private void record(DeviceCounters counters, Collection<PiCounterCell> cells, long nanos) {
+        boolean busy = false;
+        Set<PiCounterCellId> read = Sets.newHashSetWithExpectedSize(cells.size());
+        for (PiCounterCell cell : cells) {
+            CounterHistory history = counters.cells.computeIfAbsent(
+                    cell.cellId(), id -> new CounterHistory(HISTORY_SIZE));
+            history.record(nanos, cell.data().packets(), cell.data().bytes());
+            busy |= history.packetsDelta() > 0;
+            read.add(cell.cellId());
+        }
+        // Entries removed from the tables take their direct counters along.
+        counters.cells.keySet().retainAll(read);
+
+        long interval = counters.pollIntervalMillis;
+        counters.pollIntervalMillis = busy
+                ? Math.max(intervalMillis / MAX_SPEEDUP, interval / 2)
+                : Math.min(intervalMillis, interval * 2);
+    }
+
+    private void scheduleNext(DeviceCounters counters) {
+        if (running) {
+            executor.schedule(() -> poll(counters), jittered(counters.pollIntervalMillis), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static long jittered(long millis) {
+        double factor = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, (long) (millis * factor));
+    }
+
+    /**
+     * Returns the counter cells of a device, as of its last poll.
+     *
+     * @param deviceId device identifier
+     * @return history of every cell
+     */
+    public Map<PiCounterCellId, CounterHistory> counters(DeviceId deviceId) {
+        DeviceCounters counters = deviceCounters.get(deviceId);
+        return counters == null ? ImmutableMap.of() : Collections.unmodifiableMap(counters.cells);
+    }
+
+    /**
+     * Returns the devices polled.
+     *
+     * @return device identifiers
+     */
+    public Set<DeviceId> devices() {
+        return ImmutableSet.copyOf(deviceCounters.keySet());
+    }
+
+    /**
+     * Returns the current polling interval of a device.
+     *
+     * @param deviceId device identifier
+     * @return interval in milliseconds, 0 if the device is not polled
+     */
+    public long pollIntervalMillis(DeviceId deviceId) {
+        DeviceCounters counters = deviceCounters.get(deviceId);
+        return counters == null ? 0 : counters.pollIntervalMillis;
+    }
+
+    /**
+     * Returns the number of device polls performed.
+     *
+     * @return number of polls
+     */
+    public long pollCount() {
+        return polls.get();
+    }
+
+    /**
+     * Returns the number of device polls that failed to read the counters.
+     *
+     * @return number of failed polls
+     */
+    public long failedPollCount() {
+        return failedPolls.get();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("devices", deviceCounters.size())
+                .add("polls", pollCount())
+                .add("failed", failedPollCount())
+                .toString();
+    }
+
+    private static final class DeviceCounters {
+        private final DeviceId deviceId;
+        private final Map<PiCounterCellId, CounterHistory> cells = Maps.newConcurrentMap();
+        // Only updated by the poll in progress, a device is polled once at a time.
+        private volatile long pollIntervalMillis;
+
+        private DeviceCounters(DeviceId deviceId, long pollIntervalMillis) {
+            this.deviceId = deviceId;
+            this.pollIntervalMillis = pollIntervalMillis;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onlab.util.OrderedExecutor;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogEvent;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogListener;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Programs the devices from a pool of workers, as soon as they are ready.
+ * <p>
+ * A device is ready once it is available and its pipeline has been
+ * deployed. Updates of devices that are not ready are dropped; the whole
+ * rule set of a device is programmed instead when it becomes ready, which
+ * also covers devices that connect after the app started or that
+ * restarted. The updates of a device run one at a time and in order, while
+ * different devices are programmed in parallel. Updates queued for a device
+ * are coalesced, the worker programming the latest state once.
+ */
+public class DeviceProgrammer {
+
+    /**
+     * Programs the rules of a device, called from the workers.
+     */
+    public interface Programmer {
+
+        /**
+         * Brings a device in line with the desired rules.
+         *
+         * @param deviceId device identifier
+         * @param full     true if the device may have lost its rules, e.g.
+         *                 because it just connected, false to only push the
+         *                 difference with the rules known to be installed
+         */
+        void program(DeviceId deviceId, boolean full);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final DeviceService deviceService;
+    private final PiPipeconfWatchdogService watchdogService;
+    private final Programmer programmer;
+    private final int workers;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final PiPipeconfWatchdogListener watchdogListener = new InternalWatchdogListener();
+
+    // Devices ready to be programmed.
+    private final Set<DeviceId> ready = Sets.newConcurrentHashSet();
+    // Serial executor of every device.
+    private final Map<DeviceId, OrderedExecutor> deviceExecutors = Maps.newConcurrentMap();
+    // Devices with an update queued, and whether it is a full one.
+    private final Map<DeviceId, Boolean> queued = Maps.newConcurrentMap();
+
+    private ExecutorService executor;
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong fullUpdates = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+
+    /**
+     * Creates a new device programmer.
+     *
+     * @param deviceService   device service tracking the availability
+     * @param watchdogService pipeconf watchdog tracking the pipelines
+     * @param programmer      programmer of a single device
+     * @param workers         number of devices programmed at once
+     */
+    public DeviceProgrammer(DeviceService deviceService, PiPipeconfWatchdogService watchdogService,
+                            Programmer programmer, int workers) {
+        this.deviceService = deviceService;
+        this.watchdogService = watchdogService;
+        this.programmer = programmer;
+        this.workers = workers;
+    }
+
+    /**
+     * Starts the workers and tracks the devices becoming ready. Devices
+     * already ready are not programmed until the first update.
+     */
+    public void start() {
+        executor = Executors.newFixedThreadPool(workers, groupedThreads("onos/vxlan", "device-%d", log));
+        deviceService.addListener(deviceListener);
+        watchdogService.addListener(watchdogListener);
+        for (Device device : deviceService.getAvailableDevices()) {
+            if (isReady(device.id())) {
+                ready.add(device.id());
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the devices and the workers, dropping queued updates.
+     */
+    public void stop() {
+        watchdogService.removeListener(watchdogListener);
+        deviceService.removeListener(deviceListener);
+        executor.shutdownNow();
+        deviceExecutors.clear();
+        queued.clear();
+        ready.clear();
+    }
+
+    /**
+     * Queues an update of the given devices. Devices not ready are skipped,
+     * they are programmed once ready.
+     *
+     * @param deviceIds devices to update
+     */
+    public void submit(Set<DeviceId> deviceIds) {
+        for (DeviceId deviceId : deviceIds) {
+            if (ready.contains(deviceId)) {
+                queue(deviceId, false);
+            } else {
+                deferred.incrementAndGet();
+                log.debug("Deferring the update of {} until it is ready", deviceId);
+            }
+        }
+    }
+
+    private void queue(DeviceId deviceId, boolean full) {
+        while (true) {
+            Boolean current = queued.putIfAbsent(deviceId, full);
+            if (current == null) {
+                deviceExecutors.computeIfAbsent(deviceId, d -> new OrderedExecutor(executor))
+                        .execute(() -> run(deviceId));
+                return;
+            }
+            // An update queued already will see the latest state, it only
+            // has to be made a full one if needed.
+            if (!full || current || queued.replace(deviceId, false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void run(DeviceId deviceId) {
+        Boolean full = queued.remove(deviceId);
+        if (full == null || !ready.contains(deviceId)) {
+            return;
+        }
+        updates.incrementAndGet();
+        if (full) {
+            fullUpdates.incrementAndGet();
+        }
+        try {
+            programmer.program(deviceId, full);
+        } catch (RuntimeException e) {
+            log.warn("Unable to program {}", deviceId, e);
+        }
+    }
+
+    private boolean isReady(DeviceId deviceId) {
+        return deviceService.isAvailable(deviceId) &&
+                watchdogService.getStatus(deviceId) == PiPipeconfWatchdogService.PipelineStatus.READY;
+    }
+
+    // Programs a device from scratch when it becomes ready.
+    private void checkReady(DeviceId deviceId) {
+        if (!isReady(deviceId)) {
+            if (ready.remove(deviceId)) {
+                log.info("{} is not ready anymore", deviceId);
+            }
+        } else if (ready.add(deviceId)) {
+            log.info("{} is ready, programming it", deviceId);
+            queue(deviceId, true);
+        }
+    }
+
+    /**
+     * Returns the number of device updates run.
+     *
+     * @return number of updates
+     */
+    public long updateCount() {
+        return updates.get();
+    }
+
+    /**
+     * Returns the number of updates programming a whole device.
+     *
+     * @return number of full updates
+     */
+    public long fullUpdateCount() {
+        return fullUpdates.get();
+    }
+
+    /**
+     * Returns the number of updates skipped because the device was not
+     * ready.
+     *
+     * @return number of deferred updates
+     */
+    public long deferredCount() {
+        return deferred.get();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("ready", ready.size())
+                .add("updates", updateCount())
+                .add("full", fullUpdateCount())
+                .add("deferred", deferredCount())
+                .toString();
+    }
+
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_UPDATED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                case DEVICE_REMOVED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            checkReady(event.subject().id());
+        }
+    }
+
+    private class InternalWatchdogListener implements PiPipeconfWatchdogListener {
+
+        @Override
+        public void event(PiPipeconfWatchdogEvent event) {
+            checkReady(event.subject());
+        }
+    }
+}
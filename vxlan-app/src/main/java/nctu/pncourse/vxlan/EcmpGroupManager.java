@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onlab.packet.IpPrefix;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the select groups of the ECMP action selector of the underlay
+ * switches, i.e. their P4Runtime action profile groups.
+ * <p>
+ * Every distinct set of next hops of a device gets one group, shared by
+ * all the routes using it, so a route only references its group. Group
+ * identifiers start above the 16-bit range of the flood groups, which live
+ * in the same ONOS group space.
+ */
+public class EcmpGroupManager {
+
+    static final PiTableId IPV4_LPM = PiTableId.of("MyIngress.ipv4_lpm");
+    static final PiActionProfileId ECMP_SELECTOR = PiActionProfileId.of("MyIngress.ecmp_selector");
+
+    private static final int MIN_GROUP_ID = 0x10000;
+
+    private static final Comparator<UnderlayRoute> NEXT_HOP_ORDER =
+            Comparator.comparing((UnderlayRoute route) -> route.port().toLong())
+                    .thenComparing(route -> route.nextHopMac().toLong());
+
+    private final ApplicationId appId;
+    private final GroupService groupService;
+
+    // Groups of every device, by next hops.
+    private final Map<DeviceId, Map<List<List<Object>>, Integer>> groups = Maps.newHashMap();
+    // Groups referenced by the latest routes of every device.
+    private final Map<DeviceId, Set<Integer>> inUse = Maps.newHashMap();
+
+    /**
+     * Creates a new ECMP group manager.
+     *
+     * @param appId        application owning the groups
+     * @param groupService group service used to program the groups
+     */
+    public EcmpGroupManager(ApplicationId appId, GroupService groupService) {
+        this.appId = appId;
+        this.groupService = groupService;
+    }
+
+    /**
+     * Adds the groups missing for the routes of a device and returns the
+     * group of every prefix. Routes with the same prefix are the next hops
+     * of a multi-path route.
+     *
+     * @param deviceId device identifier
+     * @param routes   routes of the device
+     * @return group identifier of each prefix
+     */
+    public synchronized Map<IpPrefix, Integer> update(DeviceId deviceId, Collection<UnderlayRoute> routes) {
+        Map<IpPrefix, List<UnderlayRoute>> byPrefix = routes.stream()
+                .collect(Collectors.groupingBy(UnderlayRoute::prefix));
+        Map<List<List<Object>>, Integer> deviceGroups = groups.computeIfAbsent(deviceId, d -> Maps.newHashMap());
+        ImmutableMap.Builder<IpPrefix, Integer> builder = ImmutableMap.builder();
+        byPrefix.forEach((prefix, nextHops) -> {
+            nextHops.sort(NEXT_HOP_ORDER);
+            List<List<Object>> key = nextHops.stream()
+                    .map(route -> ImmutableList.<Object>of(route.port(), route.nextHopMac()))
+                    .collect(Collectors.toList());
+            Integer groupId = deviceGroups.get(key);
+            if (groupId == null) {
+                groupId = nextGroupId(deviceGroups.values());
+                groupService.addGroup(new DefaultGroupDescription(
+                        deviceId, GroupDescription.Type.SELECT, buckets(nextHops),
+                        key(groupId), groupId, appId));
+                deviceGroups.put(key, groupId);
+            }
+            builder.put(prefix, groupId);
+        });
+        Map<IpPrefix, Integer> prefixGroups = builder.build();
+        inUse.put(deviceId, Sets.newHashSet(prefixGroups.values()));
+        return prefixGroups;
+    }
+
+    /**
+     * Removes the groups of a device the latest routes do not reference.
+     * To be called once the routes are installed.
+     *
+     * @param deviceId device identifier
+     */
+    public synchronized void prune(DeviceId deviceId) {
+        Map<List<List<Object>>, Integer> deviceGroups = groups.get(deviceId);
+        if (deviceGroups == null) {
+            return;
+        }
+        Set<Integer> used = inUse.getOrDefault(deviceId, Sets.newHashSet());
+        deviceGroups.values().removeIf(groupId -> {
+            if (used.contains(groupId)) {
+                return false;
+            }
+            groupService.removeGroup(deviceId, key(groupId), appId);
+            return true;
+        });
+        if (deviceGroups.isEmpty()) {
+            groups.remove(deviceId);
+            inUse.remove(deviceId);
+        }
+    }
+
+    /**
+     * Removes all the groups.
+     */
+    public synchronized void clear() {
+        groups.forEach((deviceId, deviceGroups) -> deviceGroups.values().forEach(
+                groupId -> groupService.removeGroup(deviceId, key(groupId), appId)));
+        groups.clear();
+        inUse.clear();
+    }
+
+    private static int nextGroupId(Collection<Integer> used) {
+        int next = MIN_GROUP_ID;
+        while (used.contains(next)) {
+            next++;
+        }
+        return next;
+    }
+
+    private static GroupBuckets buckets(List<UnderlayRoute> nextHops) {
+        List<GroupBucket> buckets = nextHops.stream()
+                .map(route -> DefaultGroupBucket.createSelectGroupBucket(
+                        DefaultTrafficTreatment.builder()
+                                .setEthDst(route.nextHopMac())
+                                .setOutput(route.port())
+                                .build()))
+                .collect(Collectors.toList());
+        return new GroupBuckets(buckets);
+    }
+
+    private static PiGroupKey key(int groupId) {
+        return new PiGroupKey(IPV4_LPM, ECMP_SELECTOR, groupId);
+    }
+}
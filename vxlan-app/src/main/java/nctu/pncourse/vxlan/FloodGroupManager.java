@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.DefaultGroupKey;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Allocates the flood group of every VNI and keeps the ALL groups of the
+ * VTEPs, i.e. their P4Runtime multicast group entries, in line with the
+ * flood lists of the overlay.
+ * <p>
+ * A VNI keeps its group identifier as long as it has members, so that
+ * adding a tenant does not renumber the groups of the others. Identifiers
+ * are 16-bit, like the multicast group of v1model, and never collide with
+ * the learn clone session.
+ */
+public class FloodGroupManager {
+
+    private static final int MIN_GROUP_ID = 1;
+    private static final int MAX_GROUP_ID = 0xffff;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ApplicationId appId;
+    private final GroupService groupService;
+
+    private final Map<Long, Integer> groupIds = Maps.newHashMap();
+    private final Map<DeviceId, Map<Long, List<PortNumber>>> installed = Maps.newHashMap();
+
+    /**
+     * Creates a new flood group manager.
+     *
+     * @param appId        application owning the groups
+     * @param groupService group service used to program the groups
+     */
+    public FloodGroupManager(ApplicationId appId, GroupService groupService) {
+        this.appId = appId;
+        this.groupService = groupService;
+    }
+
+    /**
+     * Allocates the flood groups of the given VNIs, releasing the ones of
+     * the VNIs not given.
+     *
+     * @param vnis VNIs with members
+     * @return flood group identifier of each VNI
+     */
+    public synchronized Map<Long, Integer> allocate(Set<Long> vnis) {
+        groupIds.keySet().retainAll(vnis);
+        Set<Integer> used = new TreeSet<>(groupIds.values());
+        used.add(MacLearner.LEARN_CLONE_SESSION);
+        int next = MIN_GROUP_ID;
+        for (long vni : new TreeSet<>(vnis)) {
+            if (groupIds.containsKey(vni)) {
+                continue;
+            }
+            while (used.contains(next)) {
+                next++;
+            }
+            if (next > MAX_GROUP_ID) {
+                log.warn("No flood group left for VNI {}", vni);
+                continue;
+            }
+            groupIds.put(vni, next);
+            used.add(next);
+        }
+        return ImmutableMap.copyOf(groupIds);
+    }
+
+    /**
+     * Adds, modifies or removes the flood groups of the VTEPs.
+     *
+     * @param floodLists output ports of the flood groups, by device and VNI
+     */
+    public synchronized void update(Map<DeviceId, Map<Long, List<PortNumber>>> floodLists) {
+        for (DeviceId deviceId : installed.keySet().toArray(new DeviceId[0])) {
+            Map<Long, List<PortNumber>> desired = floodLists.getOrDefault(deviceId, ImmutableMap.of());
+            installed.get(deviceId).keySet().stream()
+                    .filter(vni -> !desired.containsKey(vni) || !groupIds.containsKey(vni))
+                    .collect(Collectors.toList())
+                    .forEach(vni -> remove(deviceId, vni));
+        }
+        floodLists.forEach((deviceId, lists) -> lists.forEach((vni, ports) -> {
+            Integer groupId = groupIds.get(vni);
+            if (groupId == null) {
+                return;
+            }
+            List<PortNumber> current = installed.getOrDefault(deviceId, ImmutableMap.of()).get(vni);
+            if (current == null) {
+                groupService.addGroup(new DefaultGroupDescription(
+                        deviceId, GroupDescription.Type.ALL, buckets(ports), key(vni), groupId, appId));
+            } else if (!current.equals(ports)) {
+                groupService.setBucketsForGroup(deviceId, key(vni), buckets(ports), key(vni), appId);
+            } else {
+                return;
+            }
+            installed.computeIfAbsent(deviceId, d -> Maps.newHashMap()).put(vni, ports);
+        }));
+    }
+
+    /**
+     * Removes all the flood groups and releases their identifiers.
+     */
+    public synchronized void clear() {
+        installed.forEach((deviceId, lists) -> lists.keySet().forEach(
+                vni -> groupService.removeGroup(deviceId, key(vni), appId)));
+        installed.clear();
+        groupIds.clear();
+    }
+
+    private void remove(DeviceId deviceId, long vni) {
+        groupService.removeGroup(deviceId, key(vni), appId);
+        Map<Long, List<PortNumber>> lists = installed.get(deviceId);
+        lists.remove(vni);
+        if (lists.isEmpty()) {
+            installed.remove(deviceId);
+        }
+    }
+
+    private static GroupBuckets buckets(List<PortNumber> ports) {
+        List<GroupBucket> buckets = ports.stream()
+                .map(port -> DefaultGroupBucket.createAllGroupBucket(
+                        DefaultTrafficTreatment.builder().setOutput(port).build()))
+                .collect(Collectors.toList());
+        return new GroupBuckets(buckets);
+    }
+
+    private static GroupKey key(long vni) {
+        return new DefaultGroupKey(ByteBuffer.allocate(Long.BYTES).putLong(vni).array());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Difference between the flow rules installed on a device and the desired
+ * ones. Flow rules are considered the same entry when they share selector,
+ * table and priority (i.e. {@link FlowRule#equals(Object)}); an entry whose
+ * treatment changed is reported as modified rather than removed and added.
+ */
+public final class FlowRuleDiff {
+
+    private final Set<FlowRule> toAdd;
+    private final Set<FlowRule> toModify;
+    private final Set<FlowRule> toRemove;
+
+    private FlowRuleDiff(Set<FlowRule> toAdd, Set<FlowRule> toModify, Set<FlowRule> toRemove) {
+        this.toAdd = toAdd;
+        this.toModify = toModify;
+        this.toRemove = toRemove;
+    }
+
+    /**
+     * Computes the difference between installed and desired flow rules.
+     *
+     * @param installed flow rules currently installed
+     * @param desired   flow rules that should be installed
+     * @return flow rule difference
+     */
+    public static FlowRuleDiff compute(Collection<FlowRule> installed, Collection<FlowRule> desired) {
+        Map<FlowRule, FlowRule> current = Maps.newHashMapWithExpectedSize(installed.size());
+        installed.forEach(rule -> current.put(rule, rule));
+
+        ImmutableSet.Builder<FlowRule> toAdd = ImmutableSet.builder();
+        ImmutableSet.Builder<FlowRule> toModify = ImmutableSet.builder();
+        for (FlowRule rule : desired) {
+            FlowRule existing = current.remove(rule);
+            if (existing == null) {
+                toAdd.add(rule);
+            } else if (!existing.exactMatch(rule)) {
+                toModify.add(rule);
+            }
+        }
+        return new FlowRuleDiff(toAdd.build(), toModify.build(), ImmutableSet.copyOf(current.keySet()));
+    }
+
+    public Set<FlowRule> toAdd() {
+        return toAdd;
+    }
+
+    public Set<FlowRule> toModify() {
+        return toModify;
+    }
+
+    public Set<FlowRule> toRemove() {
+        return toRemove;
+    }
+
+    public boolean isEmpty() {
+        return toAdd.isEmpty() && toModify.isEmpty() && toRemove.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("add", toAdd.size())
+                .add("modify", toModify.size())
+                .add("remove", toRemove.size())
+                .toString();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.IndexTableId;
+import org.onosproject.net.flow.TableId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_FLOOD_ENCAP;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_IPV4_FWD;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_VXLAN_DECAP;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_VXLAN_ENCAP;
+
+/**
+ * Submits the flow rule changes of a device as a single staged
+ * {@link FlowRuleOperations} batch and keeps track of install latency.
+ * <p>
+ * Entries other entries rely on are installed in a first stage: the underlay
+ * (decap_table, ipv4_lpm), so that tunnels terminate before traffic is sent
+ * into them, and the tunnels (encap_table, flood_encap), so that they exist
+ * before host_tunnel and the flood groups point to them. Removals run in the
+ * opposite order.
+ */
+public class FlowRuleInstaller {
+
+    private static final Set<TableId> BASE_TABLES = ImmutableSet.of(
+            IndexTableId.of(TABLE_IPV4_FWD), IndexTableId.of(TABLE_VXLAN_DECAP),
+            IndexTableId.of(TABLE_VXLAN_ENCAP), IndexTableId.of(TABLE_FLOOD_ENCAP));
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final FlowRuleService flowRuleService;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Creates a new installer.
+     *
+     * @param flowRuleService flow rule service used to submit the batches
+     */
+    public FlowRuleInstaller(FlowRuleService flowRuleService) {
+        this.flowRuleService = flowRuleService;
+    }
+
+    /**
+     * Submits the given flow rule changes of a device as one staged batch.
+     *
+     * @param deviceId device the rules belong to
+     * @param diff     flow rule changes to apply
+     * @return future completed with true if the whole batch succeeded, false otherwise
+     */
+    public CompletableFuture<Boolean> install(DeviceId deviceId, FlowRuleDiff diff) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+
+        // Stage 1: underlay and tunnel entries other entries rely on.
+        diff.toAdd().stream().filter(FlowRuleInstaller::isBase).forEach(ops::add);
+        diff.toModify().stream().filter(FlowRuleInstaller::isBase).forEach(ops::modify);
+        ops.newStage();
+
+        // Stage 2: entries steering traffic into the tunnels.
+        diff.toAdd().stream().filter(r -> !isBase(r)).forEach(ops::add);
+        diff.toModify().stream().filter(r -> !isBase(r)).forEach(ops::modify);
+        diff.toRemove().stream().filter(r -> !isBase(r)).forEach(ops::remove);
+        ops.newStage();
+
+        // Stage 3: underlay and tunnel entries nothing points to anymore.
+        diff.toRemove().stream().filter(FlowRuleInstaller::isBase).forEach(ops::remove);
+
+        int size = diff.toAdd().size() + diff.toModify().size() + diff.toRemove().size();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        long start = System.nanoTime();
+
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                long latency = record(start, size);
+                log.info("Installed {} flow rule operations on {} in {} ms",
+                         size, deviceId, TimeUnit.NANOSECONDS.toMillis(latency));
+                result.complete(true);
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                long latency = record(start, size);
+                failedBatches.incrementAndGet();
+                log.warn("Failed to install {} flow rule operations on {} after {} ms",
+                         size, deviceId, TimeUnit.NANOSECONDS.toMillis(latency));
+                result.complete(false);
+            }
+        }));
+        return result;
+    }
+
+    private long record(long start, int size) {
+        long latency = System.nanoTime() - start;
+        batches.incrementAndGet();
+        operations.addAndGet(size);
+        totalLatencyNanos.addAndGet(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        return latency;
+    }
+
+    private static boolean isBase(FlowRule rule) {
+        return BASE_TABLES.contains(rule.table());
+    }
+
+    /**
+     * Returns the number of completed batches, successful or not.
+     *
+     * @return number of batches
+     */
+    public long batchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Returns the number of batches reported as failed.
+     *
+     * @return number of failed batches
+     */
+    public long failedBatchCount() {
+        return failedBatches.get();
+    }
+
+    /**
+     * Returns the number of flow rule operations of the completed batches.
+     *
+     * @return number of operations
+     */
+    public long operationCount() {
+        return operations.get();
+    }
+
+    /**
+     * Returns the average latency between submission and completion of a batch.
+     *
+     * @return average latency in milliseconds
+     */
+    public double averageLatencyMillis() {
+        long count = batches.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / (count * 1e6);
+    }
+
+    /**
+     * Returns the highest latency between submission and completion of a batch.
+     *
+     * @return maximum latency in milliseconds
+     */
+    public double maxLatencyMillis() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("batches", batchCount())
+                .add("failed", failedBatchCount())
+                .add("operations", operationCount())
+                .add("avgLatencyMs", averageLatencyMillis())
+                .add("maxLatencyMs", maxLatencyMillis())
+                .toString();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.Maps;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.driver.DriverService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleProgrammable;
+import org.onosproject.net.flow.TableId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Periodically audits the forwarding tables of the devices against the
+ * desired rules and repairs the differences, e.g. after a switch restarted
+ * or lost entries.
+ * <p>
+ * Every table the app writes to is audited. The entries are read from the
+ * device itself through its {@link FlowRuleProgrammable} behaviour rather
+ * than from the flow rule store. The P4Runtime implementation of the
+ * behaviour fetches all the tables of the pipeline, along with the direct
+ * counters of their entries, with one wildcard read per device; there is no
+ * per-table variant of the behaviour, so the entries of tables the app does
+ * not write are read too and dropped here. Only the missing, modified and
+ * extraneous entries are written back. Rounds are
+ * jittered so that the audits of several controllers do not line up, and a
+ * device whose audit fails is retried with an exponential backoff.
+ */
+public class FlowRuleReconciler {
+
+    static final Set<TableId> AUDITED_TABLES = VxlanRuleGenerator.TABLES;
+
+    // Rounds are spread over +/- 20% of the interval.
+    private static final double JITTER = 0.2;
+    // Failing devices are retried after at most 2^5 intervals.
+    private static final int MAX_BACKOFF_EXPONENT = 5;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ApplicationId appId;
+    private final DriverService driverService;
+    private final FlowRuleInstaller installer;
+    private final Supplier<Map<DeviceId, Set<FlowRule>>> desiredRules;
+    private final ScheduledExecutorService executor;
+    private final long intervalMillis;
+
+    // Consecutive failures and next attempt of the failing devices.
+    private final Map<DeviceId, Backoff> backoffs = Maps.newConcurrentMap();
+
+    private final AtomicLong audits = new AtomicLong();
+    private final AtomicLong failedAudits = new AtomicLong();
+    private final AtomicLong repairedRules = new AtomicLong();
+
+    private volatile boolean running;
+
+    /**
+     * Creates a new reconciler.
+     *
+     * @param appId          application owning the audited rules
+     * @param driverService  driver service giving access to the devices
+     * @param installer      installer used to push the repairs
+     * @param desiredRules   supplier of the rules every device should have
+     * @param executor       single-threaded executor running the audits
+     * @param intervalMillis average interval between two rounds
+     */
+    public FlowRuleReconciler(ApplicationId appId, DriverService driverService, FlowRuleInstaller installer,
+                              Supplier<Map<DeviceId, Set<FlowRule>>> desiredRules,
+                              ScheduledExecutorService executor, long intervalMillis) {
+        this.appId = appId;
+        this.driverService = driverService;
+        this.installer = installer;
+        this.desiredRules = desiredRules;
+        this.executor = executor;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts auditing the devices periodically.
+     */
+    public void start() {
+        running = true;
+        scheduleRound();
+    }
+
+    /**
+     * Stops auditing the devices. A round in progress completes.
+     */
+    public void stop() {
+        running = false;
+        backoffs.clear();
+    }
+
+    private void scheduleRound() {
+        if (running) {
+            executor.schedule(this::round, jittered(intervalMillis), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void round() {
+        try {
+            long now = System.nanoTime();
+            desiredRules.get().forEach((deviceId, rules) -> {
+                Backoff backoff = backoffs.get(deviceId);
+                if (running && (backoff == null || now - backoff.nextAttemptNanos >= 0)) {
+                    audit(deviceId, rules);
+                }
+            });
+            backoffs.keySet().retainAll(desiredRules.get().keySet());
+        } catch (RuntimeException e) {
+            log.warn("Flow rule audit round failed", e);
+        } finally {
+            scheduleRound();
+        }
+    }
+
+    /**
+     * Reads the audited tables of a device and pushes the differences with
+     * the desired rules.
+     *
+     * @param deviceId device identifier
+     * @param rules    desired rules of the device
+     */
+    void audit(DeviceId deviceId, Set<FlowRule> rules) {
+        audits.incrementAndGet();
+        Collection<FlowEntry> entries;
+        try {
+            DriverHandler handler = driverService.createHandler(deviceId);
+            if (!handler.hasBehaviour(FlowRuleProgrammable.class)) {
+                return;
+            }
+            entries = handler.behaviour(FlowRuleProgrammable.class).getFlowEntries();
+        } catch (RuntimeException e) {
+            log.warn("Unable to read the flow entries of {}: {}", deviceId, e.getMessage());
+            failed(deviceId);
+            return;
+        }
+
+        Set<FlowRule> actual = entries.stream()
+                .filter(entry -> entry.appId() == appId.id() && AUDITED_TABLES.contains(entry.table()))
+                .collect(Collectors.toSet());
+        Set<FlowRule> desired = rules.stream()
+                .filter(rule -> AUDITED_TABLES.contains(rule.table()))
+                .collect(Collectors.toSet());
+        FlowRuleDiff diff = FlowRuleDiff.compute(actual, desired);
+        if (diff.isEmpty()) {
+            backoffs.remove(deviceId);
+            return;
+        }
+
+        log.info("Repairing {}: {}", deviceId, diff);
+        repairedRules.addAndGet(diff.toAdd().size() + diff.toModify().size() + diff.toRemove().size());
+        installer.install(deviceId, diff).thenAccept(success -> {
+            if (success) {
+                backoffs.remove(deviceId);
+            } else {
+                failed(deviceId);
+            }
+        });
+    }
+
+    private void failed(DeviceId deviceId) {
+        failedAudits.incrementAndGet();
+        backoffs.compute(deviceId, (id, previous) -> {
+            int failures = previous == null ? 1 : previous.failures + 1;
+            long delay = jittered(intervalMillis << Math.min(failures, MAX_BACKOFF_EXPONENT));
+            return new Backoff(failures, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+        });
+    }
+
+    private static long jittered(long millis) {
+        double factor = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, (long) (millis * factor));
+    }
+
+    /**
+     * Returns the number of device audits performed.
+     *
+     * @return number of audits
+     */
+    public long auditCount() {
+        return audits.get();
+    }
+
+    /**
+     * Returns the number of device audits that failed to read or repair.
+     *
+     * @return number of failed audits
+     */
+    public long failedAuditCount() {
+        return failedAudits.get();
+    }
+
+    /**
+     * Returns the number of flow rule operations pushed as repairs.
+     *
+     * @return number of repaired rules
+     */
+    public long repairedRuleCount() {
+        return repairedRules.get();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("audits", auditCount())
+                .add("failed", failedAuditCount())
+                .add("repaired", repairedRuleCount())
+                .add("backingOff", backoffs.size())
+                .toString();
+    }
+
+    private static final class Backoff {
+        private final int failures;
+        private final long nextAttemptNanos;
+
+        private Backoff(int failures, long nextAttemptNanos) {
+            this.failures = failures;
+            this.nextAttemptNanos = nextAttemptNanos;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.DefaultGroupKey;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Installs the flow rules of the hosts reported by the learn notifications
+ * of the VTEPs.
+ * <p>
+ * A VTEP keeps notifying a source until its smac_table entry is installed, so
+ * notifications are collected for a short interval, deduplicated, and the
+ * resulting rules of each device are pushed as a single batch.
+ * <p>
+ * The notifications are I2E clones of the packets whose source missed
+ * smac_table, truncated after the Ethernet header; the learner installs the
+ * clone session mirroring them to the CPU port on every VTEP.
+ */
+public class MacLearner {
+
+    private static final long FLUSH_INTERVAL_MILLIS = 50;
+
+    // Must match LEARN_CLONE_SESSION and CPU_PORT in vxlan.p4.
+    static final int LEARN_CLONE_SESSION = 100;
+    private static final PortNumber CPU_PORT = PortNumber.portNumber(255);
+    private static final GroupKey CLONE_GROUP_KEY =
+            new DefaultGroupKey(ByteBuffer.allocate(Integer.BYTES).putInt(LEARN_CLONE_SESSION).array());
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ApplicationId appId;
+    private final VxlanRuleGenerator ruleGenerator;
+    private final FlowRuleInstaller installer;
+    private final GroupService groupService;
+    private final ScheduledExecutorService executor;
+
+    // Notifications received since the last flush, deduplicated.
+    private final Map<LearnedHost, LearnedHost> pending = Maps.newConcurrentMap();
+    // Rules installed for the learned hosts, per device.
+    private final Map<DeviceId, Set<FlowRule>> learnedRules = Maps.newConcurrentMap();
+    // Last known location of each learned host, by device, VNI and MAC.
+    private final Map<List<Object>, LearnedHost> learned = Maps.newConcurrentMap();
+
+    private volatile Map<DeviceId, Vtep> vteps = ImmutableMap.of();
+
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong learnedHosts = new AtomicLong();
+
+    /**
+     * Creates a new learner.
+     *
+     * @param appId         application owning the clone sessions
+     * @param ruleGenerator generator of the host flow rules
+     * @param installer     installer used to push the rules
+     * @param groupService  group service used to install the clone sessions
+     * @param executor      single-threaded executor running the flushes
+     */
+    public MacLearner(ApplicationId appId, VxlanRuleGenerator ruleGenerator, FlowRuleInstaller installer,
+                      GroupService groupService, ScheduledExecutorService executor) {
+        this.appId = appId;
+        this.ruleGenerator = ruleGenerator;
+        this.installer = installer;
+        this.groupService = groupService;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts flushing the notifications periodically.
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS,
+                                        FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Updates the VTEPs hosts are learned on. Hosts learned on devices that
+     * are not VTEPs anymore, or whose VTEP changed, are forgotten and their
+     * rules removed.
+     *
+     * @param vteps current VTEPs
+     */
+    public void updateVteps(Set<Vtep> vteps) {
+        ImmutableMap.Builder<DeviceId, Vtep> builder = ImmutableMap.builder();
+        vteps.forEach(vtep -> builder.put(vtep.deviceId(), vtep));
+        Map<DeviceId, Vtep> updated = builder.build();
+        Map<DeviceId, Vtep> previous = this.vteps;
+        this.vteps = updated;
+
+        executor.execute(() -> {
+            previous.forEach((deviceId, vtep) -> {
+                if (!vtep.equals(updated.get(deviceId))) {
+                    forget(deviceId);
+                }
+                if (!updated.containsKey(deviceId)) {
+                    groupService.removeGroup(deviceId, CLONE_GROUP_KEY, appId);
+                }
+            });
+            updated.keySet().stream()
+                    .filter(deviceId -> !previous.containsKey(deviceId))
+                    .forEach(this::addCloneSession);
+        });
+    }
+
+    private void addCloneSession(DeviceId deviceId) {
+        TrafficTreatment toCpu = DefaultTrafficTreatment.builder().setOutput(CPU_PORT).build();
+        GroupBuckets buckets = new GroupBuckets(
+                ImmutableList.of(DefaultGroupBucket.createCloneGroupBucket(toCpu)));
+        groupService.addGroup(new DefaultGroupDescription(
+                deviceId, GroupDescription.Type.CLONE, buckets, CLONE_GROUP_KEY, LEARN_CLONE_SESSION, appId));
+    }
+
+    /**
+     * Reports a host notified by a VTEP.
+     *
+     * @param deviceId  VTEP the notification comes from
+     * @param port      port the host was seen on
+     * @param mac       MAC address of the host
+     * @param vni       VXLAN network identifier of the host
+     * @param tunnelSrc remote VTEP the host is behind, null for local hosts
+     */
+    public void learn(DeviceId deviceId, PortNumber port, MacAddress mac, long vni, Ip4Address tunnelSrc) {
+        notifications.incrementAndGet();
+        LearnedHost host = new LearnedHost(deviceId, port, mac, vni, tunnelSrc);
+        if (!host.equals(learned.get(host.key()))) {
+            pending.putIfAbsent(host, host);
+        }
+    }
+
+    /**
+     * Removes the clone sessions and forgets all the learned hosts, leaving
+     * their flow rules to the caller.
+     */
+    public void stop() {
+        vteps.keySet().forEach(deviceId -> groupService.removeGroup(deviceId, CLONE_GROUP_KEY, appId));
+        vteps = ImmutableMap.of();
+        pending.clear();
+        learned.clear();
+        learnedRules.clear();
+    }
+
+    /**
+     * Pushes again the rules of the hosts learned on a device, which may have
+     * lost them.
+     *
+     * @param deviceId device identifier
+     */
+    public void reinstall(DeviceId deviceId) {
+        Set<FlowRule> rules = learnedRules.get(deviceId);
+        if (rules != null) {
+            installer.install(deviceId, FlowRuleDiff.compute(ImmutableSet.of(), rules));
+        }
+    }
+
+    /**
+     * Returns the rules installed for the hosts learned on every device.
+     *
+     * @return learned rules indexed by device
+     */
+    public Map<DeviceId, Set<FlowRule>> learnedRules() {
+        return ImmutableMap.copyOf(learnedRules);
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<DeviceId, Set<FlowRule>> newRules = Maps.newHashMap();
+        Map<DeviceId, Set<FlowRule>> staleRules = Maps.newHashMap();
+        for (LearnedHost host : ImmutableSet.copyOf(pending.keySet())) {
+            pending.remove(host);
+            Vtep vtep = vteps.get(host.deviceId);
+            if (vtep == null) {
+                continue;
+            }
+            LearnedHost previous = learned.get(host.key());
+            if (host.equals(previous)) {
+                continue;
+            }
+            Set<FlowRule> hostRules = hostRules(vtep, host);
+            if (hostRules.isEmpty()) {
+                // No tunnel towards the remote VTEP yet: the host stays
+                // unlearned, its next notification tries again.
+                log.debug("No rules for {} yet", host);
+                continue;
+            }
+            learned.put(host.key(), host);
+            learnedHosts.incrementAndGet();
+            Set<FlowRule> rules = newRules.computeIfAbsent(host.deviceId, d -> Sets.newHashSet());
+            if (previous != null) {
+                // The host moved: the rules of its former location go away,
+                // whether installed already or only added by this flush.
+                log.debug("Learned {}, formerly {}", host, previous);
+                Set<FlowRule> former = hostRules(vtep, previous);
+                staleRules.computeIfAbsent(host.deviceId, d -> Sets.newHashSet()).addAll(former);
+                rules.removeAll(former);
+            } else {
+                log.debug("Learned {}", host);
+            }
+            rules.addAll(hostRules);
+        }
+
+        newRules.forEach((deviceId, rules) -> {
+            Set<FlowRule> current = learnedRules.getOrDefault(deviceId, ImmutableSet.of());
+            Set<FlowRule> desired = Sets.newHashSet(current);
+            desired.removeAll(staleRules.getOrDefault(deviceId, ImmutableSet.of()));
+            desired.addAll(rules);
+            learnedRules.put(deviceId, ImmutableSet.copyOf(desired));
+            installer.install(deviceId, FlowRuleDiff.compute(current, desired));
+        });
+    }
+
+    private Set<FlowRule> hostRules(Vtep vtep, LearnedHost host) {
+        return ImmutableSet.copyOf(host.tunnelSrc == null ?
+                ruleGenerator.localHostRules(vtep, host.mac, host.vni, host.port) :
+                ruleGenerator.remoteHostRules(vtep, host.mac, host.vni, host.tunnelSrc));
+    }
+
+    private void forget(DeviceId deviceId) {
+        learned.values().removeIf(host -> host.deviceId.equals(deviceId));
+        Set<FlowRule> rules = learnedRules.remove(deviceId);
+        if (rules != null) {
+            installer.install(deviceId, FlowRuleDiff.compute(rules, ImmutableSet.of()));
+        }
+    }
+
+    /**
+     * Returns the number of learn notifications received.
+     *
+     * @return number of notifications
+     */
+    public long notificationCount() {
+        return notifications.get();
+    }
+
+    /**
+     * Returns the number of hosts learned.
+     *
+     * @return number of learned hosts
+     */
+    public long learnedCount() {
+        return learnedHosts.get();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("notifications", notificationCount())
+                .add("learned", learnedCount())
+                .add("pending", pending.size())
+                .toString();
+    }
+
+    private static final class LearnedHost {
+        private final DeviceId deviceId;
+        private final PortNumber port;
+        private final MacAddress mac;
+        private final long vni;
+        private final Ip4Address tunnelSrc;
+
+        private LearnedHost(DeviceId deviceId, PortNumber port, MacAddress mac, long vni, Ip4Address tunnelSrc) {
+            this.deviceId = deviceId;
+            this.port = port;
+            this.mac = mac;
+            this.vni = vni;
+            this.tunnelSrc = tunnelSrc;
+        }
+
+        private List<Object> key() {
+            return ImmutableList.of(deviceId, vni, mac);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, port, mac, vni, tunnelSrc);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof LearnedHost) {
+                LearnedHost that = (LearnedHost) obj;
+                return Objects.equals(deviceId, that.deviceId) &&
+                        Objects.equals(port, that.port) &&
+                        Objects.equals(mac, that.mac) &&
+                        vni == that.vni &&
+                        Objects.equals(tunnelSrc, that.tunnelSrc);
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return toStringHelper(this)
+                    .add("deviceId", deviceId)
+                    .add("port", port)
+                    .add("mac", mac)
+                    .add("vni", vni)
+                    .add("tunnelSrc", tunnelSrc)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+/**
+ * Constants for default values of configurable properties.
+ */
+public final class OsgiPropertyConstants {
+
+    private OsgiPropertyConstants() {
+    }
+
+    public static final String PACKET_IN_WORKERS = "packetInWorkers";
+    public static final int PACKET_IN_WORKERS_DEFAULT = 4;
+
+    public static final String PACKET_IN_QUEUE_SIZE = "packetInQueueSize";
+    public static final int PACKET_IN_QUEUE_SIZE_DEFAULT = 4096;
+
+    public static final String PACKET_IN_RATE = "packetInRate";
+    public static final int PACKET_IN_RATE_DEFAULT = 500;
+
+    public static final String PACKET_IN_BURST = "packetInBurst";
+    public static final int PACKET_IN_BURST_DEFAULT = 1000;
+
+    public static final String RECONCILE_INTERVAL = "reconcileInterval";
+    public static final int RECONCILE_INTERVAL_DEFAULT = 30;
+
+    public static final String COUNTER_POLL_INTERVAL = "counterPollInterval";
+    public static final int COUNTER_POLL_INTERVAL_DEFAULT = 10;
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Tenant host attached to an access port of a VTEP.
+ */
+public final class OverlayHost {
+
+    private final MacAddress mac;
+    private final Ip4Address ip;
+    private final long vni;
+    private final DeviceId deviceId;
+    private final PortNumber port;
+
+    /**
+     * Creates a new overlay host description.
+     *
+     * @param mac      host MAC address
+     * @param ip       host IPv4 address
+     * @param vni      VXLAN network identifier of the host's tenant
+     * @param deviceId VTEP the host is attached to
+     * @param port     access port of the VTEP facing the host
+     */
+    public OverlayHost(MacAddress mac, Ip4Address ip, long vni,
+                       DeviceId deviceId, PortNumber port) {
+        this.mac = checkNotNull(mac);
+        this.ip = checkNotNull(ip);
+        this.vni = vni;
+        this.deviceId = checkNotNull(deviceId);
+        this.port = checkNotNull(port);
+    }
+
+    public MacAddress mac() {
+        return mac;
+    }
+
+    public Ip4Address ip() {
+        return ip;
+    }
+
+    public long vni() {
+        return vni;
+    }
+
+    public DeviceId deviceId() {
+        return deviceId;
+    }
+
+    public PortNumber port() {
+        return port;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mac, ip, vni, deviceId, port);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof OverlayHost) {
+            OverlayHost that = (OverlayHost) obj;
+            return Objects.equals(mac, that.mac) &&
+                    Objects.equals(ip, that.ip) &&
+                    vni == that.vni &&
+                    Objects.equals(deviceId, that.deviceId) &&
+                    Objects.equals(port, that.port);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("mac", mac)
+                .add("ip", ip)
+                .add("vni", vni)
+                .add("deviceId", deviceId)
+                .add("port", port)
+                .toString();
+    }
+}
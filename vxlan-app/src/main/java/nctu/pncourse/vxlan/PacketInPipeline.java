@@ -0,0 +1,295 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Hands the packet-ins of the VTEPs over to a pool of workers.
+ * <p>
+ * The packet processor only admits packets and queues them, so the packet
+ * service thread is never held by the handlers. Admission is limited per
+ * device by a token bucket and by a share of the queue of at most one burst,
+ * so a VTEP flooding the controller gets its own packets dropped while the
+ * notifications of the other VTEPs keep being processed. When the queue is
+ * full, packets are dropped as well.
+ * <p>
+ * Only the packets carrying a cookie, i.e. sent by the VXLAN pipeline, are
+ * admitted; admitted packets are blocked for the processors that follow.
+ */
+public class PacketInPipeline implements PacketProcessor {
+
+    /**
+     * Handler of the packets taken off the queue.
+     */
+    public interface Handler {
+
+        /**
+         * Handles a packet-in. Called from the worker threads.
+         *
+         * @param packet inbound packet
+         * @return true if the packet was consumed by this handler
+         */
+        boolean handle(InboundPacket packet);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final int workers;
+    private final int burst;
+    private final double ratePerNano;
+    private final BlockingQueue<InboundPacket> queue;
+    private final List<Handler> handlers = new CopyOnWriteArrayList<>();
+    private final Map<DeviceId, DeviceState> devices = Maps.newConcurrentMap();
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong queueFull = new AtomicLong();
+    private final AtomicLong unhandled = new AtomicLong();
+
+    private ExecutorService executor;
+
+    /**
+     * Creates a new packet-in pipeline.
+     *
+     * @param workers   number of worker threads
+     * @param queueSize capacity of the queue shared by the devices
+     * @param rate      packets admitted per second and per device
+     * @param burst     packets a device may send at once, and may have queued
+     */
+    public PacketInPipeline(int workers, int queueSize, int rate, int burst) {
+        checkArgument(workers > 0, "Invalid number of workers: %s", workers);
+        checkArgument(queueSize > 0, "Invalid queue size: %s", queueSize);
+        checkArgument(rate > 0, "Invalid rate: %s", rate);
+        checkArgument(burst > 0, "Invalid burst: %s", burst);
+        this.workers = workers;
+        this.burst = burst;
+        this.ratePerNano = rate / 1e9;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Adds a handler. Handlers are offered a packet in the order they were
+     * added until one consumes it.
+     *
+     * @param handler packet handler
+     */
+    public void addHandler(Handler handler) {
+        handlers.add(handler);
+    }
+
+    /**
+     * Starts the workers.
+     */
+    public synchronized void start() {
+        executor = Executors.newFixedThreadPool(workers, groupedThreads("onos/vxlan", "packet-%d", log));
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+    }
+
+    /**
+     * Stops the workers and drops the queued packets.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        queue.clear();
+        devices.values().forEach(state -> state.queued.set(0));
+    }
+
+    @Override
+    public void process(PacketContext context) {
+        if (context.isHandled() || !context.inPacket().cookie().isPresent()) {
+            return;
+        }
+        InboundPacket packet = context.inPacket();
+        DeviceState state = devices.computeIfAbsent(packet.receivedFrom().deviceId(),
+                                                     d -> new DeviceState(burst));
+        // Packets of a throttled device are dropped but still blocked, they
+        // are not meant for anyone else.
+        context.block();
+        if (!state.tryAcquire(ratePerNano, burst)) {
+            state.rateLimited.incrementAndGet();
+            rateLimited.incrementAndGet();
+            return;
+        }
+        if (state.queued.incrementAndGet() > burst || !queue.offer(packet)) {
+            state.queued.decrementAndGet();
+            state.queueFull.incrementAndGet();
+            queueFull.incrementAndGet();
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            InboundPacket packet;
+            try {
+                packet = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            DeviceState state = devices.get(packet.receivedFrom().deviceId());
+            if (state != null) {
+                state.queued.decrementAndGet();
+            }
+            dispatch(packet);
+        }
+    }
+
+    private void dispatch(InboundPacket packet) {
+        processed.incrementAndGet();
+        try {
+            for (Handler handler : handlers) {
+                if (handler.handle(packet)) {
+                    return;
+                }
+            }
+            unhandled.incrementAndGet();
+        } catch (RuntimeException e) {
+            log.warn("Unable to handle packet-in from {}", packet.receivedFrom(), e);
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting in the queue.
+     *
+     * @return queue depth
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of packets handed over to the handlers.
+     *
+     * @return number of processed packets
+     */
+    public long processedCount() {
+        return processed.get();
+    }
+
+    /**
+     * Returns the number of packets dropped because their device exceeded
+     * its rate.
+     *
+     * @return number of rate-limited packets
+     */
+    public long rateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    /**
+     * Returns the number of packets dropped because the queue, or the share
+     * of their device, was full.
+     *
+     * @return number of packets dropped on a full queue
+     */
+    public long queueFullCount() {
+        return queueFull.get();
+    }
+
+    /**
+     * Returns the number of packets no handler consumed.
+     *
+     * @return number of unhandled packets
+     */
+    public long unhandledCount() {
+        return unhandled.get();
+    }
+
+    /**
+     * Returns the number of packets dropped, for any reason, per device.
+     *
+     * @return dropped packets indexed by device
+     */
+    public Map<DeviceId, Long> droppedCounts() {
+        ImmutableMap.Builder<DeviceId, Long> builder = ImmutableMap.builder();
+        devices.forEach((deviceId, state) ->
+                                builder.put(deviceId, state.rateLimited.get() + state.queueFull.get()));
+        return builder.build();
+    }
+
+    /**
+     * Forgets the rate limiting state of a device.
+     *
+     * @param deviceId device identifier
+     */
+    public void forget(DeviceId deviceId) {
+        devices.remove(deviceId);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("queueDepth", queueDepth())
+                .add("processed", processedCount())
+                .add("rateLimited", rateLimitedCount())
+                .add("queueFull", queueFullCount())
+                .add("unhandled", unhandledCount())
+                .toString();
+    }
+
+    // Token bucket and queue occupancy of a device.
+    private static final class DeviceState {
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong rateLimited = new AtomicLong();
+        private final AtomicLong queueFull = new AtomicLong();
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private DeviceState(int burst) {
+            this.tokens = burst;
+        }
+
+        private synchronized boolean tryAcquire(double ratePerNano, int burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
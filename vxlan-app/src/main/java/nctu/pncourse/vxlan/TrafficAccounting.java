@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.pi.model.PiCounterId;
+import org.onosproject.net.pi.runtime.PiCounterCellId;
+
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Reports the traffic of the VNIs and tunnels of the VTEPs from the cells
+ * of their vni_counter and tunnel_counter, which the counter monitor reads
+ * along with the other counters of the devices. The cells are mapped back to
+ * their VNI and tunnel through the indexes allocated by the tunnel manager.
+ */
+public class TrafficAccounting implements VxlanTrafficService {
+
+    private static final PiCounterId VNI_COUNTER = PiCounterId.of("MyIngress.vni_counter");
+    private static final PiCounterId TUNNEL_COUNTER = PiCounterId.of("MyEgress.tunnel_counter");
+
+    private final TunnelManager tunnels;
+    private final Supplier<CounterMonitor> monitor;
+
+    /**
+     * Creates a new traffic accounting.
+     *
+     * @param tunnels allocator of the tunnel identifiers and VNI indexes
+     * @param monitor supplier of the current counter monitor, null if none
+     */
+    public TrafficAccounting(TunnelManager tunnels, Supplier<CounterMonitor> monitor) {
+        this.tunnels = tunnels;
+        this.monitor = monitor;
+    }
+
+    @Override
+    public Map<Long, TrafficStats> vniTraffic() {
+        CounterMonitor counters = monitor.get();
+        Map<Long, TrafficStats> traffic = Maps.newHashMap();
+        if (counters != null) {
+            counters.devices().forEach(deviceId -> vniTraffic(counters, deviceId)
+                    .forEach((vni, stats) -> traffic.merge(vni, stats, TrafficStats::add)));
+        }
+        return ImmutableMap.copyOf(traffic);
+    }
+
+    @Override
+    public Map<Long, TrafficStats> vniTraffic(DeviceId deviceId) {
+        CounterMonitor counters = monitor.get();
+        return counters == null ? ImmutableMap.of() : vniTraffic(counters, deviceId);
+    }
+
+    @Override
+    public Map<DeviceId, Map<Ip4Address, TrafficStats>> tunnelTraffic() {
+        CounterMonitor counters = monitor.get();
+        ImmutableMap.Builder<DeviceId, Map<Ip4Address, TrafficStats>> traffic = ImmutableMap.builder();
+        if (counters != null) {
+            for (DeviceId deviceId : counters.devices()) {
+                Map<Ip4Address, TrafficStats> remotes = tunnelTraffic(counters, deviceId);
+                if (!remotes.isEmpty()) {
+                    traffic.put(deviceId, remotes);
+                }
+            }
+        }
+        return traffic.build();
+    }
+
+    @Override
+    public Map<Ip4Address, TrafficStats> tunnelTraffic(DeviceId deviceId) {
+        CounterMonitor counters = monitor.get();
+        return counters == null ? ImmutableMap.of() : tunnelTraffic(counters, deviceId);
+    }
+
+    private Map<Long, TrafficStats> vniTraffic(CounterMonitor counters, DeviceId deviceId) {
+        return sum(counters.counters(deviceId), VNI_COUNTER, tunnels.vnis(deviceId), Function.identity());
+    }
+
+    private Map<Ip4Address, TrafficStats> tunnelTraffic(CounterMonitor counters, DeviceId deviceId) {
+        return sum(counters.counters(deviceId), TUNNEL_COUNTER, tunnels.tunnels(deviceId),
+                   TunnelManager.Tunnel::remoteIp);
+    }
+
+    // Sums the cells of a counter by the key their index is allocated to.
+    // Cells not read yet count as no traffic.
+    private static <V, K> Map<K, TrafficStats> sum(Map<PiCounterCellId, CounterHistory> cells,
+                                                   PiCounterId counterId, Map<Integer, V> indexes,
+                                                   Function<V, K> key) {
+        Map<K, TrafficStats> traffic = Maps.newHashMap();
+        indexes.forEach((index, value) -> {
+            CounterHistory history = cells.get(PiCounterCellId.ofIndirect(counterId, index));
+            TrafficStats stats = history == null ? TrafficStats.EMPTY : TrafficStats.of(history);
+            traffic.merge(key.apply(value), stats, TrafficStats::add);
+        });
+        return ImmutableMap.copyOf(traffic);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Traffic carried by a VNI or a tunnel: the counts of its counter cells as
+ * of their last poll and the rates over the samples held.
+ */
+public final class TrafficStats {
+
+    /**
+     * Traffic of a cell not counted yet.
+     */
+    public static final TrafficStats EMPTY = new TrafficStats(0, 0, 0, 0);
+
+    private final long packets;
+    private final long bytes;
+    private final double packetsPerSecond;
+    private final double bitsPerSecond;
+
+    private TrafficStats(long packets, long bytes, double packetsPerSecond, double bitsPerSecond) {
+        this.packets = packets;
+        this.bytes = bytes;
+        this.packetsPerSecond = packetsPerSecond;
+        this.bitsPerSecond = bitsPerSecond;
+    }
+
+    /**
+     * Returns the traffic recorded by the history of a counter cell.
+     *
+     * @param history history of the cell
+     * @return traffic of the cell
+     */
+    public static TrafficStats of(CounterHistory history) {
+        return new TrafficStats(history.packets(), history.bytes(),
+                                history.packetsPerSecond(), history.bitsPerSecond());
+    }
+
+    /**
+     * Returns the sum of this traffic and another one.
+     *
+     * @param other traffic to add
+     * @return combined traffic
+     */
+    public TrafficStats add(TrafficStats other) {
+        return new TrafficStats(packets + other.packets, bytes + other.bytes,
+                                packetsPerSecond + other.packetsPerSecond,
+                                bitsPerSecond + other.bitsPerSecond);
+    }
+
+    /**
+     * Returns the packets counted.
+     *
+     * @return packet count
+     */
+    public long packets() {
+        return packets;
+    }
+
+    /**
+     * Returns the bytes counted.
+     *
+     * @return byte count
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the packet rate.
+     *
+     * @return packets per second
+     */
+    public double packetsPerSecond() {
+        return packetsPerSecond;
+    }
+
+    /**
+     * Returns the bit rate.
+     *
+     * @return bits per second
+     */
+    public double bitsPerSecond() {
+        return bitsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("packets", packets)
+                .add("bytes", bytes)
+                .add("pps", packetsPerSecond)
+                .add("bps", bitsPerSecond)
+                .toString();
+    }
+}
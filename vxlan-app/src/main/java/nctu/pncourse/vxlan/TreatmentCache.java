@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import nctu.pncourse.p4extensiontreatment.P4SetMulticastGRP;
+import nctu.pncourse.p4extensiontreatment.P4SetTunnelDecap;
+import nctu.pncourse.p4extensiontreatment.P4SetVxlanEncap;
+
+/**
+ * Cache of the extension treatments handed to the flow rules of the overlay.
+ * <p>
+ * The extensions are built directly rather than through the extension
+ * treatment resolver of the device, so that rules can be generated for
+ * devices that are not connected, or whose pipeconf is not deployed, yet.
+ * Treatments are interned per device and parameters, so that all the rules
+ * using the same tunnel share the same treatment instance. Treatments are
+ * held weakly: once no rule uses one, e.g. after its tunnel was removed, it
+ * is evicted. The owner invalidates the devices that are removed.
+ */
+public class TreatmentCache {
+
+    private static final String ENCAP = "encap";
+    private static final String DECAP = "decap";
+    private static final String FLOOD = "flood";
+
+    private final Map<TreatmentKey, TrafficTreatment> treatments =
+            CacheBuilder.newBuilder().weakValues().<TreatmentKey, TrafficTreatment>build().asMap();
+
+    /**
+     * Returns the treatment encapsulating traffic into a VXLAN tunnel.
+     *
+     * @param deviceId device the treatment is used on
+     * @param vni      VXLAN network identifier
+     * @param smac     outer source MAC address
+     * @param dmac     outer destination MAC address
+     * @param srcIp    tunnel source IPv4 address
+     * @param dstIp    tunnel destination IPv4 address
+     * @return encap treatment
+     */
+    public TrafficTreatment encap(DeviceId deviceId, long vni, MacAddress smac, MacAddress dmac,
+                                  Ip4Address srcIp, Ip4Address dstIp) {
+        return intern(new TreatmentKey(deviceId, ENCAP, vni, smac, dmac, srcIp, dstIp), () ->
+                // A single instruction carries the whole vxlan_encap action.
+                DefaultTrafficTreatment.builder()
+                        .extension(new P4SetVxlanEncap((int) vni, smac, dmac, srcIp, dstIp), deviceId)
+                        .build());
+    }
+
+    /**
+     * Returns the treatment terminating VXLAN tunnels.
+     *
+     * @param deviceId device the treatment is used on
+     * @return decap treatment
+     */
+    public TrafficTreatment decap(DeviceId deviceId) {
+        return intern(new TreatmentKey(deviceId, DECAP), () ->
+                DefaultTrafficTreatment.builder()
+                        .extension(new P4SetTunnelDecap(1), deviceId)
+                        .build());
+    }
+
+    /**
+     * Returns the treatment replicating traffic to a multicast group.
+     *
+     * @param deviceId device the treatment is used on
+     * @param group    multicast group identifier
+     * @return flood treatment
+     */
+    public TrafficTreatment flood(DeviceId deviceId, short group) {
+        return intern(new TreatmentKey(deviceId, FLOOD, group), () ->
+                DefaultTrafficTreatment.builder()
+                        .extension(new P4SetMulticastGRP(group), deviceId)
+                        .build());
+    }
+
+    /**
+     * Forgets the treatments of a device, e.g. because it was removed.
+     *
+     * @param deviceId device identifier
+     */
+    public void invalidate(DeviceId deviceId) {
+        treatments.keySet().removeIf(key -> key.deviceId.equals(deviceId));
+    }
+
+    /**
+     * Forgets all the cached treatments.
+     */
+    public void clear() {
+        treatments.clear();
+    }
+
+    /**
+     * Returns the number of interned treatments, including the ones not
+     * evicted yet.
+     *
+     * @return number of treatments
+     */
+    public int size() {
+        return treatments.size();
+    }
+
+    private TrafficTreatment intern(TreatmentKey key, Supplier<TrafficTreatment> builder) {
+        TrafficTreatment treatment = treatments.get(key);
+        if (treatment == null) {
+            treatment = treatments.computeIfAbsent(key, k -> builder.get());
+        }
+        return treatment;
+    }
+
+    private static final class TreatmentKey {
+        private final DeviceId deviceId;
+        private final String kind;
+        private final List<Object> params;
+
+        private TreatmentKey(DeviceId deviceId, String kind, Object... params) {
+            this.deviceId = deviceId;
+            this.kind = kind;
+            this.params = ImmutableList.copyOf(params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, kind, params);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof TreatmentKey) {
+                TreatmentKey that = (TreatmentKey) obj;
+                return Objects.equals(deviceId, that.deviceId) &&
+                        Objects.equals(kind, that.kind) &&
+                        Objects.equals(params, that.params);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Allocates the tunnel identifiers of the VTEPs, one per VNI and remote
+ * VTEP, and the counter indexes of their VNIs.
+ * <p>
+ * host_tunnel maps the hosts behind a remote VTEP to the identifier of its
+ * tunnel, and encap_table maps the identifier to the tunnel parameters, so
+ * the parameters are written once per tunnel instead of once per host.
+ * The identifier stands for the action profile member a tunnel would
+ * otherwise be: ONOS only writes action profile members through the groups
+ * holding them, which would take a one-bucket group per tunnel, while an
+ * exact-match table takes plain flow rules and an index usable by counters.
+ * The identifier also indexes the tunnel_counter of the tunnel, as the VNI
+ * index does the vni_counter, so both stay below the size of the counters.
+ * A tunnel or VNI keeps its identifier as long as it exists, and released
+ * identifiers are only handed out again once the others are exhausted, so
+ * that rules of a removed tunnel never point to a new one and its counter
+ * cell has time to be read before being reused.
+ */
+public class TunnelManager {
+
+    // Identifiers index counters of 1024 cells, 0 is left unused.
+    private static final int MIN_ID = 1;
+    private static final int MAX_ID = 1023;
+
+    private final Allocator<List<Object>> tunnelIds = new Allocator<>("tunnel identifier");
+    private final Allocator<Long> vniIndexes = new Allocator<>("VNI index");
+
+    /**
+     * Allocates the identifiers of the given tunnels and VNIs, releasing the
+     * ones of the tunnels and VNIs not given.
+     *
+     * @param tunnels remote VTEPs of every VTEP, by VNI
+     * @param vnis    VNIs with local members on every VTEP
+     */
+    public synchronized void update(Map<DeviceId, Map<Long, List<Vtep>>> tunnels,
+                                    Map<DeviceId, Set<Long>> vnis) {
+        Map<DeviceId, Set<List<Object>>> keys = Maps.newHashMap();
+        tunnels.forEach((deviceId, remotes) -> {
+            Set<List<Object>> desired = Sets.newHashSet();
+            remotes.forEach((vni, vteps) -> vteps.forEach(remote -> desired.add(key(vni, remote.ip()))));
+            keys.put(deviceId, desired);
+        });
+        tunnelIds.update(keys);
+        vniIndexes.update(vnis);
+    }
+
+    /**
+     * Returns the identifier of a tunnel.
+     *
+     * @param deviceId VTEP the tunnel starts from
+     * @param vni      VXLAN network identifier
+     * @param remoteIp address of the remote VTEP
+     * @return tunnel identifier, null if the tunnel is unknown
+     */
+    public Integer tunnelId(DeviceId deviceId, long vni, Ip4Address remoteIp) {
+        return tunnelIds.id(deviceId, key(vni, remoteIp));
+    }
+
+    /**
+     * Returns the counter index of a VNI.
+     *
+     * @param deviceId VTEP the VNI has local members on
+     * @param vni      VXLAN network identifier
+     * @return VNI index, null if the VNI is unknown
+     */
+    public Integer vniIndex(DeviceId deviceId, long vni) {
+        return vniIndexes.id(deviceId, vni);
+    }
+
+    /**
+     * Returns the tunnels of a VTEP by identifier.
+     *
+     * @param deviceId VTEP the tunnels start from
+     * @return VNI and remote VTEP address of every tunnel identifier
+     */
+    public Map<Integer, Tunnel> tunnels(DeviceId deviceId) {
+        return Maps.transformValues(tunnelIds.keys(deviceId),
+                                    key -> new Tunnel((Long) key.get(0), (Ip4Address) key.get(1)));
+    }
+
+    /**
+     * Returns the VNIs of a VTEP by counter index.
+     *
+     * @param deviceId VTEP the VNIs have local members on
+     * @return VNI of every index
+     */
+    public Map<Integer, Long> vnis(DeviceId deviceId) {
+        return vniIndexes.keys(deviceId);
+    }
+
+    /**
+     * Releases all the identifiers.
+     */
+    public synchronized void clear() {
+        tunnelIds.clear();
+        vniIndexes.clear();
+    }
+
+    private static List<Object> key(long vni, Ip4Address remoteIp) {
+        return ImmutableList.of(vni, remoteIp);
+    }
+
+    /**
+     * Tunnel of a VTEP: the VNI it carries and its remote VTEP.
+     */
+    public static final class Tunnel {
+        private final long vni;
+        private final Ip4Address remoteIp;
+
+        private Tunnel(long vni, Ip4Address remoteIp) {
+            this.vni = vni;
+            this.remoteIp = remoteIp;
+        }
+
+        /**
+         * Returns the VNI carried by the tunnel.
+         *
+         * @return VXLAN network identifier
+         */
+        public long vni() {
+            return vni;
+        }
+
+        /**
+         * Returns the address of the remote VTEP of the tunnel.
+         *
+         * @return remote VTEP address
+         */
+        public Ip4Address remoteIp() {
+            return remoteIp;
+        }
+
+        @Override
+        public String toString() {
+            return toStringHelper(this)
+                    .add("vni", vni)
+                    .add("remoteIp", remoteIp)
+                    .toString();
+        }
+    }
+
+    // Identifiers of the keys of every device, allocated round-robin.
+    private static final class Allocator<K> {
+        private final Logger log = LoggerFactory.getLogger(TunnelManager.class);
+
+        private final String name;
+        private final Map<DeviceId, Map<K, Integer>> ids = Maps.newHashMap();
+        // Next identifier tried on every device.
+        private final Map<DeviceId, Integer> cursors = Maps.newHashMap();
+        // Snapshots of the identifiers and of their keys, read by the rule
+        // generator and the traffic reports.
+        private volatile Map<DeviceId, Map<K, Integer>> snapshot = ImmutableMap.of();
+        private volatile Map<DeviceId, Map<Integer, K>> reverse = ImmutableMap.of();
+
+        private Allocator(String name) {
+            this.name = name;
+        }
+
+        private void update(Map<DeviceId, Set<K>> keys) {
+            ids.keySet().retainAll(keys.keySet());
+            cursors.keySet().retainAll(keys.keySet());
+            keys.forEach((deviceId, desired) -> {
+                Map<K, Integer> deviceIds = ids.computeIfAbsent(deviceId, d -> Maps.newHashMap());
+                deviceIds.keySet().retainAll(desired);
+                Set<Integer> used = Sets.newHashSet(deviceIds.values());
+                for (K key : desired) {
+                    if (deviceIds.containsKey(key)) {
+                        continue;
+                    }
+                    if (used.size() > MAX_ID - MIN_ID) {
+                        log.warn("No {} left on {} for {}", name, deviceId, key);
+                        continue;
+                    }
+                    int next = cursors.getOrDefault(deviceId, MIN_ID);
+                    while (used.contains(next)) {
+                        next = next == MAX_ID ? MIN_ID : next + 1;
+                    }
+                    deviceIds.put(key, next);
+                    used.add(next);
+                    cursors.put(deviceId, next == MAX_ID ? MIN_ID : next + 1);
+                }
+            });
+
+            ImmutableMap.Builder<DeviceId, Map<K, Integer>> builder = ImmutableMap.builder();
+            ImmutableMap.Builder<DeviceId, Map<Integer, K>> reverseBuilder = ImmutableMap.builder();
+            ids.forEach((deviceId, deviceIds) -> {
+                builder.put(deviceId, ImmutableMap.copyOf(deviceIds));
+                reverseBuilder.put(deviceId, ImmutableBiMap.copyOf(deviceIds).inverse());
+            });
+            snapshot = builder.build();
+            reverse = reverseBuilder.build();
+        }
+
+        private Integer id(DeviceId deviceId, K key) {
+            return snapshot.getOrDefault(deviceId, ImmutableMap.of()).get(key);
+        }
+
+        private Map<Integer, K> keys(DeviceId deviceId) {
+            return reverse.getOrDefault(deviceId, ImmutableMap.of());
+        }
+
+        private void clear() {
+            ids.clear();
+            cursors.clear();
+            snapshot = ImmutableMap.of();
+            reverse = ImmutableMap.of();
+        }
+    }
+}
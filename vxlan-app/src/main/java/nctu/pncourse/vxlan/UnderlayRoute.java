@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Underlay next hop installed in the ipv4_lpm table of a transit device.
+ */
+public final class UnderlayRoute {
+
+    private final DeviceId deviceId;
+    private final IpPrefix prefix;
+    private final MacAddress nextHopMac;
+    private final PortNumber port;
+
+    /**
+     * Creates a new underlay route.
+     *
+     * @param deviceId   device the route is installed on
+     * @param prefix     destination prefix, usually a VTEP address
+     * @param nextHopMac MAC address of the next hop
+     * @param port       output port towards the next hop
+     */
+    public UnderlayRoute(DeviceId deviceId, IpPrefix prefix,
+                         MacAddress nextHopMac, PortNumber port) {
+        this.deviceId = checkNotNull(deviceId);
+        this.prefix = checkNotNull(prefix);
+        this.nextHopMac = checkNotNull(nextHopMac);
+        this.port = checkNotNull(port);
+    }
+
+    public DeviceId deviceId() {
+        return deviceId;
+    }
+
+    public IpPrefix prefix() {
+        return prefix;
+    }
+
+    public MacAddress nextHopMac() {
+        return nextHopMac;
+    }
+
+    public PortNumber port() {
+        return port;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(deviceId, prefix, nextHopMac, port);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof UnderlayRoute) {
+            UnderlayRoute that = (UnderlayRoute) obj;
+            return Objects.equals(deviceId, that.deviceId) &&
+                    Objects.equals(prefix, that.prefix) &&
+                    Objects.equals(nextHopMac, that.nextHopMac) &&
+                    Objects.equals(port, that.port);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("deviceId", deviceId)
+                .add("prefix", prefix)
+                .add("nextHopMac", nextHopMac)
+                .add("port", port)
+                .toString();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onlab.packet.IpPrefix;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Computes the underlay routes towards every VTEP from the topology.
+ * <p>
+ * A shortest path graph is kept per VTEP, giving the next links of every
+ * device on one of its shortest paths towards it; together they form the
+ * all-pairs path table of the underlay. Devices with several such links get
+ * one route per link, which are spread over by the ECMP selector. A link
+ * event only recomputes the graphs it can change: the ones using a removed
+ * link, and the ones an added link shortens or adds an equal cost path to.
+ * <p>
+ * Routes are installed on the transit devices only, the VTEPs send the
+ * encapsulated traffic to their configured next hop. The pipeline does not
+ * check destination MAC addresses, so the MAC of the destination VTEP is
+ * used along the whole path.
+ */
+public class UnderlayRouter {
+
+    // Links of the underlay, by destination device.
+    private final Map<DeviceId, Set<LinkKey>> ingressLinks = Maps.newHashMap();
+    private final Map<DeviceId, PathTree> trees = Maps.newHashMap();
+    private Map<DeviceId, Vtep> vteps = ImmutableMap.of();
+
+    private long recomputations;
+
+    /**
+     * Replaces the links of the underlay and recomputes every tree.
+     *
+     * @param links active links
+     * @return devices whose routes may have changed
+     */
+    public synchronized Set<DeviceId> setLinks(Iterable<Link> links) {
+        ingressLinks.clear();
+        links.forEach(link -> addLink(LinkKey.linkKey(link)));
+        return recompute(trees.keySet());
+    }
+
+    /**
+     * Updates the VTEPs routes are computed towards.
+     *
+     * @param vteps current VTEPs
+     * @return devices whose routes may have changed
+     */
+    public synchronized Set<DeviceId> setVteps(Set<Vtep> vteps) {
+        ImmutableMap.Builder<DeviceId, Vtep> builder = ImmutableMap.builder();
+        vteps.forEach(vtep -> builder.put(vtep.deviceId(), vtep));
+        Map<DeviceId, Vtep> previous = this.vteps;
+        this.vteps = builder.build();
+
+        Set<DeviceId> changed = Sets.newHashSet();
+        previous.forEach((deviceId, vtep) -> {
+            if (!vtep.equals(this.vteps.get(deviceId))) {
+                PathTree tree = trees.remove(deviceId);
+                if (tree != null) {
+                    changed.addAll(tree.routes.keySet());
+                }
+            }
+        });
+        // Routes are kept off the VTEPs, so a device joining or leaving the
+        // VTEPs changes every tree.
+        if (!previous.keySet().equals(this.vteps.keySet())) {
+            changed.addAll(recompute(this.vteps.keySet()));
+        } else {
+            changed.addAll(recompute(this.vteps.keySet().stream()
+                                             .filter(deviceId -> !trees.containsKey(deviceId))
+                                             .collect(Collectors.toSet())));
+        }
+        return changed;
+    }
+
+    /**
+     * Adds a link to the underlay, recomputing the trees it shortens or
+     * adds an equal cost path to.
+     *
+     * @param link added link
+     * @return devices whose routes may have changed
+     */
+    public synchronized Set<DeviceId> linkAdded(Link link) {
+        LinkKey key = LinkKey.linkKey(link);
+        if (!addLink(key)) {
+            return ImmutableSet.of();
+        }
+        Set<DeviceId> affected = trees.entrySet().stream()
+                .filter(e -> e.getValue().shortenedBy(key))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        return recompute(affected);
+    }
+
+    /**
+     * Removes a link from the underlay, recomputing the trees using it.
+     *
+     * @param link removed link
+     * @return devices whose routes may have changed
+     */
+    public synchronized Set<DeviceId> linkRemoved(Link link) {
+        LinkKey key = LinkKey.linkKey(link);
+        Set<LinkKey> links = ingressLinks.get(key.dst().deviceId());
+        if (links == null || !links.remove(key)) {
+            return ImmutableSet.of();
+        }
+        Set<DeviceId> affected = trees.entrySet().stream()
+                .filter(e -> e.getValue().uses(key))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        return recompute(affected);
+    }
+
+    /**
+     * Returns the routes of a device towards every VTEP, one per next hop.
+     *
+     * @param deviceId device identifier
+     * @return routes of the device
+     */
+    public synchronized Set<UnderlayRoute> routes(DeviceId deviceId) {
+        return trees.values().stream()
+                .map(tree -> tree.routes.get(deviceId))
+                .filter(Objects::nonNull)
+                .flatMap(Set::stream)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the number of path trees computed so far.
+     *
+     * @return number of tree computations
+     */
+    public synchronized long recomputations() {
+        return recomputations;
+    }
+
+    private boolean addLink(LinkKey link) {
+        return ingressLinks.computeIfAbsent(link.dst().deviceId(), d -> Sets.newHashSet()).add(link);
+    }
+
+    private Set<DeviceId> recompute(Set<DeviceId> destinations) {
+        Set<DeviceId> changed = Sets.newHashSet();
+        for (DeviceId dst : ImmutableSet.copyOf(destinations)) {
+            PathTree previous = trees.get(dst);
+            PathTree tree = compute(vteps.get(dst));
+            trees.put(dst, tree);
+            recomputations++;
+            Set<DeviceId> devices = Sets.union(tree.routes.keySet(),
+                                               previous == null ? ImmutableSet.of() : previous.routes.keySet());
+            for (DeviceId deviceId : devices) {
+                Set<UnderlayRoute> before = previous == null ? null : previous.routes.get(deviceId);
+                if (!Objects.equals(before, tree.routes.get(deviceId))) {
+                    changed.add(deviceId);
+                }
+            }
+        }
+        return changed;
+    }
+
+    // Breadth-first search from the VTEP over the reversed links, keeping
+    // every link on a shortest path.
+    private PathTree compute(Vtep vtep) {
+        Map<DeviceId, Integer> distances = Maps.newHashMap();
+        Map<DeviceId, Set<LinkKey>> nextLinks = Maps.newHashMap();
+        Deque<DeviceId> queue = new ArrayDeque<>();
+        distances.put(vtep.deviceId(), 0);
+        queue.add(vtep.deviceId());
+        while (!queue.isEmpty()) {
+            DeviceId current = queue.poll();
+            int distance = distances.get(current);
+            for (LinkKey link : ingressLinks.getOrDefault(current, ImmutableSet.of())) {
+                DeviceId previous = link.src().deviceId();
+                Integer known = distances.get(previous);
+                if (known == null) {
+                    distances.put(previous, distance + 1);
+                    queue.add(previous);
+                } else if (known != distance + 1) {
+                    continue;
+                }
+                nextLinks.computeIfAbsent(previous, d -> Sets.newHashSet()).add(link);
+            }
+        }
+
+        IpPrefix prefix = IpPrefix.valueOf(vtep.ip(), IpPrefix.MAX_INET_MASK_LENGTH);
+        Map<DeviceId, Set<UnderlayRoute>> routes = Maps.newHashMap();
+        nextLinks.forEach((deviceId, links) -> {
+            if (!vteps.containsKey(deviceId)) {
+                routes.put(deviceId, links.stream()
+                        .map(link -> new UnderlayRoute(deviceId, prefix, vtep.mac(), link.src().port()))
+                        .collect(Collectors.toSet()));
+            }
+        });
+        return new PathTree(distances, nextLinks, routes);
+    }
+
+    private static final class PathTree {
+        private final Map<DeviceId, Integer> distances;
+        private final Map<DeviceId, Set<LinkKey>> nextLinks;
+        private final Map<DeviceId, Set<UnderlayRoute>> routes;
+
+        private PathTree(Map<DeviceId, Integer> distances, Map<DeviceId, Set<LinkKey>> nextLinks,
+                         Map<DeviceId, Set<UnderlayRoute>> routes) {
+            this.distances = distances;
+            this.nextLinks = nextLinks;
+            this.routes = routes;
+        }
+
+        private boolean uses(LinkKey link) {
+            return nextLinks.getOrDefault(link.src().deviceId(), ImmutableSet.of()).contains(link);
+        }
+
+        private boolean shortenedBy(LinkKey link) {
+            Integer via = distances.get(link.dst().deviceId());
+            if (via == null) {
+                return false;
+            }
+            Integer current = distances.get(link.src().deviceId());
+            return current == null || via + 1 <= current;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+
+import java.util.Map;
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * VXLAN tunnel end point, i.e. a P4 switch terminating overlay tunnels.
+ */
+public final class Vtep {
+
+    private final DeviceId deviceId;
+    private final Ip4Address ip;
+    private final MacAddress mac;
+    private final PortNumber uplinkPort;
+    private final MacAddress nextHopMac;
+    private final Map<PortNumber, Long> accessPorts;
+
+    /**
+     * Creates a new VTEP description.
+     *
+     * @param deviceId    device acting as VTEP
+     * @param ip          tunnel source IPv4 address of the VTEP
+     * @param mac         underlay MAC address of the VTEP
+     * @param uplinkPort  port facing the underlay network
+     * @param nextHopMac  MAC address of the underlay next hop
+     * @param accessPorts VNI of the hosts attached to each access port
+     */
+    public Vtep(DeviceId deviceId, Ip4Address ip, MacAddress mac,
+                PortNumber uplinkPort, MacAddress nextHopMac, Map<PortNumber, Long> accessPorts) {
+        this.deviceId = checkNotNull(deviceId);
+        this.ip = checkNotNull(ip);
+        this.mac = checkNotNull(mac);
+        this.uplinkPort = checkNotNull(uplinkPort);
+        this.nextHopMac = checkNotNull(nextHopMac);
+        this.accessPorts = ImmutableMap.copyOf(accessPorts);
+    }
+
+    public DeviceId deviceId() {
+        return deviceId;
+    }
+
+    public Ip4Address ip() {
+        return ip;
+    }
+
+    public MacAddress mac() {
+        return mac;
+    }
+
+    public PortNumber uplinkPort() {
+        return uplinkPort;
+    }
+
+    public MacAddress nextHopMac() {
+        return nextHopMac;
+    }
+
+    /**
+     * Returns the VNI of the hosts attached to each access port, used to
+     * learn hosts that are not part of the configuration.
+     *
+     * @return VNI by access port
+     */
+    public Map<PortNumber, Long> accessPorts() {
+        return accessPorts;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(deviceId, ip, mac, uplinkPort, nextHopMac, accessPorts);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof Vtep) {
+            Vtep that = (Vtep) obj;
+            return Objects.equals(deviceId, that.deviceId) &&
+                    Objects.equals(ip, that.ip) &&
+                    Objects.equals(mac, that.mac) &&
+                    Objects.equals(uplinkPort, that.uplinkPort) &&
+                    Objects.equals(nextHopMac, that.nextHopMac) &&
+                    Objects.equals(accessPorts, that.accessPorts);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("deviceId", deviceId)
+                .add("ip", ip)
+                .add("mac", mac)
+                .add("uplinkPort", uplinkPort)
+                .add("nextHopMac", nextHopMac)
+                .add("accessPorts", accessPorts)
+                .toString();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.config.Config;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.onosproject.net.config.Config.FieldPresence.MANDATORY;
+import static org.onosproject.net.config.Config.FieldPresence.OPTIONAL;
+
+/**
+ * Network configuration of the VXLAN overlay.
+ * <pre>
+ * "apps" : {
+ *     "nctu.pncourse.vxlan" : {
+ *         "vxlan" : {
+ *             "vteps" : [{ "deviceId", "ip", "mac", "uplinkPort", "nextHopMac",
+ *                          "accessPorts" : [{ "port", "vni" }] }],
+ *             "hosts" : [{ "mac", "ip", "vni", "deviceId", "port" }],
+ *             "routes" : [{ "deviceId", "prefix", "nextHopMac", "port" }]
+ *         }
+ *     }
+ * }
+ * </pre>
+ * The former per-VTEP "floodGroup" field is still accepted and ignored: the
+ * flood groups are now allocated per VNI by the application.
+ */
+public class VxlanConfig extends Config<ApplicationId> {
+
+    public static final String CONFIG_KEY = "vxlan";
+
+    private static final String VTEPS = "vteps";
+    private static final String HOSTS = "hosts";
+    private static final String ROUTES = "routes";
+
+    private static final String DEVICE_ID = "deviceId";
+    private static final String IP = "ip";
+    private static final String MAC = "mac";
+    private static final String UPLINK_PORT = "uplinkPort";
+    private static final String NEXT_HOP_MAC = "nextHopMac";
+    // Deprecated, ignored.
+    private static final String FLOOD_GROUP = "floodGroup";
+    private static final String ACCESS_PORTS = "accessPorts";
+    private static final String VNI = "vni";
+    private static final String PORT = "port";
+    private static final String PREFIX = "prefix";
+
+    private static final long MAX_VNI = (1 << 24) - 1;
+
+    @Override
+    public boolean isValid() {
+        if (!hasOnlyFields(VTEPS, HOSTS, ROUTES)) {
+            return false;
+        }
+        for (JsonNode node : object.path(VTEPS)) {
+            if (!node.isObject()) {
+                return false;
+            }
+            ObjectNode vtep = (ObjectNode) node;
+            if (!(hasOnlyFields(vtep, DEVICE_ID, IP, MAC, UPLINK_PORT, NEXT_HOP_MAC, FLOOD_GROUP, ACCESS_PORTS) &&
+                    isString(vtep, DEVICE_ID, MANDATORY) &&
+                    isIpAddress(vtep, IP, MANDATORY) &&
+                    isIp4Address(vtep, IP) &&
+                    isMacAddress(vtep, MAC, MANDATORY) &&
+                    isIntegralNumber(vtep, UPLINK_PORT, MANDATORY, 0) &&
+                    isMacAddress(vtep, NEXT_HOP_MAC, MANDATORY) &&
+                    isIntegralNumber(vtep, FLOOD_GROUP, OPTIONAL, 0, Short.MAX_VALUE))) {
+                return false;
+            }
+            Set<Long> ports = new HashSet<>();
+            for (JsonNode portNode : vtep.path(ACCESS_PORTS)) {
+                if (!portNode.isObject()) {
+                    return false;
+                }
+                ObjectNode port = (ObjectNode) portNode;
+                if (!(hasOnlyFields(port, PORT, VNI) &&
+                        isIntegralNumber(port, PORT, MANDATORY, 0) &&
+                        isIntegralNumber(port, VNI, MANDATORY, 0, MAX_VNI))) {
+                    return false;
+                }
+                // A port belongs to a single VNI.
+                if (!ports.add(port.path(PORT).asLong())) {
+                    return false;
+                }
+            }
+        }
+        for (JsonNode node : object.path(HOSTS)) {
+            if (!node.isObject()) {
+                return false;
+            }
+            ObjectNode host = (ObjectNode) node;
+            if (!(hasOnlyFields(host, MAC, IP, VNI, DEVICE_ID, PORT) &&
+                    isMacAddress(host, MAC, MANDATORY) &&
+                    isIpAddress(host, IP, MANDATORY) &&
+                    isIp4Address(host, IP) &&
+                    isIntegralNumber(host, VNI, MANDATORY, 0, MAX_VNI) &&
+                    isString(host, DEVICE_ID, MANDATORY) &&
+                    isIntegralNumber(host, PORT, MANDATORY, 0))) {
+                return false;
+            }
+        }
+        for (JsonNode node : object.path(ROUTES)) {
+            if (!node.isObject()) {
+                return false;
+            }
+            ObjectNode route = (ObjectNode) node;
+            if (!(hasOnlyFields(route, DEVICE_ID, PREFIX, NEXT_HOP_MAC, PORT) &&
+                    isString(route, DEVICE_ID, MANDATORY) &&
+                    isIpPrefix(route, PREFIX, MANDATORY) &&
+                    IpPrefix.valueOf(route.path(PREFIX).asText()).isIp4() &&
+                    isMacAddress(route, NEXT_HOP_MAC, MANDATORY) &&
+                    isIntegralNumber(route, PORT, MANDATORY, 0))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The overlay and the underlay are IPv4 only.
+    private static boolean isIp4Address(ObjectNode node, String field) {
+        return IpAddress.valueOf(node.path(field).asText()).isIp4();
+    }
+
+    /**
+     * Returns the VTEPs of the overlay.
+     *
+     * @return set of VTEPs
+     */
+    public Set<Vtep> vteps() {
+        return parse(VTEPS, node -> new Vtep(
+                DeviceId.deviceId(node.path(DEVICE_ID).asText()),
+                Ip4Address.valueOf(node.path(IP).asText()),
+                MacAddress.valueOf(node.path(MAC).asText()),
+                PortNumber.portNumber(node.path(UPLINK_PORT).asLong()),
+                MacAddress.valueOf(node.path(NEXT_HOP_MAC).asText()),
+                accessPorts(node.path(ACCESS_PORTS))));
+    }
+
+    /**
+     * Returns the tenant hosts attached to the VTEPs.
+     *
+     * @return set of overlay hosts
+     */
+    public Set<OverlayHost> hosts() {
+        return parse(HOSTS, node -> new OverlayHost(
+                MacAddress.valueOf(node.path(MAC).asText()),
+                Ip4Address.valueOf(node.path(IP).asText()),
+                node.path(VNI).asLong(),
+                DeviceId.deviceId(node.path(DEVICE_ID).asText()),
+                PortNumber.portNumber(node.path(PORT).asLong())));
+    }
+
+    /**
+     * Returns the underlay routes towards the VTEPs.
+     *
+     * @return set of underlay routes
+     */
+    public Set<UnderlayRoute> routes() {
+        return parse(ROUTES, node -> new UnderlayRoute(
+                DeviceId.deviceId(node.path(DEVICE_ID).asText()),
+                IpPrefix.valueOf(node.path(PREFIX).asText()),
+                MacAddress.valueOf(node.path(NEXT_HOP_MAC).asText()),
+                PortNumber.portNumber(node.path(PORT).asLong())));
+    }
+
+    private Map<PortNumber, Long> accessPorts(JsonNode ports) {
+        ImmutableMap.Builder<PortNumber, Long> builder = ImmutableMap.builder();
+        ports.forEach(node -> builder.put(PortNumber.portNumber(node.path(PORT).asLong()),
+                                          node.path(VNI).asLong()));
+        return builder.build();
+    }
+
+    private <T> Set<T> parse(String field, Function<JsonNode, T> parser) {
+        ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+        object.path(field).forEach(node -> builder.add(parser.apply(node)));
+        return builder.build();
+    }
+}
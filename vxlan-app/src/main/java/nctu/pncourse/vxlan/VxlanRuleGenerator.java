@@ -0,0 +1,469 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.IndexTableId;
+import org.onosproject.net.flow.TableId;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+
+/**
+ * Translates the overlay description into the flow rules of every device.
+ * The generator is stateless: calling it twice with the same configuration
+ * yields equal rules, which is what makes diffing against the installed
+ * rules possible.
+ * <p>
+ * Every VNI with members on a VTEP gets a flood group there, replicating
+ * broadcast traffic to the local members and, through the uplink, to each
+ * other VTEP with members of the VNI. ONOS numbers the replicas of a port in
+ * bucket order starting from 0, so the flood_encap entry of the n-th remote
+ * VTEP matches the replica id n.
+ */
+public class VxlanRuleGenerator {
+
+    public static final int TABLE_L2_FWD = 0;
+    public static final int TABLE_IPV4_FWD = 1;
+    public static final int TABLE_VXLAN_DECAP = 2;
+    public static final int TABLE_VXLAN_ENCAP = 3;
+    public static final int TABLE_PORT_VNI = 4;
+    public static final int TABLE_SMAC = 5;
+    public static final int TABLE_FLOOD_ENCAP = 6;
+    public static final int TABLE_HOST_TUNNEL = 7;
+    public static final int TABLE_VNI_STATS = 8;
+    // Every table the app writes entries to.
+    public static final Set<TableId> TABLES = ImmutableSet.of(
+            IndexTableId.of(TABLE_L2_FWD), IndexTableId.of(TABLE_IPV4_FWD), IndexTableId.of(TABLE_VXLAN_DECAP),
+            IndexTableId.of(TABLE_VXLAN_ENCAP), IndexTableId.of(TABLE_PORT_VNI), IndexTableId.of(TABLE_SMAC),
+            IndexTableId.of(TABLE_FLOOD_ENCAP), IndexTableId.of(TABLE_HOST_TUNNEL), IndexTableId.of(TABLE_VNI_STATS));
+
+    private static final int PRIORITY = 40005;
+    // ARP requests are broadcast too, the trap must win over the flooding.
+    private static final int ARP_TRAP_PRIORITY = PRIORITY + 10;
+    private static final MacAddress BROADCAST = MacAddress.valueOf("ff:ff:ff:ff:ff:ff");
+
+    private static final PiMatchFieldId INGRESS_PORT = PiMatchFieldId.of("standard_metadata.ingress_port");
+    private static final PiMatchFieldId VNI = PiMatchFieldId.of("meta.vni");
+    private static final PiMatchFieldId ETH_SRC = PiMatchFieldId.of("hdr.ethernet.srcAddr");
+    private static final PiMatchFieldId MCAST_GRP = PiMatchFieldId.of("standard_metadata.mcast_grp");
+    private static final PiMatchFieldId EGRESS_PORT = PiMatchFieldId.of("standard_metadata.egress_port");
+    private static final PiMatchFieldId EGRESS_RID = PiMatchFieldId.of("standard_metadata.egress_rid");
+    private static final PiMatchFieldId TUNNEL_ID = PiMatchFieldId.of("meta.tunnel_id");
+    private static final PiActionId SET_VNI = PiActionId.of("MyIngress.set_vni");
+    private static final PiActionParamId SET_VNI_PARAM = PiActionParamId.of("vni");
+    private static final PiActionId SET_TUNNEL = PiActionId.of("MyEgress.set_tunnel");
+    private static final PiActionParamId SET_TUNNEL_PARAM = PiActionParamId.of("tunnel_id");
+    private static final PiActionId COUNT_VNI = PiActionId.of("MyIngress.count_vni");
+    private static final PiActionParamId COUNT_VNI_PARAM = PiActionParamId.of("index");
+    private static final TrafficTreatment KNOWN_SOURCE = DefaultTrafficTreatment.builder()
+            .piTableAction(PiAction.builder().withId(PiActionId.of("NoAction")).build())
+            .build();
+    private static final TrafficTreatment TO_CONTROLLER = DefaultTrafficTreatment.builder()
+            .setOutput(PortNumber.CONTROLLER)
+            .build();
+
+    private final ApplicationId appId;
+    private final TreatmentCache treatments;
+    private final TunnelManager tunnels;
+
+    /**
+     * Creates a new rule generator.
+     *
+     * @param appId      application owning the generated rules
+     * @param treatments cache providing the extension treatments
+     * @param tunnels    allocator of the tunnel identifiers
+     */
+    public VxlanRuleGenerator(ApplicationId appId, TreatmentCache treatments, TunnelManager tunnels) {
+        this.appId = appId;
+        this.treatments = treatments;
+        this.tunnels = tunnels;
+    }
+
+    /**
+     * Generates the desired flow rules of every device of the overlay.
+     *
+     * @param config      overlay configuration
+     * @param floodGroups flood group identifier of each VNI
+     * @return flow rules indexed by device
+     */
+    public Map<DeviceId, Set<FlowRule>> generate(VxlanConfig config, Map<Long, Integer> floodGroups) {
+        Map<DeviceId, Set<FlowRule>> rules = Maps.newHashMap();
+        Set<OverlayHost> hosts = config.hosts();
+        Map<Long, List<Vtep>> members = members(config.vteps(), hosts);
+
+        for (Vtep vtep : config.vteps()) {
+            rules.computeIfAbsent(vtep.deviceId(), d -> Sets.newHashSet())
+                    .addAll(vtepRules(vtep, config.vteps(), hosts, members, floodGroups));
+        }
+        return rules;
+    }
+
+    /**
+     * Generates the replicas of the flood group of every VNI on every VTEP:
+     * the local ports of the VNI, then the uplink once per remote VTEP with
+     * members of the VNI.
+     *
+     * @param config overlay configuration
+     * @return output ports of the flood groups, by device and VNI
+     */
+    public Map<DeviceId, Map<Long, List<PortNumber>>> floodLists(VxlanConfig config) {
+        Map<DeviceId, Map<Long, List<PortNumber>>> lists = Maps.newHashMap();
+        Set<OverlayHost> hosts = config.hosts();
+        Map<Long, List<Vtep>> members = members(config.vteps(), hosts);
+
+        for (Vtep vtep : config.vteps()) {
+            Map<Long, List<PortNumber>> vtepLists = Maps.newHashMap();
+            tenantPorts(vtep, hosts).forEach((vni, ports) -> {
+                List<PortNumber> replicas = Lists.newArrayList(ports);
+                remotes(vtep, members.get(vni)).forEach(remote -> replicas.add(vtep.uplinkPort()));
+                vtepLists.put(vni, ImmutableList.copyOf(replicas));
+            });
+            if (!vtepLists.isEmpty()) {
+                lists.put(vtep.deviceId(), vtepLists);
+            }
+        }
+        return lists;
+    }
+
+    /**
+     * Returns the tunnels of every VTEP: the other VTEPs with members of
+     * each VNI it has local members of.
+     *
+     * @param config overlay configuration
+     * @return remote VTEPs indexed by device and VNI
+     */
+    public Map<DeviceId, Map<Long, List<Vtep>>> tunnels(VxlanConfig config) {
+        Map<DeviceId, Map<Long, List<Vtep>>> tunnels = Maps.newHashMap();
+        Map<Long, List<Vtep>> members = members(config.vteps(), config.hosts());
+
+        for (Vtep vtep : config.vteps()) {
+            Map<Long, List<Vtep>> vtepTunnels = Maps.newHashMap();
+            tenantPorts(vtep, config.hosts()).keySet().forEach(vni -> {
+                List<Vtep> remotes = remotes(vtep, members.get(vni));
+                if (!remotes.isEmpty()) {
+                    vtepTunnels.put(vni, remotes);
+                }
+            });
+            if (!vtepTunnels.isEmpty()) {
+                tunnels.put(vtep.deviceId(), vtepTunnels);
+            }
+        }
+        return tunnels;
+    }
+
+    /**
+     * Generates the flow rules of a host learned on an access port of a VTEP.
+     *
+     * @param vtep VTEP the host was learned on
+     * @param mac  MAC address of the host
+     * @param vni  VXLAN network identifier of the host
+     * @param port access port the host is attached to
+     * @return flow rules of the host
+     */
+    public Set<FlowRule> localHostRules(Vtep vtep, MacAddress mac, long vni, PortNumber port) {
+        Set<FlowRule> rules = Sets.newHashSet();
+        DeviceId deviceId = vtep.deviceId();
+
+        // Send to local host
+        TrafficSelector.Builder selector = l2Selector(vni).matchEthDst(mac);
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(port).build();
+        rules.add(rule(deviceId, TABLE_L2_FWD, selector, treatment));
+        rules.add(knownSourceRule(deviceId, mac, vni));
+        return rules;
+    }
+
+    /**
+     * Generates the flow rules of a host learned through a tunnel terminated
+     * by a VTEP.
+     *
+     * @param vtep     VTEP the host was learned on
+     * @param mac      MAC address of the host
+     * @param vni      VXLAN network identifier of the host
+     * @param remoteIp address of the VTEP the host is behind
+     * @return flow rules of the host, empty if there is no tunnel to its VTEP
+     */
+    public Set<FlowRule> remoteHostRules(Vtep vtep, MacAddress mac, long vni, Ip4Address remoteIp) {
+        Set<FlowRule> rules = Sets.newHashSet();
+        DeviceId deviceId = vtep.deviceId();
+        Integer tunnelId = tunnels.tunnelId(deviceId, vni, remoteIp);
+        if (tunnelId == null) {
+            return rules;
+        }
+
+        // Send to remote host through the uplink
+        TrafficSelector.Builder selector = l2Selector(vni).matchEthDst(mac);
+        rules.add(rule(deviceId, TABLE_L2_FWD, selector, uplink(vtep)));
+        rules.add(knownSourceRule(deviceId, mac, vni));
+        rules.add(hostTunnelRule(deviceId, mac, vni, tunnelId));
+        return rules;
+    }
+
+    private Set<FlowRule> vtepRules(Vtep vtep, Set<Vtep> vteps, Set<OverlayHost> hosts,
+                                    Map<Long, List<Vtep>> members, Map<Long, Integer> floodGroups) {
+        Set<FlowRule> rules = Sets.newHashSet();
+        DeviceId deviceId = vtep.deviceId();
+        Map<DeviceId, Vtep> vtepsById = Maps.newHashMap();
+        vteps.forEach(v -> vtepsById.put(v.deviceId(), v));
+
+        Map<PortNumber, Long> portVnis = portVnis(vtep, hosts);
+
+        // A VTEP only needs to reach the tenants it has local members of.
+        Set<Long> localVnis = Sets.newHashSet(portVnis.values());
+
+        // VXLAN DECAP
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+                .matchIPDst(IpPrefix.valueOf(vtep.ip(), IpPrefix.MAX_INET_MASK_LENGTH));
+        rules.add(rule(deviceId, TABLE_VXLAN_DECAP, selector, treatments.decap(deviceId)));
+
+        for (long vni : localVnis) {
+            // Traffic accounting of the tenant
+            Integer vniIndex = tunnels.vniIndex(deviceId, vni);
+            if (vniIndex != null) {
+                rules.add(vniStatsRule(deviceId, vni, vniIndex));
+            }
+
+            // ARP requests are answered by the controller
+            selector = l2Selector(vni)
+                    .matchEthDst(BROADCAST)
+                    .matchEthType(Ethernet.TYPE_ARP);
+            rules.add(rule(deviceId, TABLE_L2_FWD, selector, TO_CONTROLLER, ARP_TRAP_PRIORITY));
+
+            Integer group = floodGroups.get(vni);
+            if (group == null) {
+                continue;
+            }
+
+            // L2 Multicast within the tenant
+            selector = l2Selector(vni).matchEthDst(BROADCAST);
+            rules.add(rule(deviceId, TABLE_L2_FWD, selector, treatments.flood(deviceId, group.shortValue())));
+
+            // Head-end replication to the other VTEPs of the tenant
+            List<Vtep> remotes = remotes(vtep, members.get(vni));
+            for (int rid = 0; rid < remotes.size(); rid++) {
+                rules.add(floodEncapRule(vtep, vni, group, rid, remotes.get(rid)));
+            }
+        }
+
+        // VXLAN ENCAP, once per tunnel
+        for (long vni : localVnis) {
+            for (Vtep remote : remotes(vtep, members.get(vni))) {
+                Integer tunnelId = tunnels.tunnelId(deviceId, vni, remote.ip());
+                if (tunnelId != null) {
+                    rules.add(encapRule(vtep, vni, remote, tunnelId));
+                }
+            }
+        }
+
+        // Access port tenants
+        portVnis.forEach((port, vni) -> rules.add(portVniRule(deviceId, port, vni)));
+
+        for (OverlayHost host : hosts) {
+            if (host.deviceId().equals(deviceId)) {
+                rules.addAll(localHostRules(vtep, host.mac(), host.vni(), host.port()));
+                continue;
+            }
+
+            Vtep remote = vtepsById.get(host.deviceId());
+            if (remote == null || !localVnis.contains(host.vni())) {
+                continue;
+            }
+            rules.addAll(remoteHostRules(vtep, host.mac(), host.vni(), remote.ip()));
+        }
+        return rules;
+    }
+
+    // Tenant of every access port, configured ones taking precedence.
+    private Map<PortNumber, Long> portVnis(Vtep vtep, Set<OverlayHost> hosts) {
+        Map<PortNumber, Long> portVnis = Maps.newHashMap();
+        hosts.stream()
+                .filter(h -> h.deviceId().equals(vtep.deviceId()))
+                .forEach(h -> portVnis.put(h.port(), h.vni()));
+        portVnis.putAll(vtep.accessPorts());
+        return portVnis;
+    }
+
+    // Access ports of every tenant of a VTEP, in port order.
+    private Map<Long, SortedSet<PortNumber>> tenantPorts(Vtep vtep, Set<OverlayHost> hosts) {
+        Map<Long, SortedSet<PortNumber>> ports = Maps.newHashMap();
+        portVnis(vtep, hosts).forEach((port, vni) -> ports
+                .computeIfAbsent(vni, v -> Sets.newTreeSet(Comparator.comparingLong(PortNumber::toLong)))
+                .add(port));
+        return ports;
+    }
+
+    // VTEPs with members of every VNI, in IP address order.
+    private Map<Long, List<Vtep>> members(Set<Vtep> vteps, Set<OverlayHost> hosts) {
+        Map<Long, List<Vtep>> members = Maps.newHashMap();
+        for (Vtep vtep : vteps) {
+            tenantPorts(vtep, hosts).keySet().forEach(
+                    vni -> members.computeIfAbsent(vni, v -> Lists.newArrayList()).add(vtep));
+        }
+        members.values().forEach(list -> list.sort(Comparator.comparing(Vtep::ip)));
+        return members;
+    }
+
+    private List<Vtep> remotes(Vtep vtep, List<Vtep> members) {
+        List<Vtep> remotes = Lists.newArrayList();
+        if (members != null) {
+            members.stream()
+                    .filter(member -> !member.deviceId().equals(vtep.deviceId()))
+                    .forEach(remotes::add);
+        }
+        return remotes;
+    }
+
+    private TrafficSelector.Builder l2Selector(long vni) {
+        return DefaultTrafficSelector.builder()
+                .matchPi(PiCriterion.builder().matchExact(VNI, vni).build());
+    }
+
+    // Encapsulates the replica of a flood group sent to a remote VTEP.
+    private FlowRule floodEncapRule(Vtep vtep, long vni, int group, int rid, Vtep remote) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+                .matchPi(PiCriterion.builder()
+                                 .matchExact(MCAST_GRP, group)
+                                 .matchExact(EGRESS_PORT, vtep.uplinkPort().toLong())
+                                 .matchExact(EGRESS_RID, rid)
+                                 .build());
+        return rule(vtep.deviceId(), TABLE_FLOOD_ENCAP, selector, encap(vtep, vni, remote.ip()));
+    }
+
+    private TrafficTreatment uplink(Vtep vtep) {
+        return DefaultTrafficTreatment.builder().setOutput(vtep.uplinkPort()).build();
+    }
+
+    // Every host behind the same remote VTEP shares its tunnel.
+    private FlowRule hostTunnelRule(DeviceId deviceId, MacAddress mac, long vni, int tunnelId) {
+        TrafficSelector.Builder selector = l2Selector(vni).matchEthDst(mac);
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                .piTableAction(PiAction.builder()
+                                       .withId(SET_TUNNEL)
+                                       .withParameter(new PiActionParam(SET_TUNNEL_PARAM, tunnelId))
+                                       .build())
+                .build();
+        return rule(deviceId, TABLE_HOST_TUNNEL, selector, treatment);
+    }
+
+    private FlowRule encapRule(Vtep vtep, long vni, Vtep remote, int tunnelId) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+                .matchPi(PiCriterion.builder().matchExact(TUNNEL_ID, tunnelId).build());
+        return rule(vtep.deviceId(), TABLE_VXLAN_ENCAP, selector, encap(vtep, vni, remote.ip()));
+    }
+
+    private TrafficTreatment encap(Vtep vtep, long vni, Ip4Address remoteIp) {
+        return treatments.encap(vtep.deviceId(), vni, vtep.mac(), vtep.nextHopMac(), vtep.ip(), remoteIp);
+    }
+
+    // Tells the VTEP the tenant of the hosts attached to an access port.
+    private FlowRule portVniRule(DeviceId deviceId, PortNumber port, long vni) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+                .matchPi(PiCriterion.builder().matchExact(INGRESS_PORT, port.toLong()).build());
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                .piTableAction(PiAction.builder()
+                                       .withId(SET_VNI)
+                                       .withParameter(new PiActionParam(SET_VNI_PARAM, vni))
+                                       .build())
+                .build();
+        return rule(deviceId, TABLE_PORT_VNI, selector, treatment);
+    }
+
+    // Counts the traffic of a tenant in its vni_counter cell.
+    private FlowRule vniStatsRule(DeviceId deviceId, long vni, int vniIndex) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+                .matchPi(PiCriterion.builder().matchExact(VNI, vni).build());
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                .piTableAction(PiAction.builder()
+                                       .withId(COUNT_VNI)
+                                       .withParameter(new PiActionParam(COUNT_VNI_PARAM, vniIndex))
+                                       .build())
+                .build();
+        return rule(deviceId, TABLE_VNI_STATS, selector, treatment);
+    }
+
+    // Keeps the VTEP from notifying a source it already knows.
+    private FlowRule knownSourceRule(DeviceId deviceId, MacAddress mac, long vni) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+                .matchPi(PiCriterion.builder()
+                                 .matchExact(VNI, vni)
+                                 .matchExact(ETH_SRC, mac.toBytes())
+                                 .build());
+        return rule(deviceId, TABLE_SMAC, selector, KNOWN_SOURCE);
+    }
+
+    /**
+     * Returns the ipv4_lpm entry of an underlay route, pointing to the ECMP
+     * group of its next hops.
+     *
+     * @param deviceId device the route is installed on
+     * @param prefix   destination prefix
+     * @param groupId  ECMP group of the next hops
+     * @return flow rule
+     */
+    public FlowRule routeRule(DeviceId deviceId, IpPrefix prefix, int groupId) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder().matchIPDst(prefix);
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                .piTableAction(PiActionProfileGroupId.of(groupId))
+                .build();
+        return rule(deviceId, TABLE_IPV4_FWD, selector, treatment);
+    }
+
+    private FlowRule rule(DeviceId deviceId, int tableId,
+                          TrafficSelector.Builder selector, TrafficTreatment treatment) {
+        return rule(deviceId, tableId, selector, treatment, PRIORITY);
+    }
+
+    private FlowRule rule(DeviceId deviceId, int tableId,
+                          TrafficSelector.Builder selector, TrafficTreatment treatment, int priority) {
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(tableId)
+                .withSelector(selector.build())
+                .withTreatment(treatment)
+                .withPriority(priority)
+                .fromApp(appId)
+                .makePermanent()
+                .build();
+    }
+}
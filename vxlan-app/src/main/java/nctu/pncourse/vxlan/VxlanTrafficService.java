@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.DeviceId;
+
+import java.util.Map;
+
+/**
+ * Traffic carried by the tenants and the tunnels of the overlay, from the
+ * vni_counter and tunnel_counter of the VTEPs.
+ * <p>
+ * A VNI counts the packets a VTEP receives from its access ports and
+ * tunnels. A tunnel counts the packets a VTEP encapsulates towards a remote
+ * VTEP, except the replicas of the flood groups. Counts and rates are the
+ * ones of the last poll of the counters.
+ */
+public interface VxlanTrafficService {
+
+    /**
+     * Returns the traffic of every VNI, summed over the VTEPs.
+     *
+     * @return traffic by VNI
+     */
+    Map<Long, TrafficStats> vniTraffic();
+
+    /**
+     * Returns the traffic of every VNI on a VTEP.
+     *
+     * @param deviceId VTEP device identifier
+     * @return traffic by VNI, empty if the device is not a VTEP
+     */
+    Map<Long, TrafficStats> vniTraffic(DeviceId deviceId);
+
+    /**
+     * Returns the traffic sent from every VTEP to each remote VTEP.
+     *
+     * @return traffic by VTEP and remote VTEP address
+     */
+    Map<DeviceId, Map<Ip4Address, TrafficStats>> tunnelTraffic();
+
+    /**
+     * Returns the traffic sent from a VTEP to each remote VTEP, summed over
+     * the VNIs.
+     *
+     * @param deviceId VTEP device identifier
+     * @return traffic by remote VTEP address, empty if the device is not a VTEP
+     */
+    Map<Ip4Address, TrafficStats> tunnelTraffic(DeviceId deviceId);
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onlab.packet.Ip4Address;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import nctu.pncourse.vxlan.TrafficStats;
+import nctu.pncourse.vxlan.VxlanTrafficService;
+
+/**
+ * Lists the traffic of the VNIs and tunnels of the VXLAN overlay.
+ */
+@Service
+@Command(scope = "onos", name = "vxlan-traffic",
+        description = "Lists the traffic of the VNIs and tunnels of the VXLAN overlay")
+public class VxlanTrafficCommand extends AbstractShellCommand {
+
+    private static final String VNI_FORMAT = "vni=%d, packets=%d, bytes=%d, pps=%.1f, bps=%.1f";
+    private static final String TUNNEL_FORMAT = "%s -> %s, packets=%d, bytes=%d, pps=%.1f, bps=%.1f";
+
+    @Argument(index = 0, name = "deviceId", description = "VTEP device identifier",
+            required = false, multiValued = false)
+    private String deviceId = null;
+
+    @Option(name = "-t", aliases = "--tunnels", description = "List the tunnels instead of the VNIs",
+            required = false, multiValued = false)
+    private boolean tunnels = false;
+
+    @Override
+    protected void doExecute() {
+        VxlanTrafficService service = get(VxlanTrafficService.class);
+        DeviceId vtep = deviceId == null ? null : DeviceId.deviceId(deviceId);
+        if (tunnels) {
+            if (vtep == null) {
+                service.tunnelTraffic().forEach(this::printTunnels);
+            } else {
+                printTunnels(vtep, service.tunnelTraffic(vtep));
+            }
+        } else {
+            Map<Long, TrafficStats> traffic = vtep == null ? service.vniTraffic() : service.vniTraffic(vtep);
+            new TreeMap<>(traffic).forEach((vni, stats) -> print(
+                    VNI_FORMAT, vni, stats.packets(), stats.bytes(),
+                    stats.packetsPerSecond(), stats.bitsPerSecond()));
+        }
+    }
+
+    private void printTunnels(DeviceId vtep, Map<Ip4Address, TrafficStats> remotes) {
+        new TreeMap<>(remotes).forEach((remoteIp, stats) -> print(
+                TUNNEL_FORMAT, vtep, remoteIp, stats.packets(), stats.bytes(),
+                stats.packetsPerSecond(), stats.bitsPerSecond()));
+    }
+}
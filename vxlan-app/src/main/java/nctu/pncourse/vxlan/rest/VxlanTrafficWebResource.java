@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan.rest;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.DeviceId;
+import org.onosproject.rest.AbstractWebResource;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+import nctu.pncourse.vxlan.TrafficStats;
+import nctu.pncourse.vxlan.VxlanTrafficService;
+
+/**
+ * Traffic of the tenants and tunnels of the VXLAN overlay.
+ */
+@Path("traffic")
+public class VxlanTrafficWebResource extends AbstractWebResource {
+
+    private static final String VNIS = "vnis";
+    private static final String TUNNELS = "tunnels";
+
+    /**
+     * Gets the traffic of every VNI, summed over the VTEPs.
+     *
+     * @return 200 OK with the packets, bytes and rates of every VNI
+     */
+    @GET
+    @Path("vnis")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getVniTraffic() {
+        return vnis(get(VxlanTrafficService.class).vniTraffic());
+    }
+
+    /**
+     * Gets the traffic of every VNI on a VTEP.
+     *
+     * @param deviceId VTEP device identifier
+     * @return 200 OK with the packets, bytes and rates of every VNI
+     */
+    @GET
+    @Path("vnis/{deviceId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getVniTraffic(@PathParam("deviceId") String deviceId) {
+        return vnis(get(VxlanTrafficService.class).vniTraffic(DeviceId.deviceId(deviceId)));
+    }
+
+    /**
+     * Gets the traffic sent from every VTEP to each remote VTEP.
+     *
+     * @return 200 OK with the packets, bytes and rates of every VTEP pair
+     */
+    @GET
+    @Path("tunnels")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getTunnelTraffic() {
+        ObjectNode root = mapper().createObjectNode();
+        ArrayNode tunnels = root.putArray(TUNNELS);
+        get(VxlanTrafficService.class).tunnelTraffic()
+                .forEach((deviceId, remotes) -> addTunnels(tunnels, deviceId, remotes));
+        return ok(root).build();
+    }
+
+    /**
+     * Gets the traffic sent from a VTEP to each remote VTEP.
+     *
+     * @param deviceId VTEP device identifier
+     * @return 200 OK with the packets, bytes and rates of every remote VTEP
+     */
+    @GET
+    @Path("tunnels/{deviceId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getTunnelTraffic(@PathParam("deviceId") String deviceId) {
+        DeviceId vtep = DeviceId.deviceId(deviceId);
+        ObjectNode root = mapper().createObjectNode();
+        addTunnels(root.putArray(TUNNELS), vtep, get(VxlanTrafficService.class).tunnelTraffic(vtep));
+        return ok(root).build();
+    }
+
+    private Response vnis(Map<Long, TrafficStats> traffic) {
+        ObjectNode root = mapper().createObjectNode();
+        ArrayNode vnis = root.putArray(VNIS);
+        traffic.forEach((vni, stats) -> vnis.add(encode(stats).put("vni", vni)));
+        return ok(root).build();
+    }
+
+    private void addTunnels(ArrayNode tunnels, DeviceId deviceId, Map<Ip4Address, TrafficStats> remotes) {
+        remotes.forEach((remoteIp, stats) -> tunnels.add(encode(stats)
+                .put("deviceId", deviceId.toString())
+                .put("remoteIp", remoteIp.toString())));
+    }
+
+    private ObjectNode encode(TrafficStats stats) {
+        return mapper().createObjectNode()
+                .put("packets", stats.packets())
+                .put("bytes", stats.bytes())
+                .put("packetsPerSecond", stats.packetsPerSecond())
+                .put("bitsPerSecond", stats.bitsPerSecond());
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.onlab.packet.ChassisId;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.ItemNotFoundException;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.behaviour.ExtensionTreatmentResolver;
+import org.onosproject.net.config.Config;
+import org.onosproject.net.config.NetworkConfigRegistryAdapter;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.driver.Behaviour;
+import org.onosproject.net.driver.DefaultDriver;
+import org.onosproject.net.driver.DefaultDriverData;
+import org.onosproject.net.driver.DefaultDriverHandler;
+import org.onosproject.net.driver.Driver;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.driver.DriverServiceAdapter;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.link.LinkServiceAdapter;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogEvent;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogListener;
+import org.onosproject.net.pi.service.PiPipeconfWatchdogService;
+import org.onosproject.net.provider.ProviderId;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nctu.pncourse.pipeconf.P4ExtensionTreatmentInterpreter;
+
+/**
+ * In-process stand-ins of the ONOS services used by {@link AppComponent},
+ * wired around a synthetic fabric: N VTEPs with M hosts each, spread over K
+ * VNIs, all attached to one spine switch.
+ * <p>
+ * Every device is available with its pipeline ready, unless disconnected
+ * before the component is activated, extension treatments are resolved by
+ * the pipeconf's interpreter, and flow rule batches succeed immediately, the
+ * flow rule service recording the resulting rules.
+ */
+public class AppComponentHarness {
+
+    static final DeviceId SPINE = DeviceId.deviceId("device:bmv2:spine");
+
+    private static final ProviderId PROVIDER_ID = new ProviderId("bmv2", "nctu.pncourse.vxlan.test");
+    private static final MacAddress SPINE_MAC = MacAddress.valueOf("00:00:00:00:ff:ff");
+    private static final PortNumber UPLINK_PORT = PortNumber.portNumber(1);
+
+    private final ApplicationId appId = new DefaultApplicationId(1, "nctu.pncourse.vxlan");
+    private final List<DeviceId> vteps = Lists.newArrayList();
+    private final VxlanConfig config = new VxlanConfig();
+    private final List<Link> links = Lists.newArrayList();
+    private final Map<DeviceId, Device> devices = Maps.newConcurrentMap();
+    private final Set<DeviceId> readyDevices = Sets.newConcurrentHashSet();
+    private final List<DeviceListener> deviceListeners = new CopyOnWriteArrayList<>();
+    private final List<PiPipeconfWatchdogListener> watchdogListeners = new CopyOnWriteArrayList<>();
+
+    final RecordingFlowRuleService flowRuleService = new RecordingFlowRuleService();
+
+    /**
+     * Creates the harness of a fabric.
+     *
+     * @param vtepCount number of VTEPs
+     * @param hostCount number of hosts behind every VTEP
+     * @param vniCount  number of VNIs the hosts are spread over
+     */
+    public AppComponentHarness(int vtepCount, int hostCount, int vniCount) {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode vtepNodes = root.putArray("vteps");
+        ArrayNode hostNodes = root.putArray("hosts");
+        for (int v = 0; v < vtepCount; v++) {
+            DeviceId deviceId = DeviceId.deviceId("device:bmv2:v" + v);
+            vteps.add(deviceId);
+            vtepNodes.addObject()
+                    .put("deviceId", deviceId.toString())
+                    .put("ip", Ip4Address.valueOf(0xc0a80000 + v + 1).toString())
+                    .put("mac", MacAddress.valueOf(0x0000_0100_0000L + v).toString())
+                    .put("uplinkPort", UPLINK_PORT.toLong())
+                    .put("nextHopMac", SPINE_MAC.toString());
+            for (int h = 0; h < hostCount; h++) {
+                int host = v * hostCount + h;
+                hostNodes.addObject()
+                        .put("mac", MacAddress.valueOf(0x0000_0200_0000L + host).toString())
+                        .put("ip", Ip4Address.valueOf(0x0a000000 + host + 1).toString())
+                        .put("vni", 100 + h % vniCount)
+                        .put("deviceId", deviceId.toString())
+                        .put("port", h + 2);
+            }
+            PortNumber spinePort = PortNumber.portNumber(v + 1);
+            links.add(link(new ConnectPoint(SPINE, spinePort), new ConnectPoint(deviceId, UPLINK_PORT)));
+            links.add(link(new ConnectPoint(deviceId, UPLINK_PORT), new ConnectPoint(SPINE, spinePort)));
+        }
+        config.init(appId, VxlanConfig.CONFIG_KEY, root, mapper, null);
+
+        for (DeviceId deviceId : deviceIds()) {
+            devices.put(deviceId, device(deviceId));
+            readyDevices.add(deviceId);
+        }
+    }
+
+    private static Device device(DeviceId deviceId) {
+        return new DefaultDevice(PROVIDER_ID, deviceId, Device.Type.SWITCH,
+                                 "bmv2", "1.0", "1.0", "0", new ChassisId());
+    }
+
+    private static Link link(ConnectPoint src, ConnectPoint dst) {
+        return DefaultLink.builder()
+                .providerId(PROVIDER_ID)
+                .src(src)
+                .dst(dst)
+                .type(Link.Type.DIRECT)
+                .state(Link.State.ACTIVE)
+                .build();
+    }
+
+    /**
+     * Returns the devices of the fabric, VTEPs then spine.
+     *
+     * @return device identifiers
+     */
+    public List<DeviceId> deviceIds() {
+        List<DeviceId> all = Lists.newArrayList(vteps);
+        all.add(SPINE);
+        return all;
+    }
+
+    /**
+     * Returns the VTEPs of the fabric.
+     *
+     * @return device identifiers
+     */
+    public List<DeviceId> vteps() {
+        return ImmutableList.copyOf(vteps);
+    }
+
+    /**
+     * Removes a device from the core, as if it disconnected.
+     *
+     * @param deviceId device identifier
+     */
+    public void disconnect(DeviceId deviceId) {
+        readyDevices.remove(deviceId);
+        Device device = devices.remove(deviceId);
+        if (device != null) {
+            DeviceEvent event = new DeviceEvent(DeviceEvent.Type.DEVICE_REMOVED, device);
+            deviceListeners.stream().filter(listener -> listener.isRelevant(event))
+                    .forEach(listener -> listener.event(event));
+        }
+    }
+
+    /**
+     * Adds a device to the core, its pipeline not deployed yet.
+     *
+     * @param deviceId device identifier
+     */
+    public void connect(DeviceId deviceId) {
+        Device device = device(deviceId);
+        devices.put(deviceId, device);
+        DeviceEvent event = new DeviceEvent(DeviceEvent.Type.DEVICE_ADDED, device);
+        deviceListeners.stream().filter(listener -> listener.isRelevant(event))
+                .forEach(listener -> listener.event(event));
+    }
+
+    /**
+     * Reports the pipeline of a connected device as ready.
+     *
+     * @param deviceId device identifier
+     */
+    public void pipelineReady(DeviceId deviceId) {
+        readyDevices.add(deviceId);
+        PiPipeconfWatchdogEvent event =
+                new PiPipeconfWatchdogEvent(PiPipeconfWatchdogEvent.Type.PIPELINE_READY, deviceId);
+        watchdogListeners.forEach(listener -> listener.event(event));
+    }
+
+    /**
+     * Wires the stand-in services into a component.
+     *
+     * @param component component to wire
+     */
+    public void wire(AppComponent component) {
+        component.cfgService = new ComponentConfigAdapter();
+        component.coreService = new TestCoreService();
+        component.driverService = new TestDriverService();
+        component.flowRuleService = flowRuleService;
+        component.networkConfigRegistry = new TestNetworkConfigRegistry();
+        component.groupService = new GroupServiceAdapter();
+        component.packetService = new PacketServiceAdapter();
+        component.linkService = new TestLinkService();
+        component.deviceService = new TestDeviceService();
+        component.watchdogService = new TestWatchdogService();
+    }
+
+    /**
+     * Waits until no flow rule batch was applied for the given quiet period,
+     * and every device has rules.
+     *
+     * @param quietMillis   quiet period
+     * @param timeoutMillis maximum time to wait
+     * @return true if the fabric settled before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitSettled(long quietMillis, long timeoutMillis) throws InterruptedException {
+        return awaitSettled(deviceIds(), quietMillis, timeoutMillis);
+    }
+
+    /**
+     * Waits until no flow rule batch was applied for the given quiet period,
+     * and the given devices have rules.
+     *
+     * @param deviceIds     devices expected to have rules
+     * @param quietMillis   quiet period
+     * @param timeoutMillis maximum time to wait
+     * @return true if the devices settled before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitSettled(Collection<DeviceId> deviceIds, long quietMillis, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (System.nanoTime() < deadline) {
+            long idle = System.nanoTime() - flowRuleService.lastApplyNanos();
+            if (flowRuleService.devices().containsAll(deviceIds) &&
+                    idle > TimeUnit.MILLISECONDS.toNanos(quietMillis)) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private class TestCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return appId;
+        }
+    }
+
+    // Resolves the extension treatments with the interpreter of the pipeconf,
+    // and fails for the devices not connected as the core does.
+    private class TestDriverService extends DriverServiceAdapter {
+        private final Driver driver = new DefaultDriver(
+                "bmv2-vxlan", ImmutableList.of(), "p4.org", "bmv2", "1.0",
+                ImmutableMap.<Class<? extends Behaviour>, Class<? extends Behaviour>>of(
+                        ExtensionTreatmentResolver.class, P4ExtensionTreatmentInterpreter.class),
+                ImmutableMap.of());
+
+        @Override
+        public DriverHandler createHandler(DeviceId deviceId, String... credentials) {
+            if (!devices.containsKey(deviceId)) {
+                throw new ItemNotFoundException("Device not found: " + deviceId);
+            }
+            return new DefaultDriverHandler(new DefaultDriverData(driver, deviceId));
+        }
+    }
+
+    private class TestNetworkConfigRegistry extends NetworkConfigRegistryAdapter {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <S, C extends Config<S>> C getConfig(S subject, Class<C> configClass) {
+            return configClass.equals(VxlanConfig.class) ? (C) config : null;
+        }
+    }
+
+    private class TestLinkService extends LinkServiceAdapter {
+        @Override
+        public Iterable<Link> getActiveLinks() {
+            return ImmutableList.copyOf(links);
+        }
+    }
+
+    private class TestDeviceService extends DeviceServiceAdapter {
+        @Override
+        public Iterable<Device> getAvailableDevices() {
+            return ImmutableList.copyOf(devices.values());
+        }
+
+        @Override
+        public Device getDevice(DeviceId deviceId) {
+            return devices.get(deviceId);
+        }
+
+        @Override
+        public boolean isAvailable(DeviceId deviceId) {
+            return devices.containsKey(deviceId);
+        }
+
+        @Override
+        public void addListener(DeviceListener listener) {
+            deviceListeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(DeviceListener listener) {
+            deviceListeners.remove(listener);
+        }
+    }
+
+    private class TestWatchdogService implements PiPipeconfWatchdogService {
+        @Override
+        public void triggerProbe(DeviceId deviceId) {
+        }
+
+        @Override
+        public PipelineStatus getStatus(DeviceId deviceId) {
+            return readyDevices.contains(deviceId) ? PipelineStatus.READY : PipelineStatus.UNKNOWN;
+        }
+
+        @Override
+        public void addListener(PiPipeconfWatchdogListener listener) {
+            watchdogListeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(PiPipeconfWatchdogListener listener) {
+            watchdogListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Flow rule service applying every batch at once and recording the
+     * resulting rules of each device.
+     */
+    static class RecordingFlowRuleService extends FlowRuleServiceAdapter {
+        private final Map<DeviceId, Set<FlowRule>> rules = Maps.newConcurrentMap();
+        private final AtomicLong operations = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private volatile long lastApplyNanos = System.nanoTime();
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            for (Set<FlowRuleOperation> stage : ops.stages()) {
+                for (FlowRuleOperation op : stage) {
+                    Set<FlowRule> deviceRules = rules.computeIfAbsent(
+                            op.rule().deviceId(), d -> Sets.newConcurrentHashSet());
+                    if (op.type() == FlowRuleOperation.Type.REMOVE) {
+                        deviceRules.remove(op.rule());
+                    } else {
+                        // A modified rule replaces the one it is equal to.
+                        deviceRules.remove(op.rule());
+                        deviceRules.add(op.rule());
+                    }
+                    operations.incrementAndGet();
+                }
+            }
+            batches.incrementAndGet();
+            lastApplyNanos = System.nanoTime();
+            ops.callback().onSuccess(ops);
+        }
+
+        @Override
+        public void removeFlowRulesById(ApplicationId id) {
+            rules.clear();
+        }
+
+        Set<FlowRule> rules(DeviceId deviceId) {
+            return rules.getOrDefault(deviceId, Collections.emptySet());
+        }
+
+        Set<DeviceId> devices() {
+            return rules.keySet();
+        }
+
+        int ruleCount() {
+            return rules.values().stream().mapToInt(Set::size).sum();
+        }
+
+        long operationCount() {
+            return operations.get();
+        }
+
+        long batchCount() {
+            return batches.get();
+        }
+
+        long lastApplyNanos() {
+            return lastApplyNanos;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Programs synthetic fabrics of increasing size through the whole app,
+ * checking that every device gets its rules and logging the programming
+ * throughput. Timing depends on the machine, so nothing is asserted on it;
+ * the tests only run in the scale-tests profile.
+ */
+public class AppComponentScaleTest {
+
+    private static final long TIMEOUT_MILLIS = 60000;
+    private static final long QUIET_MILLIS = 200;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Test
+    public void smallFabric() throws InterruptedException {
+        run(4, 8, 2);
+    }
+
+    @Test
+    public void mediumFabric() throws InterruptedException {
+        run(16, 16, 4);
+    }
+
+    @Test
+    public void largeFabric() throws InterruptedException {
+        run(32, 32, 8);
+    }
+
+    // N VTEPs x M hosts x K VNIs.
+    private void run(int vteps, int hosts, int vnis) throws InterruptedException {
+        AppComponentHarness harness = new AppComponentHarness(vteps, hosts, vnis);
+        AppComponent component = new AppComponent();
+        harness.wire(component);
+
+        long heapBefore = usedHeapBytes();
+        long start = System.nanoTime();
+        component.activate(null);
+        try {
+            assertTrue("Fabric not programmed in time", harness.awaitSettled(QUIET_MILLIS, TIMEOUT_MILLIS));
+            long elapsed = harness.flowRuleService.lastApplyNanos() - start;
+            int rules = harness.flowRuleService.ruleCount();
+            double rate = rules / (elapsed / 1e9);
+            log.info("{} VTEPs x {} hosts x {} VNIs: {} rules in {} batches, {} ms, {} rules/s",
+                     vteps, hosts, vnis, rules, harness.flowRuleService.batchCount(),
+                     TimeUnit.NANOSECONDS.toMillis(elapsed), (long) rate);
+            // Reported only: the heap depends on the JVM and the other tests.
+            long heapAfter = usedHeapBytes();
+            log.info("Used heap: {} MB before, {} MB after, {} MB retained",
+                     heapBefore >> 20, heapAfter >> 20, (heapAfter - heapBefore) >> 20);
+
+            // Every VTEP reaches every host of its VNIs elsewhere.
+            int remoteHosts = (vteps - 1) * hosts;
+            for (DeviceId deviceId : harness.vteps()) {
+                assertTrue("Missing rules on " + deviceId,
+                           harness.flowRuleService.rules(deviceId).size() > remoteHosts);
+            }
+            assertEquals("One route per VTEP on the spine", vteps,
+                         harness.flowRuleService.rules(AppComponentHarness.SPINE).size());
+        } finally {
+            component.deactivate();
+        }
+    }
+
+    private static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -15,27 +15,63 @@
  */
 package nctu.pncourse.vxlan;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.onosproject.cfg.ComponentConfigService;
-import org.onosproject.cfg.ComponentConfigAdapter;
-import org.onosproject.cfg.ConfigProperty;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.IndexTableId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
-import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_FLOOD_ENCAP;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_HOST_TUNNEL;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_IPV4_FWD;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_L2_FWD;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_PORT_VNI;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_SMAC;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_VNI_STATS;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_VXLAN_DECAP;
+import static nctu.pncourse.vxlan.VxlanRuleGenerator.TABLE_VXLAN_ENCAP;
 
 /**
  * Set of tests of the ONOS application component.
  */
 public class AppComponentTest {
 
+    private static final Map<Integer, Integer> VTEP_RULES = ImmutableMap.<Integer, Integer>builder()
+            // 2 local hosts, 2 remote hosts, ARP trap and flood of the VNI
+            .put(TABLE_L2_FWD, 6)
+            // Decap of the VNI, and the tunnel to the other VTEP
+            .put(TABLE_VXLAN_DECAP, 1)
+            .put(TABLE_VXLAN_ENCAP, 1)
+            // Access ports of the 2 local hosts
+            .put(TABLE_PORT_VNI, 2)
+            // 2 local and 2 remote known sources
+            .put(TABLE_SMAC, 4)
+            // Flood replica towards the other VTEP
+            .put(TABLE_FLOOD_ENCAP, 1)
+            // 2 remote hosts
+            .put(TABLE_HOST_TUNNEL, 2)
+            .put(TABLE_VNI_STATS, 1)
+            .build();
+
     private AppComponent component;
+    private AppComponentHarness harness;
 
     @Before
     public void setUp() {
+        // Two VTEPs with two hosts each, all in one VNI.
+        harness = new AppComponentHarness(2, 2, 1);
         component = new AppComponent();
-        component.cfgService = new ComponentConfigAdapter();
-        component.activate();
+        harness.wire(component);
     }
 
     @After
@@ -44,8 +80,46 @@ public class AppComponentTest {
     }
 
     @Test
-    public void basics() {
+    public void basics() throws InterruptedException {
+        component.activate(null);
+        assertTrue("Devices not programmed", harness.awaitSettled(100, 5000));
+
+        for (DeviceId deviceId : harness.vteps()) {
+            assertEquals("Wrong rules on " + deviceId, VTEP_RULES, rulesPerTable(deviceId));
+        }
+        // One route towards each VTEP
+        assertEquals("Wrong rules on the spine", ImmutableMap.of(TABLE_IPV4_FWD, 2),
+                     rulesPerTable(AppComponentHarness.SPINE));
+    }
+
+    @Test
+    public void lateVtep() throws InterruptedException {
+        DeviceId late = harness.vteps().get(1);
+        List<DeviceId> others = Lists.newArrayList(harness.deviceIds());
+        others.remove(late);
+        harness.disconnect(late);
+        component.activate(null);
+        assertTrue("Devices not programmed", harness.awaitSettled(others, 100, 5000));
+        assertTrue(harness.flowRuleService.rules(late).isEmpty());
+
+        // Connected, but its pipeline is not deployed yet.
+        harness.connect(late);
+        Thread.sleep(100);
+        assertTrue(harness.flowRuleService.rules(late).isEmpty());
+
+        harness.pipelineReady(late);
+        assertTrue("VTEP not programmed once ready", harness.awaitSettled(100, 5000));
+        for (DeviceId deviceId : harness.vteps()) {
+            assertEquals("Wrong rules on " + deviceId, VTEP_RULES, rulesPerTable(deviceId));
+        }
+    }
 
+    private Map<Integer, Integer> rulesPerTable(DeviceId deviceId) {
+        Map<Integer, Integer> counts = new TreeMap<>();
+        for (FlowRule rule : harness.flowRuleService.rules(deviceId)) {
+            counts.merge(((IndexTableId) rule.table()).id(), 1, Integer::sum);
+        }
+        return counts;
     }
 
 }
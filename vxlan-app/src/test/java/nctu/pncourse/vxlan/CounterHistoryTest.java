@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the deltas and rates of a counter cell.
+ */
+public class CounterHistoryTest {
+
+    private static final double DELTA = 1e-9;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void empty() {
+        CounterHistory history = new CounterHistory(4);
+        assertEquals(0, history.packets());
+        assertEquals(0, history.packetsDelta());
+        assertEquals(0, history.packetsPerSecond(), DELTA);
+
+        history.record(0, 10, 1000);
+        assertEquals(10, history.packets());
+        assertEquals(1000, history.bytes());
+        assertEquals(0, history.packetsDelta());
+        assertEquals(0, history.bitsPerSecond(), DELTA);
+    }
+
+    @Test
+    public void rates() {
+        CounterHistory history = new CounterHistory(4);
+        history.record(0, 0, 0);
+        history.record(SECOND, 100, 1000);
+        history.record(3 * SECOND, 200, 3000);
+        assertEquals(100, history.packetsDelta());
+        assertEquals(2000, history.bytesDelta());
+        // Averaged over the whole window, not the last interval.
+        assertEquals(200 / 3.0, history.packetsPerSecond(), DELTA);
+        assertEquals(3000 * 8 / 3.0, history.bitsPerSecond(), DELTA);
+    }
+
+    @Test
+    public void window() {
+        CounterHistory history = new CounterHistory(3);
+        for (int i = 0; i < 5; i++) {
+            history.record(i * SECOND, i * i * 10, i * 100);
+        }
+        // Samples 2, 3 and 4 are left.
+        assertEquals(160, history.packets());
+        assertEquals(70, history.packetsDelta());
+        assertEquals((160 - 40) / 2.0, history.packetsPerSecond(), DELTA);
+        assertEquals(200 * 8 / 2.0, history.bitsPerSecond(), DELTA);
+    }
+
+    @Test
+    public void reset() {
+        CounterHistory history = new CounterHistory(4);
+        history.record(0, 100, 1000);
+        history.record(SECOND, 200, 2000);
+        // Entry reinstalled: the counter starts over and so does the window.
+        history.record(2 * SECOND, 5, 50);
+        assertEquals(5, history.packets());
+        assertEquals(0, history.packetsDelta());
+        assertEquals(0, history.packetsPerSecond(), DELTA);
+
+        history.record(4 * SECOND, 25, 250);
+        assertEquals(20, history.packetsDelta());
+        assertEquals(10, history.packetsPerSecond(), DELTA);
+
+        // A lower byte count alone is a reset as well.
+        history.record(5 * SECOND, 30, 10);
+        assertEquals(0, history.bytesDelta());
+        assertEquals(0, history.bitsPerSecond(), DELTA);
+    }
+
+    @Test
+    public void sameTime() {
+        CounterHistory history = new CounterHistory(4);
+        history.record(SECOND, 0, 0);
+        history.record(SECOND, 10, 100);
+        assertEquals(10, history.packetsDelta());
+        assertEquals(0, history.packetsPerSecond(), DELTA);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupServiceAdapter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the allocation and programming of the flood groups.
+ */
+public class FloodGroupManagerTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "nctu.pncourse.vxlan");
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:bmv2:s1");
+
+    private final RecordingGroupService groupService = new RecordingGroupService();
+    private final FloodGroupManager manager = new FloodGroupManager(APP_ID, groupService);
+
+    @Test
+    public void stableIds() {
+        assertEquals(ImmutableMap.of(30L, 1, 40L, 2), manager.allocate(ImmutableSet.of(30L, 40L)));
+        // Released identifiers are reused, the others stay.
+        assertEquals(ImmutableMap.of(40L, 2, 10L, 1, 50L, 3), manager.allocate(ImmutableSet.of(10L, 40L, 50L)));
+    }
+
+    @Test
+    public void learnCloneSession() {
+        Set<Long> vnis = ImmutableSet.copyOf(range(1, 120));
+        Map<Long, Integer> ids = manager.allocate(vnis);
+        assertEquals(vnis.size(), ids.size());
+        assertFalse(ids.containsValue(MacLearner.LEARN_CLONE_SESSION));
+        assertEquals(vnis.size(), ImmutableSet.copyOf(ids.values()).size());
+    }
+
+    @Test
+    public void exhaustion() {
+        Set<Long> vnis = ImmutableSet.copyOf(range(1, 0x10000));
+        Map<Long, Integer> ids = manager.allocate(vnis);
+        // 16-bit identifiers, 0 and the clone session excluded.
+        assertEquals(0xffff - 1, ids.size());
+        assertTrue(ids.values().stream().allMatch(id -> id >= 1 && id <= 0xffff));
+    }
+
+    @Test
+    public void groups() {
+        manager.allocate(ImmutableSet.of(30L, 40L));
+        manager.update(ImmutableMap.of(DEVICE1, ImmutableMap.of(30L, ports(1, 2), 40L, ports(3))));
+        assertEquals(ImmutableList.of(1, 2), groupService.added);
+
+        // Unchanged lists are not written again.
+        manager.update(ImmutableMap.of(DEVICE1, ImmutableMap.of(30L, ports(1, 2, 4), 40L, ports(3))));
+        assertEquals(ImmutableList.of(1, 2), groupService.added);
+        assertEquals(1, groupService.modified);
+
+        manager.allocate(ImmutableSet.of(30L));
+        manager.update(ImmutableMap.of(DEVICE1, ImmutableMap.of(30L, ports(1, 2, 4))));
+        assertEquals(1, groupService.removed);
+
+        manager.clear();
+        assertEquals(2, groupService.removed);
+        assertEquals(ImmutableMap.of(30L, 1), manager.allocate(ImmutableSet.of(30L)));
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> values = Lists.newArrayList();
+        for (long value = from; value < to; value++) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    private static List<PortNumber> ports(long... ports) {
+        List<PortNumber> numbers = Lists.newArrayList();
+        for (long port : ports) {
+            numbers.add(PortNumber.portNumber(port));
+        }
+        return numbers;
+    }
+
+    private static class RecordingGroupService extends GroupServiceAdapter {
+        private final List<Integer> added = Lists.newArrayList();
+        private int modified;
+        private int removed;
+
+        @Override
+        public void addGroup(GroupDescription groupDesc) {
+            added.add(groupDesc.givenGroupId());
+        }
+
+        @Override
+        public void setBucketsForGroup(DeviceId deviceId, GroupKey oldCookie, GroupBuckets buckets,
+                                       GroupKey newCookie, ApplicationId appId) {
+            modified++;
+        }
+
+        @Override
+        public void removeGroup(DeviceId deviceId, GroupKey appCookie, ApplicationId appId) {
+            removed++;
+        }
+    }
+}
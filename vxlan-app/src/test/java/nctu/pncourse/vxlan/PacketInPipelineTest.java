@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import org.junit.After;
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketContextAdapter;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the admission of the packet-ins.
+ */
+public class PacketInPipelineTest {
+
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:bmv2:s1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:bmv2:s2");
+
+    private PacketInPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void burstPerDevice() {
+        // Workers not started: admitted packets stay queued.
+        pipeline = new PacketInPipeline(1, 100, 1, 5);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(process(DEVICE1, true).isHandled());
+        }
+        for (int i = 0; i < 5; i++) {
+            process(DEVICE2, true);
+        }
+        assertEquals(10, pipeline.queueDepth());
+        assertEquals(5, pipeline.rateLimitedCount());
+        assertEquals(0, pipeline.queueFullCount());
+        assertEquals(5L, (long) pipeline.droppedCounts().get(DEVICE1));
+        assertEquals(0L, (long) pipeline.droppedCounts().get(DEVICE2));
+    }
+
+    @Test
+    public void refill() throws InterruptedException {
+        pipeline = new PacketInPipeline(1, 100, 1000, 1);
+        process(DEVICE1, true);
+        process(DEVICE1, true);
+        assertEquals(1, pipeline.rateLimitedCount());
+        // One token per millisecond, at most one burst kept: the next packet
+        // gets a token, then finds the share of the device taken by the first.
+        Thread.sleep(20);
+        process(DEVICE1, true);
+        process(DEVICE1, true);
+        assertEquals(2, pipeline.rateLimitedCount());
+        assertEquals(1, pipeline.queueFullCount());
+        assertEquals(1, pipeline.queueDepth());
+    }
+
+    @Test
+    public void queueShare() {
+        // Tokens come back at once, the queue share of a device is the limit.
+        pipeline = new PacketInPipeline(1, 100, Integer.MAX_VALUE, 2);
+        for (int i = 0; i < 10; i++) {
+            process(DEVICE1, true);
+        }
+        assertEquals(2, pipeline.queueDepth());
+        assertEquals(8L, (long) pipeline.droppedCounts().get(DEVICE1));
+    }
+
+    @Test
+    public void queueFull() {
+        pipeline = new PacketInPipeline(1, 3, 1, 5);
+        for (int i = 0; i < 5; i++) {
+            process(DEVICE1, true);
+        }
+        assertEquals(3, pipeline.queueDepth());
+        assertEquals(2, pipeline.queueFullCount());
+        assertEquals(0, pipeline.rateLimitedCount());
+    }
+
+    @Test
+    public void handlers() throws InterruptedException {
+        CountDownLatch handled = new CountDownLatch(2);
+        pipeline = new PacketInPipeline(2, 100, 100, 10);
+        pipeline.addHandler(packet -> {
+            handled.countDown();
+            return packet.receivedFrom().deviceId().equals(DEVICE1);
+        });
+        pipeline.start();
+
+        // Packets not sent by the pipeline are left to the other processors.
+        assertFalse(process(DEVICE1, false).isHandled());
+        process(DEVICE1, true);
+        process(DEVICE2, true);
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && pipeline.unhandledCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, pipeline.processedCount());
+        assertEquals(1, pipeline.unhandledCount());
+    }
+
+    private PacketContext process(DeviceId deviceId, boolean cookie) {
+        Ethernet eth = new Ethernet();
+        DefaultInboundPacket packet = new DefaultInboundPacket(
+                new ConnectPoint(deviceId, PortNumber.portNumber(1)), eth, ByteBuffer.allocate(0),
+                cookie ? Optional.of(0L) : Optional.empty());
+        PacketContext context = new PacketContextAdapter(0, packet, null, false);
+        pipeline.process(context);
+        return context;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the allocation of the tunnel identifiers and VNI indexes.
+ */
+public class TunnelManagerTest {
+
+    private static final DeviceId DEVICE1 = DeviceId.deviceId("device:bmv2:s1");
+    private static final DeviceId DEVICE2 = DeviceId.deviceId("device:bmv2:s2");
+
+    private final TunnelManager manager = new TunnelManager();
+
+    @Test
+    public void stableIds() {
+        update(DEVICE1, 30, 2, 3);
+        int id2 = manager.tunnelId(DEVICE1, 30, ip(2));
+        int id3 = manager.tunnelId(DEVICE1, 30, ip(3));
+        assertEquals(ImmutableSet.of(1, 2), ImmutableSet.of(id2, id3));
+        assertEquals(1, (int) manager.vniIndex(DEVICE1, 30));
+        assertNull(manager.tunnelId(DEVICE1, 40, ip(2)));
+        assertNull(manager.tunnelId(DEVICE2, 30, ip(2)));
+
+        // Existing tunnels keep their identifier.
+        update(DEVICE1, 30, 2, 3, 4);
+        assertEquals(id2, (int) manager.tunnelId(DEVICE1, 30, ip(2)));
+        assertEquals(id3, (int) manager.tunnelId(DEVICE1, 30, ip(3)));
+        assertEquals(3, (int) manager.tunnelId(DEVICE1, 30, ip(4)));
+        assertEquals(ip(4), manager.tunnels(DEVICE1).get(3).remoteIp());
+        assertEquals(30, manager.tunnels(DEVICE1).get(3).vni());
+        assertEquals(ImmutableMap.of(1, 30L), manager.vnis(DEVICE1));
+    }
+
+    @Test
+    public void releasedIdsReusedLast() {
+        update(DEVICE1, 30, 2, 3);
+        int first = manager.tunnels(DEVICE1).get(1).remoteIp().equals(ip(2)) ? 2 : 3;
+        int second = first == 2 ? 3 : 2;
+        update(DEVICE1, 30, second);
+        assertNull(manager.tunnelId(DEVICE1, 30, ip(first)));
+        update(DEVICE1, 30, second, 4);
+        // Identifier 1 is not handed out again before the others are used.
+        assertEquals(3, (int) manager.tunnelId(DEVICE1, 30, ip(4)));
+        assertEquals(ImmutableSet.of(2, 3), manager.tunnels(DEVICE1).keySet());
+    }
+
+    @Test
+    public void exhaustion() {
+        List<Integer> remotes = Lists.newArrayList();
+        for (int remote = 1; remote <= 1024; remote++) {
+            remotes.add(remote);
+        }
+        update(DEVICE1, 30, remotes);
+        // Identifiers 1 to 1023, one tunnel gets none.
+        assertEquals(1023, manager.tunnels(DEVICE1).size());
+        assertEquals(1023, (int) Collections.max(manager.tunnels(DEVICE1).keySet()));
+        int missing = remotes.stream()
+                .filter(remote -> manager.tunnelId(DEVICE1, 30, ip(remote)) == null)
+                .findFirst().get();
+
+        // It gets the first identifier released.
+        remotes.remove((Integer) missing);
+        int released = remotes.remove(0);
+        int releasedId = manager.tunnelId(DEVICE1, 30, ip(released));
+        remotes.add(missing);
+        update(DEVICE1, 30, remotes);
+        assertEquals(releasedId, (int) manager.tunnelId(DEVICE1, 30, ip(missing)));
+        assertNull(manager.tunnelId(DEVICE1, 30, ip(released)));
+    }
+
+    @Test
+    public void perDevice() {
+        manager.update(ImmutableMap.of(DEVICE1, ImmutableMap.of(30L, vteps(2)),
+                                       DEVICE2, ImmutableMap.of(30L, vteps(1), 40L, vteps(1))),
+                       ImmutableMap.of(DEVICE1, ImmutableSet.of(30L), DEVICE2, ImmutableSet.of(30L, 40L)));
+        assertEquals(1, (int) manager.tunnelId(DEVICE1, 30, ip(2)));
+        assertEquals(ImmutableSet.of(1, 2), manager.tunnels(DEVICE2).keySet());
+        assertEquals(ImmutableSet.of(30L, 40L), ImmutableSet.copyOf(manager.vnis(DEVICE2).values()));
+
+        // A device left out releases all of its identifiers.
+        manager.update(ImmutableMap.of(DEVICE2, ImmutableMap.of(30L, vteps(1))),
+                       ImmutableMap.of(DEVICE2, ImmutableSet.of(30L)));
+        assertNull(manager.tunnelId(DEVICE1, 30, ip(2)));
+        assertNull(manager.vniIndex(DEVICE1, 30));
+        assertEquals(1, manager.tunnels(DEVICE2).size());
+
+        manager.clear();
+        assertEquals(0, manager.tunnels(DEVICE2).size());
+    }
+
+    // Tunnels of a VTEP in a single VNI, in the given order.
+    private void update(DeviceId deviceId, long vni, Integer... remotes) {
+        update(deviceId, vni, Arrays.asList(remotes));
+    }
+
+    private void update(DeviceId deviceId, long vni, List<Integer> remotes) {
+        Map<Long, List<Vtep>> tunnels = ImmutableMap.of(vni, vteps(remotes));
+        Set<Long> vnis = ImmutableSet.of(vni);
+        manager.update(ImmutableMap.of(deviceId, tunnels), ImmutableMap.of(deviceId, vnis));
+    }
+
+    private static List<Vtep> vteps(Integer... remotes) {
+        return vteps(Arrays.asList(remotes));
+    }
+
+    private static List<Vtep> vteps(List<Integer> remotes) {
+        List<Vtep> vteps = Lists.newArrayList();
+        for (int remote : remotes) {
+            vteps.add(new Vtep(DeviceId.deviceId("device:bmv2:vtep" + remote), ip(remote),
+                               MacAddress.valueOf(remote), PortNumber.portNumber(1),
+                               MacAddress.valueOf("00:00:00:00:00:ff"), ImmutableMap.of()));
+        }
+        return ImmutableList.copyOf(vteps);
+    }
+
+    private static Ip4Address ip(int remote) {
+        return Ip4Address.valueOf(0xc0a80000 | remote);
+    }
+}
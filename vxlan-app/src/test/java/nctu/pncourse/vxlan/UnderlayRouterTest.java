@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.provider.ProviderId;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the underlay route computation.
+ */
+public class UnderlayRouterTest {
+
+    private static final ProviderId PROVIDER_ID = new ProviderId("bmv2", "nctu.pncourse.vxlan.test");
+
+    private static final DeviceId VTEP1 = DeviceId.deviceId("device:bmv2:vtep1");
+    private static final DeviceId VTEP2 = DeviceId.deviceId("device:bmv2:vtep2");
+    private static final DeviceId T1 = DeviceId.deviceId("device:bmv2:t1");
+    private static final DeviceId T2 = DeviceId.deviceId("device:bmv2:t2");
+    private static final DeviceId T3 = DeviceId.deviceId("device:bmv2:t3");
+
+    private static final Vtep V1 = vtep(VTEP1, 1);
+    private static final Vtep V2 = vtep(VTEP2, 2);
+
+    // vtep1:1 - 1:t1:2 - 1:t2:2 - 1:vtep2
+    //               t1:3 - 1:t3:2 - 2:vtep2
+    //                        t3:3 - 3:t2
+    // t1 has two equal cost paths towards vtep2, the t2-t3 link is on no
+    // shortest path.
+    private static final Link T1_T2 = link(T1, 2, T2, 1);
+    private static final Link T3_T2 = link(T3, 3, T2, 3);
+
+    private UnderlayRouter router;
+
+    @Before
+    public void setUp() {
+        List<Link> links = Lists.newArrayList();
+        links.addAll(bidirectional(VTEP1, 1, T1, 1));
+        links.addAll(bidirectional(T1, 2, T2, 1));
+        links.addAll(bidirectional(T2, 2, VTEP2, 1));
+        links.addAll(bidirectional(T1, 3, T3, 1));
+        links.addAll(bidirectional(T3, 2, VTEP2, 2));
+        links.addAll(bidirectional(T3, 3, T2, 3));
+        router = new UnderlayRouter();
+        router.setLinks(links);
+        router.setVteps(ImmutableSet.of(V1, V2));
+    }
+
+    @Test
+    public void equalCostPaths() {
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(2), PortNumber.portNumber(3)), ports(T1, V2));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(1)), ports(T1, V1));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(2)), ports(T2, V2));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(1)), ports(T2, V1));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(1)), ports(T3, V1));
+        // The destination VTEP MAC is used along the whole path.
+        router.routes(T1).forEach(route -> assertEquals(
+                route.prefix().equals(prefix(V1)) ? V1.mac() : V2.mac(), route.nextHopMac()));
+        // VTEPs use their configured next hop.
+        assertTrue(router.routes(VTEP1).isEmpty());
+        assertTrue(router.routes(VTEP2).isEmpty());
+    }
+
+    @Test
+    public void linkRemoved() {
+        long recomputations = router.recomputations();
+        // Only the tree towards vtep2 goes through t1 -> t2.
+        assertEquals(ImmutableSet.of(T1), router.linkRemoved(T1_T2));
+        assertEquals(recomputations + 1, router.recomputations());
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(3)), ports(T1, V2));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(1)), ports(T2, V1));
+
+        // Already gone.
+        assertTrue(router.linkRemoved(T1_T2).isEmpty());
+        assertEquals(recomputations + 1, router.recomputations());
+    }
+
+    @Test
+    public void linkAdded() {
+        router.linkRemoved(T1_T2);
+        long recomputations = router.recomputations();
+        // The link adds an equal cost path towards vtep2 only.
+        assertEquals(ImmutableSet.of(T1), router.linkAdded(T1_T2));
+        assertEquals(recomputations + 1, router.recomputations());
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(2), PortNumber.portNumber(3)), ports(T1, V2));
+
+        // Already known.
+        assertTrue(router.linkAdded(T1_T2).isEmpty());
+        assertEquals(recomputations + 1, router.recomputations());
+    }
+
+    @Test
+    public void unusedLink() {
+        long recomputations = router.recomputations();
+        Set<UnderlayRoute> routes = router.routes(T3);
+        assertTrue(router.linkRemoved(T3_T2).isEmpty());
+        assertTrue(router.linkAdded(T3_T2).isEmpty());
+        assertEquals(recomputations, router.recomputations());
+        assertEquals(routes, router.routes(T3));
+    }
+
+    @Test
+    public void vtepChanged() {
+        long recomputations = router.recomputations();
+        Vtep moved = new Vtep(VTEP2, Ip4Address.valueOf("192.168.0.20"), V2.mac(),
+                              V2.uplinkPort(), V2.nextHopMac(), ImmutableMap.of());
+        assertEquals(ImmutableSet.of(T1, T2, T3), router.setVteps(ImmutableSet.of(V1, moved)));
+        // The tree towards vtep1 stays.
+        assertEquals(recomputations + 1, router.recomputations());
+        assertTrue(router.routes(T1).stream().anyMatch(route -> route.prefix().equals(prefix(moved))));
+        assertTrue(router.routes(T1).stream().noneMatch(route -> route.prefix().equals(prefix(V2))));
+    }
+
+    private Set<PortNumber> ports(DeviceId deviceId, Vtep vtep) {
+        return router.routes(deviceId).stream()
+                .filter(route -> route.prefix().equals(prefix(vtep)))
+                .map(UnderlayRoute::port)
+                .collect(Collectors.toSet());
+    }
+
+    private static IpPrefix prefix(Vtep vtep) {
+        return IpPrefix.valueOf(vtep.ip(), IpPrefix.MAX_INET_MASK_LENGTH);
+    }
+
+    private static Vtep vtep(DeviceId deviceId, int index) {
+        return new Vtep(deviceId, Ip4Address.valueOf("192.168.0." + index),
+                        MacAddress.valueOf("00:00:00:00:00:0" + index), PortNumber.portNumber(1),
+                        MacAddress.valueOf("00:00:00:00:00:ff"), ImmutableMap.of());
+    }
+
+    private static List<Link> bidirectional(DeviceId one, long onePort, DeviceId other, long otherPort) {
+        return Lists.newArrayList(link(one, onePort, other, otherPort), link(other, otherPort, one, onePort));
+    }
+
+    private static Link link(DeviceId src, long srcPort, DeviceId dst, long dstPort) {
+        return DefaultLink.builder()
+                .providerId(PROVIDER_ID)
+                .src(new ConnectPoint(src, PortNumber.portNumber(srcPort)))
+                .dst(new ConnectPoint(dst, PortNumber.portNumber(dstPort)))
+                .type(Link.Type.DIRECT)
+                .state(Link.State.ACTIVE)
+                .build();
+    }
+}
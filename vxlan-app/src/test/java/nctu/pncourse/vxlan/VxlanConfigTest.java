@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.vxlan;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+import org.onosproject.core.DefaultApplicationId;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the validation of the overlay configuration.
+ */
+public class VxlanConfigTest {
+
+    private static final String VTEP =
+            "{'deviceId': 'device:bmv2:s1', 'ip': '%s', 'mac': '00:00:00:00:00:01', 'uplinkPort': 3," +
+                    " 'nextHopMac': '00:00:00:00:00:02', 'accessPorts': [%s]}";
+    private static final String HOST =
+            "{'mac': '00:00:00:00:00:0a', 'ip': '%s', 'vni': 30, 'deviceId': 'device:bmv2:s1', 'port': 1}";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private VxlanConfig config(String vtep, String host) throws IOException {
+        VxlanConfig config = new VxlanConfig();
+        String json = "{'vteps': [" + vtep + "], 'hosts': [" + host + "]}";
+        config.init(new DefaultApplicationId(1, "nctu.pncourse.vxlan"), VxlanConfig.CONFIG_KEY,
+                    mapper.readTree(json.replace('\'', '"')), mapper, null);
+        return config;
+    }
+
+    @Test
+    public void valid() throws IOException {
+        VxlanConfig config = config(String.format(VTEP, "192.168.1.1", "{'port': 1, 'vni': 30}"),
+                                    String.format(HOST, "10.0.1.1"));
+        assertTrue(config.isValid());
+        assertEquals(1, config.vteps().iterator().next().accessPorts().size());
+    }
+
+    @Test
+    public void duplicateAccessPort() throws IOException {
+        assertFalse(config(String.format(VTEP, "192.168.1.1", "{'port': 1, 'vni': 30}, {'port': 1, 'vni': 40}"),
+                           String.format(HOST, "10.0.1.1")).isValid());
+    }
+
+    @Test
+    public void ip6Addresses() throws IOException {
+        assertFalse(config(String.format(VTEP, "2001:db8::1", ""), String.format(HOST, "10.0.1.1")).isValid());
+        assertFalse(config(String.format(VTEP, "192.168.1.1", ""), String.format(HOST, "2001:db8::a")).isValid());
+    }
+}